@@ -1,5 +1,7 @@
-
 #!/bin/bash
+# Runs the JMH benchmarks in src/test, all of them or those matching the given regex, e.g.
+#   ./scripts/benchmark.sh RoundTripBenchmark
+# Scores are throughput or time per operation; -prof gc adds allocation per operation (gc.alloc.rate.norm).
 
 # Check JAVA_HOME points to correct java version
 ./scripts/check_java_home.sh
@@ -10,8 +12,11 @@ mvn test-compile
 # Emit the dependencies classpath
 mvn dependency:build-classpath -DincludeScope=test -Dmdep.outputFile=scripts/classpath.txt
 
-# Run the benchmark
-java -cp $(cat scripts/classpath.txt):target/classes:target/test-classes --illegal-access=warn org.openjdk.jmh.Main BenchmarkPruner
+# Run the benchmark. ColdStartBenchmark forks ten JVMs, so it only runs when asked for by name.
+if [ $# -eq 0 ]; then
+  set -- -e ColdStartBenchmark Benchmark
+fi
+java -cp $(cat scripts/classpath.txt):target/classes:target/test-classes org.openjdk.jmh.Main -prof gc "$@"
 
 # Clean up
-rm scripts/classpath.txt
\ No newline at end of file
+rm scripts/classpath.txt
@@ -0,0 +1,152 @@
+package dev.secondsun.lsp;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.ErrorManager;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+
+/**
+ * Hands log records to a "log" thread, which publishes them to the handlers that would otherwise
+ * have been called directly. Logging never blocks the thread that logs: when the buffer is full the
+ * oldest record is dropped to make room, and the number dropped is reported with the next record
+ * that gets through.
+ */
+public class AsyncLogHandler extends Handler {
+    private final BlockingQueue<LogRecord> buffer;
+    private final List<Handler> delegates;
+    private final Thread thread;
+    /** Records accepted by publish, and of those, how many have been published or dropped. */
+    private final AtomicLong accepted = new AtomicLong(), done = new AtomicLong(), dropped = new AtomicLong();
+    private long reported;
+    private volatile boolean closed;
+    /** What {@link #install} replaced, put back by {@link #uninstall}. */
+    private Logger logger;
+    private Handler[] replaced;
+    private boolean useParentHandlers;
+    private int installs;
+
+    public AsyncLogHandler(List<Handler> delegates, int capacity) {
+        this.delegates = List.copyOf(delegates);
+        this.buffer = new ArrayBlockingQueue<>(capacity);
+        this.thread = new Thread(this::run, "log");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Sends everything {@code logger} logs through an AsyncLogHandler instead of its own and its
+     * parents' handlers, until {@link #uninstall}. If that has already been done, returns the handler
+     * already installed, which then needs one more uninstall.
+     */
+    public static synchronized AsyncLogHandler install(Logger logger, int capacity) {
+        for (var handler : logger.getHandlers()) {
+            if (handler instanceof AsyncLogHandler) {
+                var async = (AsyncLogHandler) handler;
+                async.installs++;
+                return async;
+            }
+        }
+        var delegates = new ArrayList<Handler>();
+        for (var l = logger; l != null; l = l.getUseParentHandlers() ? l.getParent() : null) {
+            for (var handler : l.getHandlers()) delegates.add(handler);
+        }
+        var async = new AsyncLogHandler(delegates, capacity);
+        async.logger = logger;
+        async.replaced = logger.getHandlers();
+        async.useParentHandlers = logger.getUseParentHandlers();
+        async.installs = 1;
+        for (var handler : async.replaced) logger.removeHandler(handler);
+        logger.addHandler(async);
+        logger.setUseParentHandlers(false);
+        return async;
+    }
+
+    /**
+     * Undoes {@link #install} once all its callers have uninstalled: publishes what is buffered,
+     * then gives the logger back its own handlers and parent handlers.
+     */
+    public void uninstall() {
+        synchronized (AsyncLogHandler.class) {
+            if (logger == null || --installs > 0) return;
+            logger.removeHandler(this);
+            for (var handler : replaced) logger.addHandler(handler);
+            logger.setUseParentHandlers(useParentHandlers);
+            logger = null;
+        }
+        close();
+    }
+
+    @Override
+    public void publish(LogRecord record) {
+        if (closed || !isLoggable(record)) return;
+        // The caller is found by walking the stack, which only works on the thread that logged
+        record.setSourceClassName(record.getSourceClassName());
+        record.setSourceMethodName(record.getSourceMethodName());
+        accepted.incrementAndGet();
+        while (!buffer.offer(record)) {
+            if (buffer.poll() != null) {
+                dropped.incrementAndGet();
+                done.incrementAndGet();
+            }
+        }
+    }
+
+    /** Waits, up to a second, for the log thread to publish what has been logged so far. */
+    @Override
+    public void flush() {
+        var target = accepted.get();
+        var deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(1);
+        while (done.get() < target && thread.isAlive() && System.nanoTime() < deadline) {
+            Thread.yield();
+        }
+        for (var handler : delegates) handler.flush();
+    }
+
+    /** Publishes what is buffered and stops the log thread. The delegates are left open. */
+    @Override
+    public void close() {
+        flush();
+        closed = true;
+        thread.interrupt();
+    }
+
+    /** Records dropped because the buffer was full. */
+    public long dropped() {
+        return dropped.get();
+    }
+
+    private void run() {
+        while (!closed) {
+            LogRecord record;
+            try {
+                record = buffer.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            var lost = dropped.get() - reported;
+            if (lost > 0) {
+                reported += lost;
+                deliver(new LogRecord(Level.WARNING, String.format("Log buffer was full, dropped %d records", lost)));
+            }
+            deliver(record);
+            done.incrementAndGet();
+        }
+    }
+
+    private void deliver(LogRecord record) {
+        for (var handler : delegates) {
+            try {
+                handler.publish(record);
+            } catch (RuntimeException e) {
+                reportError(e.getMessage(), e, ErrorManager.WRITE_FAILURE);
+            }
+        }
+    }
+}
@@ -0,0 +1,44 @@
+package dev.secondsun.lsp;
+
+import java.util.concurrent.CancellationException;
+
+/**
+ * Flipped when the client sends {@code $/cancelRequest} for a request. Handlers get the token of the
+ * request they are running from {@link LanguageServer#cancellation()}, and long loops should call
+ * {@link #checkCanceled()} so superseded work stops early. The client is then sent a {@link
+ * ErrorCodes#RequestCancelled} error instead of a result.
+ */
+public class CancellationToken {
+    /** Token for notifications and code that isn't running a request. It is never canceled. */
+    public static final CancellationToken NONE = new CancellationToken();
+
+    private static final ThreadLocal<CancellationToken> CURRENT = ThreadLocal.withInitial(() -> NONE);
+
+    private volatile boolean canceled;
+
+    public boolean isCanceled() {
+        return canceled;
+    }
+
+    /** Throws {@link CancellationException} if the request has been canceled. */
+    public void checkCanceled() {
+        if (canceled) {
+            throw new CancellationException("Request was canceled by the client");
+        }
+    }
+
+    void cancel() {
+        if (this != NONE) {
+            canceled = true;
+        }
+    }
+
+    /** The token of the request being handled on this thread. */
+    public static CancellationToken current() {
+        return CURRENT.get();
+    }
+
+    static void setCurrent(CancellationToken token) {
+        CURRENT.set(token);
+    }
+}
@@ -0,0 +1,169 @@
+package dev.secondsun.lsp;
+
+import java.util.Arrays;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Requests the server has sent to the client and is waiting on. Ids count up from 1, so they never
+ * collide while a request is outstanding, and a response is matched to its future with an int-keyed
+ * table rather than a boxed map.
+ */
+class ClientRequests {
+    private final AtomicInteger nextId = new AtomicInteger(1);
+    private final Table waiting = new Table();
+
+    private static class Waiting {
+        final CompletableFuture<Object> future;
+        final Class<?> resultType;
+
+        Waiting(CompletableFuture<Object> future, Class<?> resultType) {
+            this.future = future;
+            this.resultType = resultType;
+        }
+    }
+
+    int nextId() {
+        return nextId.getAndIncrement();
+    }
+
+    /** Returns a future that is completed when the response to request {@code id} arrives. */
+    @SuppressWarnings("unchecked")
+    <R> CompletableFuture<R> register(int id, Class<R> resultType) {
+        var future = new CompletableFuture<Object>();
+        synchronized (waiting) {
+            waiting.put(id, new Waiting(future, resultType));
+        }
+        // However the future finishes, including a timeout or the caller canceling it, stop waiting
+        future.whenComplete((result, error) -> remove(id));
+        return (CompletableFuture<R>) future;
+    }
+
+    /**
+     * Completes the future waiting on {@code response}. Returns false if nothing was waiting on it, for
+     * example because it timed out or was sent some other way.
+     */
+    boolean complete(InboundMessage response) {
+        Waiting w;
+        synchronized (waiting) {
+            w = waiting.remove(response.id);
+        }
+        if (w == null) {
+            return false;
+        }
+        try {
+            if (response.isError()) {
+                w.future.completeExceptionally(new ResponseErrorException(response.error()));
+            } else {
+                w.future.complete(response.result(w.resultType));
+            }
+        } catch (RuntimeException e) {
+            w.future.completeExceptionally(e);
+        }
+        return true;
+    }
+
+    /** Fails every outstanding request, because the connection has closed. */
+    void cancelAll() {
+        Waiting[] all;
+        synchronized (waiting) {
+            all = waiting.values();
+            waiting.clear();
+        }
+        for (var w : all) {
+            w.future.completeExceptionally(new CancellationException("Connection to the client was closed"));
+        }
+    }
+
+    private void remove(int id) {
+        synchronized (waiting) {
+            waiting.remove(id);
+        }
+    }
+
+    /** Open-addressed int to {@link Waiting} table with linear probing. Not thread-safe. */
+    private static class Table {
+        private int[] keys = new int[16];
+        private Waiting[] values = new Waiting[16];
+        private int size;
+
+        void put(int key, Waiting value) {
+            if ((size + 1) * 2 > keys.length) {
+                resize(keys.length * 2);
+            }
+            var i = slot(key, keys.length);
+            while (values[i] != null && keys[i] != key) {
+                i = (i + 1) & (keys.length - 1);
+            }
+            if (values[i] == null) {
+                size++;
+            }
+            keys[i] = key;
+            values[i] = value;
+        }
+
+        Waiting remove(int key) {
+            var mask = keys.length - 1;
+            var i = slot(key, keys.length);
+            while (values[i] != null) {
+                if (keys[i] == key) {
+                    var removed = values[i];
+                    values[i] = null;
+                    size--;
+                    closeGap(i);
+                    return removed;
+                }
+                i = (i + 1) & mask;
+            }
+            return null;
+        }
+
+        Waiting[] values() {
+            var all = new Waiting[size];
+            var n = 0;
+            for (var value : values) {
+                if (value != null) all[n++] = value;
+            }
+            return all;
+        }
+
+        void clear() {
+            Arrays.fill(values, null);
+            size = 0;
+        }
+
+        /** Moves entries after a removed slot back, so lookups never stop early at the hole. */
+        private void closeGap(int hole) {
+            var mask = keys.length - 1;
+            var i = (hole + 1) & mask;
+            while (values[i] != null) {
+                var home = slot(keys[i], keys.length);
+                // Move the entry if its home slot is not between the hole and its current slot
+                if (((i - home) & mask) >= ((i - hole) & mask)) {
+                    keys[hole] = keys[i];
+                    values[hole] = values[i];
+                    values[i] = null;
+                    hole = i;
+                }
+                i = (i + 1) & mask;
+            }
+        }
+
+        private void resize(int capacity) {
+            var oldKeys = keys;
+            var oldValues = values;
+            keys = new int[capacity];
+            values = new Waiting[capacity];
+            size = 0;
+            for (var i = 0; i < oldKeys.length; i++) {
+                if (oldValues[i] != null) put(oldKeys[i], oldValues[i]);
+            }
+        }
+
+        private static int slot(int key, int capacity) {
+            var h = key * 0x9E3779B9;
+            return (h ^ (h >>> 16)) & (capacity - 1);
+        }
+    }
+}
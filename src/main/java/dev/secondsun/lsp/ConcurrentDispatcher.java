@@ -0,0 +1,206 @@
+package dev.secondsun.lsp;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.BooleanSupplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Schedules messages for a {@link ConnectionOptions#concurrent} connection.
+ *
+ * <p>Changes to a document run one at a time, in the order they arrived, after every earlier request
+ * on that document, and every earlier request that isn't about a single document, has finished.
+ * Requests on a document wait only for earlier changes to it, and other requests wait for earlier
+ * changes to any document, so requests run in parallel with each other and with later work. Lifecycle and workspace
+ * notifications wait for everything in flight and then run on the main loop.
+ *
+ * <p>Only the main loop calls into this class.
+ */
+class ConcurrentDispatcher {
+    private static final int MAX_LANES = 256;
+    /** Handlers often block on I/O, so even small machines get a few threads. */
+    private static final int MIN_THREADS = 4;
+
+    private final ExecutorService executor;
+    private final boolean ownsExecutor;
+    private final Map<URI, Lane> lanes = new HashMap<>();
+    /** Requests that aren't about a single document. */
+    private final List<CompletableFuture<?>> unordered = new ArrayList<>();
+
+    /** Ordering state for one document. */
+    private static class Lane {
+        CompletableFuture<?> lastChange = CompletableFuture.completedFuture(null);
+        final List<CompletableFuture<?>> requests = new ArrayList<>();
+
+        boolean isDone() {
+            return lastChange.isDone() && requests.stream().allMatch(CompletableFuture::isDone);
+        }
+    }
+
+    private enum Kind {
+        /** Runs immediately on the main loop. */
+        INLINE,
+        /** Waits for all work in flight, then runs on the main loop. */
+        BARRIER,
+        /** Changes a single document. */
+        CHANGE,
+        /** Reads a single document, or the whole workspace. */
+        REQUEST
+    }
+
+    private ConcurrentDispatcher(ExecutorService executor, boolean ownsExecutor) {
+        this.executor = executor;
+        this.ownsExecutor = ownsExecutor;
+    }
+
+    /** Creates a dispatcher for {@code options}, or returns null if it asks for the serial loop. */
+    static ConcurrentDispatcher create(ConnectionOptions options) {
+        if (options.virtualThreads) {
+            return new ConcurrentDispatcher(threadPerTask(), true);
+        }
+        if (!options.concurrent) {
+            return null;
+        }
+        if (options.executor != null) {
+            return new ConcurrentDispatcher(options.executor, false);
+        }
+        var threads = Math.max(MIN_THREADS, Runtime.getRuntime().availableProcessors());
+        return new ConcurrentDispatcher(Executors.newFixedThreadPool(threads, ConcurrentDispatcher::newThread), true);
+    }
+
+    /**
+     * Java 21's virtual-thread-per-task executor, looked up reflectively so the library still builds and
+     * runs on older releases, where a cached platform pool stands in for it.
+     */
+    private static ExecutorService threadPerTask() {
+        try {
+            var factory =
+                    MethodHandles.publicLookup()
+                            .findStatic(
+                                    Executors.class,
+                                    "newVirtualThreadPerTaskExecutor",
+                                    MethodType.methodType(ExecutorService.class));
+            return (ExecutorService) factory.invokeExact();
+        } catch (NoSuchMethodException | IllegalAccessException e) {
+            LOG.warning("Virtual threads need Java 21, running each request on a pooled platform thread instead");
+            return Executors.newCachedThreadPool(ConcurrentDispatcher::newThread);
+        } catch (Throwable e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static Thread newThread(Runnable task) {
+        var thread = new Thread(task, "dispatch");
+        thread.setDaemon(true);
+        return thread;
+    }
+
+    /** Schedules {@code handler}, which handles {@code r}. Returns true if the connection should close. */
+    boolean dispatch(InboundMessage r, BooleanSupplier handler) {
+        var kind = kind(r);
+        var uri = kind == Kind.CHANGE || kind == Kind.REQUEST ? r.documentUri() : null;
+        if (kind == Kind.CHANGE && uri == null) {
+            kind = Kind.BARRIER;
+        }
+        switch (kind) {
+            case INLINE:
+                return handler.getAsBoolean();
+            case BARRIER:
+                awaitIdle();
+                return handler.getAsBoolean();
+            case CHANGE:
+                {
+                    var lane = lanes.computeIfAbsent(uri, __ -> new Lane());
+                    lane.requests.add(lane.lastChange);
+                    unordered.removeIf(CompletableFuture::isDone);
+                    lane.requests.addAll(unordered);
+                    var after = CompletableFuture.allOf(lane.requests.toArray(CompletableFuture[]::new));
+                    lane.lastChange = after.handleAsync((__, ___) -> handler.getAsBoolean(), executor);
+                    lane.requests.clear();
+                    break;
+                }
+            case REQUEST:
+                if (uri == null) {
+                    unordered.removeIf(CompletableFuture::isDone);
+                    var changes = lanes.values().stream().map(lane -> lane.lastChange);
+                    var after = CompletableFuture.allOf(changes.toArray(CompletableFuture[]::new));
+                    unordered.add(after.handleAsync((__, ___) -> handler.getAsBoolean(), executor));
+                } else {
+                    var lane = lanes.computeIfAbsent(uri, __ -> new Lane());
+                    lane.requests.removeIf(CompletableFuture::isDone);
+                    lane.requests.add(lane.lastChange.handleAsync((__, ___) -> handler.getAsBoolean(), executor));
+                }
+                break;
+        }
+        if (lanes.size() > MAX_LANES) {
+            lanes.values().removeIf(Lane::isDone);
+        }
+        return false;
+    }
+
+    private static Kind kind(InboundMessage r) {
+        if (r.method == null) {
+            return Kind.INLINE; // a response from the client
+        }
+        switch (r.method) {
+            case "$/cancelRequest":
+                return Kind.INLINE;
+            case "textDocument/didOpen":
+            case "textDocument/didChange":
+            case "textDocument/didClose":
+            case "textDocument/didSave":
+            case "textDocument/willSave":
+            case "textDocument/willSaveWaitUntil":
+                return Kind.CHANGE;
+            case "initialize":
+            case "shutdown":
+                return Kind.BARRIER;
+            default:
+                return r.id == null ? Kind.BARRIER : Kind.REQUEST;
+        }
+    }
+
+    /** Runs {@code task} once everything scheduled so far has been handled, without waiting for it here. */
+    void whenIdle(Runnable task) {
+        inFlight().whenComplete((__, ___) -> task.run());
+    }
+
+    /** Blocks until every scheduled message has been handled. */
+    void awaitIdle() {
+        try {
+            inFlight().join();
+        } catch (CompletionException e) {
+            LOG.log(Level.SEVERE, "Request failed", e.getCause());
+        }
+        lanes.clear();
+        unordered.clear();
+    }
+
+    private CompletableFuture<Void> inFlight() {
+        var all = new ArrayList<CompletableFuture<?>>(unordered);
+        for (var lane : lanes.values()) {
+            all.add(lane.lastChange);
+            all.addAll(lane.requests);
+        }
+        return CompletableFuture.allOf(all.toArray(CompletableFuture[]::new));
+    }
+
+    void close() {
+        awaitIdle();
+        if (ownsExecutor) {
+            executor.shutdown();
+        }
+    }
+
+    private static final Logger LOG = Logger.getLogger("main");
+}
@@ -0,0 +1,129 @@
+package dev.secondsun.lsp;
+
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Settings for {@link LSP#connect}. The defaults match the original single-threaded behavior:
+ * messages are handled one at a time, in the order they arrive, and every one of them is handled.
+ */
+public class ConnectionOptions {
+    /** Requests an editor waits on while the user types, for {@link #interactiveMethods}. */
+    public static final Set<String> INTERACTIVE_METHODS =
+            Set.of(
+                    "textDocument/completion",
+                    "completionItem/resolve",
+                    "textDocument/signatureHelp",
+                    "textDocument/hover");
+
+    /** Requests whose results an editor only shows eventually, for {@link #backgroundMethods}. */
+    public static final Set<String> BACKGROUND_METHODS =
+            Set.of(
+                    "textDocument/codeLens",
+                    "codeLens/resolve",
+                    "textDocument/documentSymbol",
+                    "textDocument/foldingRange",
+                    "textDocument/documentLink");
+
+    /** Requests an editor asks again for on every keystroke, for {@link #supersededMethods}. */
+    public static final Set<String> SUPERSEDED_METHODS = Set.of("textDocument/completion", "textDocument/signatureHelp");
+
+    /**
+     * Run requests on {@link #executor} instead of the main loop. Document notifications stay
+     * strictly ordered per URI, and each request sees every change sent before it.
+     */
+    public boolean concurrent = false;
+
+    /**
+     * Runs requests when {@link #concurrent} is set. If null, a fixed pool with one thread per
+     * processor (at least four) is created and shut down when the connection closes.
+     */
+    public ExecutorService executor;
+
+    /**
+     * Run each request on its own virtual thread, so handlers that block on I/O or javac don't tie up
+     * platform threads. Implies {@link #concurrent} and ignores {@link #executor}. Virtual threads need
+     * a Java 21 runtime; on older runtimes each request gets a pooled platform thread instead.
+     */
+    public boolean virtualThreads = false;
+
+    /**
+     * How many messages may be read ahead of the handlers. When the queue is full the reader stops
+     * reading until there is room.
+     */
+    public int queueCapacity = 1024;
+
+    /**
+     * Requests taken ahead of anything else queued since the last notification. None by default;
+     * {@link #INTERACTIVE_METHODS} suits most servers.
+     */
+    public Set<String> interactiveMethods = Set.of();
+
+    /**
+     * Requests taken after everything else queued since the last notification. None by default;
+     * {@link #BACKGROUND_METHODS} suits most servers.
+     */
+    public Set<String> backgroundMethods = Set.of();
+
+    /** A request that has been queued this long is taken next, whatever its class. */
+    public Duration maxQueueWait = Duration.ofMillis(500);
+
+    /**
+     * Merge a didChange into the one queued just before it when both are for the same document, so a
+     * burst of keystrokes is handled as a single change. The server then sees fewer, larger didChange
+     * notifications than the client sent.
+     */
+    public boolean coalesceChanges = false;
+
+    /**
+     * Requests that are made obsolete by a newer request of the same method for the same document.
+     * The older one is answered with {@link ErrorCodes#ContentModified} without running if it hasn't
+     * started yet. None by default; {@link #SUPERSEDED_METHODS} suits most servers.
+     */
+    public Set<String> supersededMethods = Set.of();
+
+    /**
+     * Binds params and results. {@link JsonCodec#streaming()} skips Gson's reader and writer, and
+     * writes the same bytes.
+     */
+    public JsonCodec codec = JsonCodec.gson();
+
+    /**
+     * Write every frame read and written, with when it was read or written, to this file. Read it back
+     * with {@link Recording#read}, or feed it to another server with {@link Replay}.
+     */
+    public Path recordTo;
+
+    /**
+     * Write {@link Metrics#summary} as JSON to this file every {@link #metricsInterval}, and once more
+     * when the connection closes. Null to only answer {@code $/metrics}.
+     */
+    public Path metricsFile;
+
+    public Duration metricsInterval = Duration.ofMinutes(1);
+
+    /**
+     * Publish the "main" logger's records on a background thread, through an {@link AsyncLogHandler},
+     * so logging never blocks the reader or the handlers. Records are dropped, oldest first, if more
+     * than a few thousand are waiting. The logger's own handlers are put back when the connection
+     * closes.
+     */
+    public boolean asyncLogging;
+
+    /**
+     * The least time between two {@link Progress#report}s for the same token. Reports that come
+     * sooner are dropped.
+     */
+    public Duration progressInterval = Duration.ofMillis(100);
+
+    /** How many items a {@link ResultSink} sends in each {@code $/progress} of partial results. */
+    public int partialResultChunk = 100;
+
+    /**
+     * Keep a copy of every open document, for {@link LanguageServer#documents()}. Off by default, since
+     * a server that reads files itself would only be paying to keep a second copy.
+     */
+    public boolean trackDocuments;
+}
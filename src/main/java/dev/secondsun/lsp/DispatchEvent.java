@@ -0,0 +1,32 @@
+package dev.secondsun.lsp;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/** A message handled by {@link LSP#connect}. The event's duration is the time spent in the handler. */
+@Name("dev.secondsun.lsp.Dispatch")
+@Label("Dispatch")
+@Category({"Language Server", "JSON-RPC"})
+@Description("A request or notification handled by the server")
+@StackTrace(false)
+class DispatchEvent extends jdk.jfr.Event {
+    @Label("Method")
+    String method;
+
+    @Label("Id")
+    @Description("-1 for notifications")
+    int id;
+
+    @Label("Queue Wait")
+    @Description("From being read to the handler starting")
+    @Timespan
+    long queueWait;
+
+    @Label("Outcome")
+    @Description("ok, cancelled or error")
+    String outcome;
+}
@@ -0,0 +1,28 @@
+package dev.secondsun.lsp;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/** A frame read from the client. The event's duration is the time spent decoding it. */
+@Name("dev.secondsun.lsp.FrameRead")
+@Label("Frame Read")
+@Category({"Language Server", "JSON-RPC"})
+@Description("A message read from the client and decoded")
+@StackTrace(false)
+class FrameReadEvent extends jdk.jfr.Event {
+    @Label("Method")
+    @Description("Null for responses")
+    String method;
+
+    @Label("Id")
+    @Description("-1 for notifications")
+    int id;
+
+    @Label("Size")
+    @DataAmount
+    long bytes;
+}
@@ -0,0 +1,187 @@
+package dev.secondsun.lsp;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.logging.Logger;
+
+/**
+ * Reads {@code Content-Length} framed JSON-RPC messages from a stream.
+ *
+ * <p>Bytes are pulled from the stream in bulk into a reusable buffer. Headers are scanned
+ * directly in that buffer, and the body is decoded as UTF-8 exactly once.
+ */
+public class FrameReader {
+    private static final int DEFAULT_CAPACITY = 64 * 1024;
+    private static final byte[] CONTENT_LENGTH = "content-length:".getBytes(StandardCharsets.US_ASCII);
+
+    private final InputStream in;
+    private final byte[] buffer;
+    private int position, limit;
+    /** Length in bytes of the body {@link #nextToken} last returned. */
+    int lastLength;
+
+    public FrameReader(InputStream in) {
+        this(in, DEFAULT_CAPACITY);
+    }
+
+    public FrameReader(InputStream in, int capacity) {
+        this.in = in;
+        this.buffer = new byte[capacity];
+    }
+
+    /** Reads the next message body. Throws {@link LSP.EndOfStream} once the stream is closed. */
+    public String nextToken() {
+        var length = readHeaders();
+        lastLength = length;
+        skipWhitespace();
+        if (length <= buffer.length) {
+            require(length);
+            var token = new String(buffer, position, length, StandardCharsets.UTF_8);
+            position += length;
+            return token;
+        }
+        return new String(readBody(length), StandardCharsets.UTF_8);
+    }
+
+    /** Reads header lines up to and including the blank line, returning the Content-Length. */
+    private int readHeaders() {
+        // Have observed problems with extra \r\n sequences from VSCode
+        skipWhitespace();
+        var contentLength = -1;
+        while (true) {
+            var end = lineEnd();
+            if (end == -1) {
+                LOG.warning("Skipped a message header longer than " + buffer.length + " bytes");
+                continue;
+            }
+            var lineLength = end - position;
+            if (lineLength > 0 && buffer[end - 1] == '\r') lineLength--;
+            if (lineLength == 0) {
+                position = end + 1;
+                if (contentLength == -1) {
+                    throw new IllegalStateException("Message header has no Content-Length");
+                }
+                return contentLength;
+            }
+            var maybeLength = parseContentLength(position, lineLength);
+            if (maybeLength != -1) contentLength = maybeLength;
+            position = end + 1;
+        }
+    }
+
+    /**
+     * Finds the next '\n', refilling the buffer as needed, so headers may span reads. A line that
+     * doesn't fit in the buffer is skipped, up to and including its '\n', and -1 returned.
+     */
+    private int lineEnd() {
+        var scanned = position;
+        var skipping = false;
+        while (true) {
+            for (var i = scanned; i < limit; i++) {
+                if (buffer[i] != '\n') continue;
+                if (!skipping) return i;
+                position = i + 1;
+                return -1;
+            }
+            if (limit - position == buffer.length) {
+                // Waiting for room would never end, so drop what there is of the line
+                skipping = true;
+                position = limit;
+            }
+            scanned = limit - position;
+            fill();
+            scanned += position;
+        }
+    }
+
+    private int parseContentLength(int start, int length) {
+        if (length < CONTENT_LENGTH.length) return -1;
+        for (var i = 0; i < CONTENT_LENGTH.length; i++) {
+            var b = buffer[start + i];
+            if (b >= 'A' && b <= 'Z') b += 'a' - 'A';
+            if (b != CONTENT_LENGTH[i]) return -1;
+        }
+        var value = 0;
+        var digits = 0;
+        for (var i = start + CONTENT_LENGTH.length; i < start + length; i++) {
+            var b = buffer[i];
+            if (b == ' ' || b == '\t') continue;
+            if (b < '0' || b > '9') return -1;
+            if (value > (Integer.MAX_VALUE - (b - '0')) / 10) {
+                // There's no telling where this message ends and the next one starts
+                LOG.severe("Content-Length " + new String(buffer, start, length, StandardCharsets.US_ASCII)
+                        + " is too large, giving up on the stream");
+                throw new LSP.EndOfStream();
+            }
+            value = value * 10 + (b - '0');
+            digits++;
+        }
+        return digits == 0 ? -1 : value;
+    }
+
+    private void skipWhitespace() {
+        while (true) {
+            while (position < limit) {
+                var b = buffer[position];
+                if (b != ' ' && b != '\t' && b != '\r' && b != '\n') return;
+                position++;
+            }
+            if (!fill()) return;
+        }
+    }
+
+    /** Ensures at least {@code count} unread bytes are in the buffer. */
+    private void require(int count) {
+        while (limit - position < count) {
+            if (!fill()) {
+                throw new IllegalStateException("Buffer cannot hold " + count + " bytes");
+            }
+        }
+    }
+
+    /** Reads a body too large for the buffer into an exact-sized array. */
+    private byte[] readBody(int length) {
+        var body = new byte[length];
+        var buffered = limit - position;
+        System.arraycopy(buffer, position, body, 0, buffered);
+        position = limit = 0;
+        var offset = buffered;
+        while (offset < length) {
+            offset += read(body, offset, length - offset);
+        }
+        return body;
+    }
+
+    /**
+     * Compacts unread bytes to the front of the buffer and reads more. Returns false if the buffer
+     * is already full.
+     */
+    private boolean fill() {
+        if (position > 0) {
+            System.arraycopy(buffer, position, buffer, 0, limit - position);
+            limit -= position;
+            position = 0;
+        }
+        if (limit == buffer.length) return false;
+        limit += read(buffer, limit, buffer.length - limit);
+        return true;
+    }
+
+    private int read(byte[] into, int offset, int length) {
+        int n;
+        try {
+            n = in.read(into, offset, length);
+        } catch (IOException e) {
+            LOG.warning("Stream from client failed: " + e.getMessage());
+            throw new LSP.EndOfStream();
+        }
+        if (n == -1) {
+            LOG.warning("Stream from client has been closed, throwing kill exception...");
+            throw new LSP.EndOfStream();
+        }
+        return n;
+    }
+
+    private static final Logger LOG = Logger.getLogger("main");
+}
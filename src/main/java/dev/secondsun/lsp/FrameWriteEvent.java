@@ -0,0 +1,26 @@
+package dev.secondsun.lsp;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/** A frame written to the client. The event's duration is the time spent writing it. */
+@Name("dev.secondsun.lsp.FrameWrite")
+@Label("Frame Write")
+@Category({"Language Server", "JSON-RPC"})
+@Description("A message framed and written to the client")
+@StackTrace(false)
+class FrameWriteEvent extends jdk.jfr.Event {
+    @Label("Size")
+    @DataAmount
+    long bytes;
+
+    @Label("Serialize Time")
+    @Description("Time spent serializing the result of a request, zero for other messages")
+    @Timespan
+    long serializeTime;
+}
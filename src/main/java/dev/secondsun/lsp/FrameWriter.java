@@ -0,0 +1,206 @@
+package dev.secondsun.lsp;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Owns the stream to the client. Any thread may {@link #send} a serialized message; a single writer
+ * thread frames them in the order they were sent, coalesces whatever is queued into one buffered
+ * write, and flushes when the queue runs dry.
+ */
+public class FrameWriter implements AutoCloseable {
+    private static final int DEFAULT_CAPACITY = 1024, BUFFER_SIZE = 64 * 1024;
+    private static final MessageBuffer CLOSE = MessageBuffer.wrap(new byte[0]);
+
+    private final BlockingQueue<MessageBuffer> queue;
+    private final OutputStream out;
+    private final Thread thread;
+    private final SessionRecorder recorder;
+
+    private volatile long bytesWritten, framesWritten, flushes;
+    private volatile long bytesPerSecond;
+    private long windowStart = System.nanoTime(), windowBytes;
+    private volatile boolean failed, closed;
+
+    public FrameWriter(OutputStream out) {
+        this(out, DEFAULT_CAPACITY);
+    }
+
+    public FrameWriter(OutputStream out, int capacity) {
+        this(out, capacity, null);
+    }
+
+    /** Also passes every message to {@code recorder}, if not null, as it is written. */
+    FrameWriter(OutputStream out, SessionRecorder recorder) {
+        this(out, DEFAULT_CAPACITY, recorder);
+    }
+
+    private FrameWriter(OutputStream out, int capacity, SessionRecorder recorder) {
+        this.recorder = recorder;
+        this.queue = new ArrayBlockingQueue<>(capacity);
+        this.out = new BufferedOutputStream(out, BUFFER_SIZE);
+        this.thread = new Thread(this::run, "writer");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /** Queues a UTF-8 encoded message body. */
+    public void send(byte[] body) {
+        send(MessageBuffer.wrap(body));
+    }
+
+    /**
+     * Queues a serialized message. The writer thread releases {@code message} once it has been
+     * written. Blocks if the queue is full, so a slow client applies backpressure to whoever is
+     * producing output. Messages sent after {@link #close} are dropped.
+     */
+    public void send(MessageBuffer message) {
+        if (failed || closed) {
+            LOG.warning("Stream to client has " + (failed ? "failed" : "been closed") + ", dropping message");
+            message.release();
+            return;
+        }
+        try {
+            queue.put(message);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        }
+    }
+
+    /** Writes everything queued so far, then stops the writer thread. */
+    @Override
+    public void close() {
+        if (closed) return;
+        closed = true;
+        try {
+            queue.put(CLOSE);
+            thread.join(TimeUnit.SECONDS.toMillis(10));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /** Number of messages waiting to be written. */
+    public int queueDepth() {
+        return queue.size();
+    }
+
+    public long bytesWritten() {
+        return bytesWritten;
+    }
+
+    public long framesWritten() {
+        return framesWritten;
+    }
+
+    public long flushes() {
+        return flushes;
+    }
+
+    /** Bytes written during the most recent complete second of activity. */
+    public long bytesPerSecond() {
+        return bytesPerSecond;
+    }
+
+    private void run() {
+        var batch = new ArrayList<MessageBuffer>();
+        while (true) {
+            try {
+                batch.add(queue.take());
+            } catch (InterruptedException e) {
+                return;
+            }
+            queue.drainTo(batch);
+            for (var i = 0; i < batch.size(); i++) {
+                var message = batch.get(i);
+                if (message == CLOSE) {
+                    flush();
+                    discard(batch.subList(i + 1, batch.size()));
+                    return;
+                }
+                write(message);
+            }
+            batch.clear();
+            if (queue.isEmpty()) {
+                flush();
+            }
+        }
+    }
+
+    /** Releases messages that raced past the closed check, so no sender waits for room that never comes. */
+    private void discard(List<MessageBuffer> rest) {
+        queue.drainTo(rest);
+        for (var message : rest) {
+            message.release();
+        }
+    }
+
+    private void write(MessageBuffer message) {
+        if (failed) {
+            message.release();
+            return;
+        }
+        if (recorder != null) {
+            recorder.outbound(message);
+        }
+        var event = new FrameWriteEvent();
+        event.begin();
+        int frameBytes;
+        try {
+            frameBytes = message.writeFrame(out);
+        } catch (IOException e) {
+            fail(e);
+            return;
+        } finally {
+            event.serializeTime = message.serializeNanos;
+            message.release();
+        }
+        event.end();
+        if (event.shouldCommit()) {
+            event.bytes = frameBytes;
+            event.commit();
+        }
+        bytesWritten += frameBytes;
+        framesWritten++;
+        count(frameBytes);
+    }
+
+    private void count(long frameBytes) {
+        var now = System.nanoTime();
+        if (now - windowStart >= TimeUnit.SECONDS.toNanos(1)) {
+            bytesPerSecond = windowBytes;
+            windowStart = now;
+            windowBytes = 0;
+        }
+        windowBytes += frameBytes;
+    }
+
+    private void flush() {
+        if (failed) return;
+        try {
+            out.flush();
+            flushes++;
+            if (recorder != null) {
+                recorder.flush();
+            }
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    private void fail(IOException e) {
+        LOG.log(Level.SEVERE, "Failed to write to client", e);
+        failed = true;
+    }
+
+    private static final Logger LOG = Logger.getLogger("main");
+}
@@ -0,0 +1,14 @@
+package dev.secondsun.lsp;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Asks the build's annotation processor to generate Gson adapters for the data classes in the
+ * annotated package, in a {@code GeneratedAdapters} factory.
+ */
+@Retention(RetentionPolicy.SOURCE)
+@Target(ElementType.PACKAGE)
+public @interface GenerateAdapters {}
@@ -0,0 +1,66 @@
+package dev.secondsun.lsp;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import com.google.gson.TypeAdapter;
+import com.google.gson.reflect.TypeToken;
+import com.google.gson.stream.JsonReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.lang.reflect.Type;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Binds with a Gson instance's type adapters, reading from the frame with a {@link JsonReader}. A
+ * subclass of the bound class is written with the adapter for its runtime class, as Gson writes a
+ * field that holds one, so a binding writes the same JSON wherever the value appears.
+ */
+class GsonCodec implements JsonCodec {
+    static final GsonCodec DEFAULT = new GsonCodec(LSP.jsonb);
+
+    final Gson gson;
+    private final Map<Type, Binding<?>> bindings = new ConcurrentHashMap<>();
+
+    GsonCodec(Gson gson) {
+        this.gson = gson;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <T> Binding<T> binding(Type type) {
+        return (Binding<T>) bindings.computeIfAbsent(type, t -> new Adapted<>(t, gson.getAdapter(TypeToken.get(t))));
+    }
+
+    private class Adapted<T> implements Binding<T> {
+        final Type type;
+        final TypeAdapter<T> adapter;
+
+        Adapted(Type type, TypeAdapter<T> adapter) {
+            this.type = type;
+            this.adapter = adapter;
+        }
+
+        @Override
+        public T read(String json, int start) {
+            var reader = new StringReader(json);
+            try (var in = new JsonReader(reader)) {
+                reader.skip(start);
+                in.setLenient(true);
+                return adapter.read(in);
+            } catch (IOException e) {
+                throw new JsonParseException(e);
+            }
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public void write(MessageBuffer out, T value) {
+            if (value != null && type instanceof Class && value.getClass() != type) {
+                out.writeJson(gson, (TypeAdapter<T>) gson.getAdapter(value.getClass()), value);
+            } else {
+                out.writeJson(gson, adapter, value);
+            }
+        }
+    }
+}
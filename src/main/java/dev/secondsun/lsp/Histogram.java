@@ -0,0 +1,77 @@
+package dev.secondsun.lsp;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A lock-free histogram of non-negative longs. Each power of two is split into 8 buckets, so
+ * percentiles are within 12.5% of the true value. Recording doesn't allocate, so it can stay on
+ * for every message.
+ */
+public class Histogram {
+    private static final int SUB_BITS = 3, SUB_BUCKETS = 1 << SUB_BITS;
+    private static final int BUCKETS = (64 - SUB_BITS) * SUB_BUCKETS;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+    private final LongAdder count = new LongAdder(), sum = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    public void record(long value) {
+        if (value < 0) value = 0;
+        buckets.incrementAndGet(bucket(value));
+        count.increment();
+        sum.add(value);
+        var current = max.get();
+        while (value > current && !max.compareAndSet(current, value)) {
+            current = max.get();
+        }
+    }
+
+    public long count() {
+        return count.sum();
+    }
+
+    public long sum() {
+        return sum.sum();
+    }
+
+    public long max() {
+        return max.get();
+    }
+
+    public double mean() {
+        var n = count();
+        return n == 0 ? 0 : (double) sum() / n;
+    }
+
+    /**
+     * The {@code percent}th percentile, as the upper end of the bucket it falls in, but never more
+     * than {@link #max}. Zero if nothing has been recorded.
+     */
+    public long percentile(double percent) {
+        var n = count();
+        if (n == 0) return 0;
+        var rank = Math.max(1, (long) Math.ceil(percent / 100 * n));
+        var seen = 0L;
+        for (var i = 0; i < BUCKETS; i++) {
+            seen += buckets.get(i);
+            if (seen >= rank) return Math.min(upperBound(i), max());
+        }
+        return max();
+    }
+
+    static int bucket(long value) {
+        if (value < SUB_BUCKETS) return (int) value;
+        var exponent = 63 - Long.numberOfLeadingZeros(value);
+        var sub = (int) (value >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    static long upperBound(int bucket) {
+        if (bucket < SUB_BUCKETS) return bucket;
+        var shift = bucket / SUB_BUCKETS - 1;
+        var lower = (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << shift;
+        return lower + (1L << shift) - 1;
+    }
+}
@@ -0,0 +1,304 @@
+package dev.secondsun.lsp;
+
+import com.google.gson.JsonParseException;
+import java.net.URI;
+import java.net.URISyntaxException;
+
+/**
+ * A message read from the client. Unlike {@link Message}, only the envelope is decoded up front.
+ * {@code params}, and a response's {@code result} and {@code error}, stay as slices of the raw frame
+ * until they are asked for, so requests that are cancelled while queued are never deserialized.
+ */
+public class InboundMessage {
+    public String jsonrpc;
+    public Integer id;
+    public String method;
+
+    /** The raw frame and the bounds of its params, result and error values, or -1 if it has none. */
+    private String token;
+    private int paramsStart = -1, paramsEnd = -1;
+    private int resultStart = -1, resultEnd = -1;
+    private int errorStart = -1, errorEnd = -1;
+    /** Binds params, result and error: the connection's {@link ConnectionOptions#codec}. */
+    private JsonCodec codec;
+    /** Params already bound by {@link #params(Class)}. */
+    private Object params;
+    /** The binding {@link #params} were bound with, so a request for another type doesn't get them. */
+    private JsonCodec.Binding<?> paramsBinding;
+    /** Set when {@link #params} were replaced, so they no longer match the raw frame. */
+    private boolean rebound;
+    /** Set by the reader thread for requests, so $/cancelRequest can reach them once they have started. */
+    CancellationToken cancellation = CancellationToken.NONE;
+    /** When the message was queued, for {@link InboundQueue}'s starvation limit. */
+    long receivedNanos;
+
+    /** Binds params to {@code type}, parsing them from the raw frame on first use. */
+    @SuppressWarnings("unchecked")
+    public <T> T params(Class<T> type) {
+        if (params != null && type.isInstance(params)) {
+            return (T) params;
+        }
+        return params(codec.<T>binding(type));
+    }
+
+    /** Binds params with a binding that was looked up ahead of time, by {@link MethodRegistry}. */
+    @SuppressWarnings("unchecked")
+    <T> T params(JsonCodec.Binding<T> binding) {
+        if (params != null && binding == paramsBinding) {
+            return (T) params;
+        }
+        if (rebound) {
+            // Read the replacement, not the raw frame, and keep it as the params
+            return binding.read(rawParams(), 0);
+        }
+        return read(binding);
+    }
+
+    private <T> T read(JsonCodec.Binding<T> binding) {
+        if (paramsStart == -1) {
+            return null;
+        }
+        var value = binding.read(token, paramsStart);
+        params = value;
+        paramsBinding = binding;
+        return value;
+    }
+
+    /** The raw JSON text of params, or null if the message has none. */
+    public String rawParams() {
+        if (rebound) {
+            return codec.toJson(params);
+        }
+        return paramsStart == -1 ? null : token.substring(paramsStart, paramsEnd);
+    }
+
+    /** Whether this is a response with a non-null error. */
+    public boolean isError() {
+        return errorStart != -1 && !isNull(token, errorStart, errorEnd);
+    }
+
+    /** Binds the result of a response to {@code type}, or returns null if it has none. */
+    public <T> T result(Class<T> type) {
+        return resultStart == -1 ? null : codec.<T>binding(type).read(token, resultStart);
+    }
+
+    /** The error of a response, or null if it succeeded. */
+    public ResponseError error() {
+        return isError() ? codec.<ResponseError>binding(ResponseError.class).read(token, errorStart) : null;
+    }
+
+    /** The raw JSON text of a response's error, or null if it has none. */
+    public String rawError() {
+        return errorStart == -1 ? null : token.substring(errorStart, errorEnd);
+    }
+
+    /** Replaces params with an already bound value, such as several didChanges merged into one. */
+    void rebind(Object params) {
+        this.params = params;
+        this.paramsBinding = params == null ? null : codec.binding(params.getClass());
+        this.rebound = true;
+    }
+
+    /**
+     * The {@code textDocument.uri} of params, found by scanning rather than binding them, or null if
+     * there is none or it isn't a valid URI, such as one with unescaped spaces.
+     */
+    public URI documentUri() {
+        if (paramsStart == -1 || token.charAt(paramsStart) != '{') {
+            return null;
+        }
+        var textDocument = findMember(token, paramsStart, "textDocument");
+        if (textDocument == -1 || token.charAt(textDocument) != '{') {
+            return null;
+        }
+        var uri = findMember(token, textDocument, "uri");
+        if (uri == -1) {
+            return null;
+        }
+        var text = stringValue(token, uri, skipValue(token, uri));
+        if (text == null) {
+            return null;
+        }
+        try {
+            return new URI(text);
+        } catch (URISyntaxException e) {
+            return null;
+        }
+    }
+
+    /** Returns the start of the value of {@code key} in the object that starts at {@code i}, or -1. */
+    private static int findMember(String token, int i, String key) {
+        i = skipWhitespace(token, i + 1);
+        if (i < token.length() && token.charAt(i) == '}') {
+            return -1;
+        }
+        while (true) {
+            var keyStart = expect(token, i, '"');
+            var keyEnd = skipString(token, i);
+            i = expect(token, skipWhitespace(token, keyEnd), ':');
+            var start = skipWhitespace(token, i);
+            if (isKey(token, keyStart, keyEnd, key)) {
+                return start;
+            }
+            i = skipWhitespace(token, skipValue(token, start));
+            if (i < token.length() && token.charAt(i) == '}') {
+                return -1;
+            }
+            i = skipWhitespace(token, expect(token, i, ','));
+        }
+    }
+
+    /**
+     * Scans the envelope of {@code token} without tokenizing its params, result or error. Only {@code
+     * jsonrpc}, {@code id} and {@code method} are decoded; the rest are bound later with {@code codec}.
+     */
+    static InboundMessage decode(String token, JsonCodec codec) {
+        var message = new InboundMessage();
+        message.token = token;
+        message.codec = codec;
+        var i = expect(token, skipWhitespace(token, 0), '{');
+        i = skipWhitespace(token, i);
+        if (i < token.length() && token.charAt(i) == '}') {
+            return message;
+        }
+        while (true) {
+            var keyStart = expect(token, i, '"');
+            var keyEnd = skipString(token, i);
+            i = expect(token, skipWhitespace(token, keyEnd), ':');
+            var start = skipWhitespace(token, i);
+            var end = skipValue(token, start);
+            if (isKey(token, keyStart, keyEnd, "jsonrpc")) {
+                message.jsonrpc = stringValue(token, start, end);
+            } else if (isKey(token, keyStart, keyEnd, "id")) {
+                message.id = intValue(token, start, end);
+            } else if (isKey(token, keyStart, keyEnd, "method")) {
+                message.method = stringValue(token, start, end);
+            } else if (isKey(token, keyStart, keyEnd, "params")) {
+                message.paramsStart = start;
+                message.paramsEnd = end;
+            } else if (isKey(token, keyStart, keyEnd, "result")) {
+                message.resultStart = start;
+                message.resultEnd = end;
+            } else if (isKey(token, keyStart, keyEnd, "error")) {
+                message.errorStart = start;
+                message.errorEnd = end;
+            }
+            i = skipWhitespace(token, end);
+            if (i < token.length() && token.charAt(i) == '}') {
+                return message;
+            }
+            i = skipWhitespace(token, expect(token, i, ','));
+        }
+    }
+
+    private static boolean isKey(String token, int start, int end, String key) {
+        // start is just past the opening quote, end is just past the closing quote
+        var length = end - start - 1;
+        if (length == key.length()) {
+            return token.regionMatches(start, key, 0, key.length());
+        }
+        // An escaped key is longer than the name it spells
+        return length > key.length()
+                && hasEscape(token, start, end - 1)
+                && StreamingCodec.Cursor.unescape(token, start, end - 1).equals(key);
+    }
+
+    private static String stringValue(String token, int start, int end) {
+        if (token.charAt(start) != '"') {
+            return isNull(token, start, end) ? null : malformed(token, start);
+        }
+        if (hasEscape(token, start + 1, end - 1)) {
+            return StreamingCodec.Cursor.unescape(token, start + 1, end - 1);
+        }
+        return token.substring(start + 1, end - 1);
+    }
+
+    /** Whether there is a backslash in {@code [start, end)}, without looking any further. */
+    private static boolean hasEscape(String token, int start, int end) {
+        for (var i = start; i < end; i++) {
+            if (token.charAt(i) == '\\') return true;
+        }
+        return false;
+    }
+
+    private static Integer intValue(String token, int start, int end) {
+        if (isNull(token, start, end)) {
+            return null;
+        }
+        if (token.charAt(start) == '"') {
+            start++;
+            end--;
+        }
+        try {
+            return Integer.parseInt(token, start, end, 10);
+        } catch (NumberFormatException e) {
+            return malformed(token, start);
+        }
+    }
+
+    private static boolean isNull(String token, int start, int end) {
+        return end - start == 4 && token.startsWith("null", start);
+    }
+
+    private static int skipWhitespace(String token, int i) {
+        while (i < token.length()) {
+            var c = token.charAt(i);
+            if (c != ' ' && c != '\t' && c != '\r' && c != '\n') break;
+            i++;
+        }
+        return i;
+    }
+
+    private static int expect(String token, int i, char c) {
+        if (i >= token.length() || token.charAt(i) != c) {
+            malformed(token, i);
+        }
+        return i + 1;
+    }
+
+    /** Returns the index just past the string that starts at {@code i}. */
+    private static int skipString(String token, int i) {
+        for (i = i + 1; i < token.length(); i++) {
+            var c = token.charAt(i);
+            if (c == '\\') i++;
+            else if (c == '"') return i + 1;
+        }
+        return malformed(token, i);
+    }
+
+    /** Returns the index just past the value that starts at {@code i}. */
+    private static int skipValue(String token, int i) {
+        if (i >= token.length()) {
+            return malformed(token, i);
+        }
+        var c = token.charAt(i);
+        if (c == '"') {
+            return skipString(token, i);
+        }
+        if (c == '{' || c == '[') {
+            var depth = 0;
+            while (i < token.length()) {
+                c = token.charAt(i);
+                if (c == '"') {
+                    i = skipString(token, i);
+                    continue;
+                }
+                if (c == '{' || c == '[') depth++;
+                else if ((c == '}' || c == ']') && --depth == 0) return i + 1;
+                i++;
+            }
+            return malformed(token, i);
+        }
+        var start = i;
+        while (i < token.length()) {
+            c = token.charAt(i);
+            if (c == ',' || c == '}' || c == ']' || c == ' ' || c == '\t' || c == '\r' || c == '\n') break;
+            i++;
+        }
+        return i == start ? malformed(token, i) : i;
+    }
+
+    private static <T> T malformed(String token, int i) {
+        throw new JsonParseException(String.format("Malformed message at offset %d of %d", i, token.length()));
+    }
+}
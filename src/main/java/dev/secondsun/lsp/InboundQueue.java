@@ -0,0 +1,236 @@
+package dev.secondsun.lsp;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+/**
+ * Messages read from the client, waiting for the main loop.
+ *
+ * <p>Requests queued between two notifications are taken interactive first, then normal, then
+ * background, oldest first within a class. Notifications and responses keep their place: nothing
+ * queued after one is taken before it, and it isn't taken until everything before it has been. So a
+ * didChange is always handled after the requests that preceded it and before the ones that follow.
+ * A request that has waited longer than the starvation limit is taken next regardless of its class.
+ *
+ * <p>While typing, a didChange queued right behind another for the same document is merged into it,
+ * and a completion or signatureHelp replaces the queued one for the same document. Replaced requests
+ * are passed to the {@code superseded} callback so they can be answered.
+ */
+class InboundQueue {
+    private static final int INTERACTIVE = 0, NORMAL = 1, BACKGROUND = 2;
+
+    private final int capacity;
+    private final Set<String> interactive, background;
+    private final long starvationNanos;
+    private final boolean coalesceChanges;
+    private final Set<String> supersededMethods;
+    private final Consumer<InboundMessage> superseded;
+    private final List<InboundMessage> queue = new ArrayList<>();
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition(), notFull = lock.newCondition();
+    private long mergedChanges, droppedRequests;
+
+    InboundQueue(ConnectionOptions options, Consumer<InboundMessage> superseded) {
+        this.capacity = options.queueCapacity;
+        this.interactive = options.interactiveMethods;
+        this.background = options.backgroundMethods;
+        this.starvationNanos = options.maxQueueWait.toNanos();
+        this.coalesceChanges = options.coalesceChanges;
+        this.supersededMethods = options.supersededMethods;
+        this.superseded = superseded;
+    }
+
+    /** Adds {@code message}, waiting for space if the queue is full. */
+    void put(InboundMessage message) throws InterruptedException {
+        List<InboundMessage> dropped = List.of();
+        lock.lockInterruptibly();
+        try {
+            if (!queue.isEmpty() && merge(queue.get(queue.size() - 1), message)) {
+                return;
+            }
+            while (queue.size() >= capacity) {
+                notFull.await();
+            }
+            message.receivedNanos = System.nanoTime();
+            if (message.id != null && supersededMethods.contains(message.method)) {
+                dropped = removeSuperseded(message);
+            }
+            queue.add(message);
+            notEmpty.signal();
+        } finally {
+            lock.unlock();
+        }
+        // Answer outside the lock, since sending can block on a slow client
+        for (var r : dropped) {
+            superseded.accept(r);
+        }
+    }
+
+    /** Takes the next message to handle, or returns null if none arrives within {@code timeout}. */
+    InboundMessage poll(long timeout, TimeUnit unit) throws InterruptedException {
+        var nanos = unit.toNanos(timeout);
+        lock.lockInterruptibly();
+        try {
+            while (queue.isEmpty()) {
+                if (nanos <= 0) {
+                    return null;
+                }
+                nanos = notEmpty.awaitNanos(nanos);
+            }
+            var message = queue.remove(next());
+            notFull.signal();
+            return message;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    boolean removeIf(Predicate<InboundMessage> filter) {
+        lock.lock();
+        try {
+            var removed = queue.removeIf(filter);
+            if (removed) {
+                notFull.signalAll();
+            }
+            return removed;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    int size() {
+        lock.lock();
+        try {
+            return queue.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Number of didChange notifications that were merged into an earlier one. */
+    long mergedChanges() {
+        lock.lock();
+        try {
+            return mergedChanges;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Number of requests that were replaced by a newer one before they started. */
+    long droppedRequests() {
+        lock.lock();
+        try {
+            return droppedRequests;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Removes queued requests made obsolete by {@code newer}, merging any didChanges they separated. */
+    private List<InboundMessage> removeSuperseded(InboundMessage newer) {
+        var uri = newer.documentUri();
+        if (uri == null) {
+            return List.of();
+        }
+        var dropped = new ArrayList<InboundMessage>();
+        for (var i = queue.size() - 1; i >= 0; i--) {
+            var older = queue.get(i);
+            if (older.id == null || !newer.method.equals(older.method) || !uri.equals(older.documentUri())) {
+                continue;
+            }
+            queue.remove(i);
+            dropped.add(older);
+            if (i > 0 && i < queue.size() && merge(queue.get(i - 1), queue.get(i))) {
+                queue.remove(i);
+            }
+        }
+        droppedRequests += dropped.size();
+        if (!dropped.isEmpty()) {
+            notFull.signalAll();
+        }
+        return dropped;
+    }
+
+    /**
+     * Appends the content changes of {@code later} to {@code earlier} if both are didChange
+     * notifications for the same document. Returns false, leaving both untouched, if they can't be
+     * merged.
+     */
+    private boolean merge(InboundMessage earlier, InboundMessage later) {
+        if (!coalesceChanges || !isChange(earlier) || !isChange(later)) {
+            return false;
+        }
+        DidChangeTextDocumentParams first, second;
+        try {
+            var uri = later.documentUri();
+            if (uri == null || !uri.equals(earlier.documentUri())) {
+                return false;
+            }
+            first = earlier.params(DidChangeTextDocumentParams.class);
+            second = later.params(DidChangeTextDocumentParams.class);
+        } catch (RuntimeException e) {
+            // Leave malformed params for the handler to report
+            return false;
+        }
+        if (first == null || second == null) {
+            return false;
+        }
+        if (first.contentChanges == null || second.contentChanges == null) {
+            return false;
+        }
+        if (first.textDocument == null || second.textDocument == null) {
+            return false;
+        }
+        for (var change : second.contentChanges) {
+            // A change without a range replaces the whole document, so nothing before it matters
+            if (change.range == null) {
+                first.contentChanges.clear();
+            }
+            first.contentChanges.add(change);
+        }
+        first.textDocument.version = second.textDocument.version;
+        earlier.rebind(first);
+        mergedChanges++;
+        return true;
+    }
+
+    private static boolean isChange(InboundMessage message) {
+        return message.id == null && "textDocument/didChange".equals(message.method);
+    }
+
+    /** Index of the message to take next. */
+    private int next() {
+        var now = System.nanoTime();
+        var best = -1;
+        var bestRank = Integer.MAX_VALUE;
+        for (var i = 0; i < queue.size(); i++) {
+            var message = queue.get(i);
+            if (message.method == null || message.id == null) {
+                // Notifications and responses are barriers
+                return best == -1 ? i : best;
+            }
+            if (now - message.receivedNanos > starvationNanos) {
+                return i;
+            }
+            var rank = rank(message.method);
+            if (rank < bestRank) {
+                best = i;
+                bestRank = rank;
+            }
+        }
+        return best;
+    }
+
+    private int rank(String method) {
+        if (interactive.contains(method)) return INTERACTIVE;
+        if (background.contains(method)) return BACKGROUND;
+        return NORMAL;
+    }
+}
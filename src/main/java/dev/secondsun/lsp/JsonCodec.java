@@ -0,0 +1,70 @@
+package dev.secondsun.lsp;
+
+import com.google.gson.Gson;
+import java.lang.reflect.Type;
+
+/**
+ * Binds params, results and errors to Java objects. A connection uses the codec in {@link
+ * ConnectionOptions#codec}; the JSON-RPC envelope around them is scanned and written by {@link LSP}
+ * itself, whichever codec is used.
+ */
+public interface JsonCodec {
+
+    /** Reads and writes values of one type. Bindings are looked up once and reused for every message. */
+    interface Binding<T> {
+        /**
+         * Reads the value at offset {@code start} of {@code json}, after any whitespace. JSON null
+         * reads as null.
+         */
+        T read(String json, int start);
+
+        /** Writes {@code value}, or null, to {@code out}. A subclass is written as its runtime class. */
+        void write(MessageBuffer out, T value);
+    }
+
+    /** The binding for {@code type}, which may be a parameterized type such as {@code List<TextEdit>}. */
+    <T> Binding<T> binding(Type type);
+
+    /** Writes {@code value} as its runtime class. */
+    @SuppressWarnings("unchecked")
+    default void write(MessageBuffer out, Object value) {
+        if (value == null) {
+            out.writeAscii("null");
+            return;
+        }
+        ((Binding<Object>) binding(value.getClass())).write(out, value);
+    }
+
+    default <T> T fromJson(String json, Class<T> type) {
+        return this.<T>binding(type).read(json, 0);
+    }
+
+    default String toJson(Object value) {
+        var buffer = MessageBuffer.acquire();
+        try {
+            write(buffer, value);
+            return buffer.body();
+        } finally {
+            buffer.release();
+        }
+    }
+
+    /** Binds with {@link LSP#jsonb}, so with the generated adapters and Gson's reflection. The default. */
+    static JsonCodec gson() {
+        return GsonCodec.DEFAULT;
+    }
+
+    /** Binds with the type adapters of {@code gson}, for servers that register their own. */
+    static JsonCodec gson(Gson gson) {
+        return new GsonCodec(gson);
+    }
+
+    /**
+     * Binds without Gson, reading straight from the frame and writing straight into the outgoing
+     * buffer. Writes the same bytes as {@link #gson()}, subclasses, nulls and escapes included, and
+     * accepts the same input.
+     */
+    static JsonCodec streaming() {
+        return StreamingCodec.INSTANCE;
+    }
+}
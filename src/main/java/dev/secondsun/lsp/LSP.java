@@ -3,22 +3,35 @@ package dev.secondsun.lsp;
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
 import com.google.gson.JsonElement;
+import com.google.gson.JsonPrimitive;
 
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.nio.charset.Charset;
+import java.time.Duration;
 import java.util.Optional;
 import java.util.UUID;
-import java.util.concurrent.ArrayBlockingQueue;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeoutException;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Function;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 public class LSP {
 
-    public static final Gson jsonb = new GsonBuilder().create();
+    /** Protocol classes are bound by the adapters generated at build time, everything else by reflection. */
+    public static final Gson jsonb = new GsonBuilder().registerTypeAdapterFactory(new GeneratedAdapters()).create();
+
+    /** Log records the {@link ConnectionOptions#asyncLogging} handler holds for its background thread. */
+    private static final int LOG_BUFFER_CAPACITY = 4096;
 
     private static String readHeader(InputStream client) {
         var line = new StringBuilder();
@@ -66,19 +79,25 @@ public class LSP {
         while (Character.isWhitespace(next)) {
             next = read(client);
         }
-        // Append next
-        var result = new StringBuilder();
-        var i = 0;
-        while (true) {
-            result.append(next);
-            i++;
-            if (i == byteLength)
-                break;
-            next = read(client);
+        // Read the rest of the body in bulk and decode it once
+        var body = new byte[byteLength];
+        body[0] = (byte) next;
+        try {
+            var read = 1 + client.readNBytes(body, 1, byteLength - 1);
+            if (read < byteLength) {
+                LOG.warning("Stream from client has been closed, throwing kill exception...");
+                throw new EndOfStream();
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
         }
-        return result.toString();
+        return new String(body, UTF_8);
     }
 
+    /**
+     * Reads a single message without buffering past its end. Connections should use a {@link
+     * FrameReader}, which reads in bulk.
+     */
     public static String nextToken(InputStream client) {
         var contentLength = -1;
         while (true) {
@@ -93,21 +112,36 @@ public class LSP {
         }
     }
 
+    public static String nextToken(FrameReader client) {
+        return client.nextToken();
+    }
+
     public static Message parseMessage(String token) {
         return jsonb.fromJson(token, Message.class);
     }
 
+    /**
+     * Decodes the envelope of a message. Params are left as a slice of {@code token} and only bound
+     * when {@link InboundMessage#params(Class)} is called.
+     */
+    public static InboundMessage decodeMessage(String token) {
+        return decodeMessage(token, JsonCodec.gson());
+    }
+
+    /** Decodes the envelope of a message whose params, result or error will be bound with {@code codec}. */
+    public static InboundMessage decodeMessage(String token, JsonCodec codec) {
+        return InboundMessage.decode(token, codec);
+    }
+
     private static final Charset UTF_8 = Charset.forName("UTF-8");
 
-    private static void writeClient(OutputStream client, String messageText) {
-        var messageBytes = messageText.getBytes(UTF_8);
-        var headerText = String.format("Content-Length: %d\r\n\r\n", messageBytes.length);
-        var headerBytes = headerText.getBytes(UTF_8);
+    private static void writeClient(OutputStream client, MessageBuffer message) {
         try {
-            client.write(headerBytes);
-            client.write(messageBytes);
+            message.writeFrame(client);
         } catch (IOException e) {
             throw new RuntimeException(e);
+        } finally {
+            message.release();
         }
     }
 
@@ -118,65 +152,116 @@ public class LSP {
         return jsonb.toJson(message);
     }
 
-    public static void respond(OutputStream client, int requestId, Object params) {
+    private static Object unwrap(Object params) {
         if (params instanceof Optional) {
             var option = (Optional) params;
-            params = option.orElse(null);
+            return option.orElse(null);
         }
-        var jsonText = toJson(params);
-        var messageText = String.format("{\"jsonrpc\":\"2.0\",\"id\":%d,\"result\":%s}", requestId, jsonText);
-        writeClient(client, messageText);
+        return params;
     }
 
-    private static void notifyClient(OutputStream client, String method, Object params) {
-        if (params instanceof Optional) {
-            var option = (Optional) params;
-            params = option.orElse(null);
-        }
-        var jsonText = toJson(params);
-        var messageText = String.format("{\"jsonrpc\":\"2.0\",\"method\":\"%s\",\"params\":%s}", method, jsonText);
-        writeClient(client, messageText);
+    /** Gson's binding for Object writes each value as its runtime class. Bindings are cached. */
+    private static JsonCodec.Binding<Object> runtimeType() {
+        return JsonCodec.gson().binding(Object.class);
+    }
+
+    /**
+     * Serializes a response envelope and its result straight into a pooled buffer, writing the result
+     * with {@code binding}. Optionals are unwrapped.
+     */
+    static MessageBuffer response(int requestId, JsonCodec.Binding<Object> binding, Object result) {
+        var message = MessageBuffer.acquire();
+        message.writeAscii("{\"jsonrpc\":\"2.0\",\"id\":");
+        message.writeInt(requestId);
+        message.writeAscii(",\"result\":");
+        binding.write(message, unwrap(result));
+        message.write((byte) '}');
+        return message;
+    }
+
+    private static MessageBuffer errorResponse(JsonCodec codec, int requestId, ResponseError error) {
+        var message = MessageBuffer.acquire();
+        message.writeAscii("{\"jsonrpc\":\"2.0\",\"id\":");
+        message.writeInt(requestId);
+        message.writeAscii(",\"error\":");
+        codec.write(message, error);
+        message.write((byte) '}');
+        return message;
+    }
+
+    public static void respondError(FrameWriter client, int requestId, int code, String message) {
+        respondError(JsonCodec.gson(), client, requestId, code, message);
+    }
+
+    static void respondError(JsonCodec codec, FrameWriter client, int requestId, int code, String message) {
+        client.send(errorResponse(codec, requestId, new ResponseError(code, message, null)));
+    }
+
+    public static void respond(OutputStream client, int requestId, Object params) {
+        writeClient(client, response(requestId, runtimeType(), params));
+    }
+
+    public static void respond(FrameWriter client, int requestId, Object params) {
+        client.send(response(requestId, runtimeType(), params));
+    }
+
+    static void notifyClient(JsonCodec codec, FrameWriter client, String method, Object params) {
+        var message = MessageBuffer.acquire();
+        message.writeAscii("{\"jsonrpc\":\"2.0\",\"method\":");
+        message.writeString(method);
+        message.writeAscii(",\"params\":");
+        codec.write(message, unwrap(params));
+        message.write((byte) '}');
+        client.send(message);
     }
 
     /**
      * 
-     * @param client output stream writes to client
+     * @param codec binds the params
+     * @param client writer that owns the stream to the client
+     * @param id request id, from {@link ClientRequests#nextId()}
      * @param method The method to be invoked.
      * @param params The method's params (gets turned into a json string)
      * @return request id to be used to handle the response from the client
      */
-    private static int requestClient(OutputStream client, String method, Object params) {
-        if (params instanceof Optional) {
-            var option = (Optional) params;
-            params = option.orElse(null);
-        }
-
-        var id = (int) (Math.random() * 20000);
-
-        var jsonText = toJson(params);
-        var messageText = String.format("{\"jsonrpc\":\"2.0\",\"method\":\"%s\",\"params\":%s,\"id\":%d}", method,
-                jsonText, id);
-        writeClient(client, messageText);
+    private static int requestClient(JsonCodec codec, FrameWriter client, int id, String method, Object params) {
+        var message = MessageBuffer.acquire();
+        message.writeAscii("{\"jsonrpc\":\"2.0\",\"method\":");
+        message.writeString(method);
+        message.writeAscii(",\"params\":");
+        codec.write(message, unwrap(params));
+        message.writeAscii(",\"id\":");
+        message.writeInt(id);
+        message.write((byte) '}');
+        client.send(message);
         return id;
     }
 
     private static class RealClient implements LanguageClient {
-        final OutputStream send;
+        final JsonCodec codec;
+        final FrameWriter send;
         final InputStream recv;
+        final ClientRequests requests;
+        final Duration progressInterval;
+        final AtomicInteger progressTokens = new AtomicInteger();
 
-        RealClient(OutputStream send, InputStream recv) {
+        RealClient(JsonCodec codec, FrameWriter send, InputStream recv, ClientRequests requests,
+                Duration progressInterval) {
+            this.codec = codec;
             this.send = send;
             this.recv = recv;
+            this.requests = requests;
+            this.progressInterval = progressInterval;
         }
 
         @Override
         public void publishDiagnostics(PublishDiagnosticsParams params) {
-            notifyClient(send, "textDocument/publishDiagnostics", params);
+            notifyClient(codec, send, "textDocument/publishDiagnostics", params);
         }
 
         @Override
         public void showMessage(ShowMessageParams params) {
-            notifyClient(send, "window/showMessage", params);
+            notifyClient(codec, send, "window/showMessage", params);
         }
 
         @Override
@@ -186,40 +271,244 @@ public class LSP {
             params.method = method;
             params.registerOptions = options;
 
-            notifyClient(send, "client/registerCapability", params);
+            notifyClient(codec, send, "client/registerCapability", params);
         }
 
         @Override
         public void customNotification(String method, JsonElement params) {
-            notifyClient(send, method, params);
+            notifyClient(codec, send, method, params);
         }
 
         @Override
         public int showMessageRequest(ShowMessageRequestParams requestParams) {
-            return requestClient(send, "window/showMessageRequest", requestParams);
+            return requestClient(codec, send, requests.nextId(), "window/showMessageRequest", requestParams);
+        }
+
+        @Override
+        public <R> CompletableFuture<R> request(String method, Object params, Class<R> resultType) {
+            var id = requests.nextId();
+            var future = requests.register(id, resultType);
+            future.whenComplete(
+                    (result, error) -> {
+                        if (error instanceof CancellationException || error instanceof TimeoutException) {
+                            var cancel = new CancelParams();
+                            cancel.id = id;
+                            notifyClient(codec, send, "$/cancelRequest", cancel);
+                        }
+                    });
+            requestClient(codec, send, id, method, params);
+            return future;
+        }
+
+        @Override
+        public void progress(JsonElement token, Object value) {
+            notifyClient(codec, send, "$/progress", new ProgressParams(token, value));
+        }
+
+        @Override
+        public Progress workDoneProgress(JsonElement token) {
+            return new Progress(token, this, progressInterval);
+        }
+
+        @Override
+        public CompletableFuture<Progress> createProgress() {
+            var token = new JsonPrimitive("progress-" + progressTokens.incrementAndGet());
+            return request("window/workDoneProgress/create", new WorkDoneProgressCreateParams(token), Object.class)
+                    .thenApply(__ -> new Progress(token, this, progressInterval));
         }
     }
 
+    /** Runs the handler for {@code r} and sends its response. Returns true if the connection should close. */
+    private static boolean handle(LanguageServer server, MethodRegistry methods, JsonCodec codec, FrameWriter send,
+            Metrics metrics, Tracer tracer, InboundMessage r, Map<Integer, CancellationToken> running) {
+        var isRequest = r.id != null && r.method != null;
+        var stats = r.method == null ? null : metrics.method(methods.contains(r.method) ? r.method : Metrics.UNKNOWN);
+        var queueWait = System.nanoTime() - r.receivedNanos;
+        if (stats != null) {
+            stats.count.increment();
+            stats.queueWait.record(queueWait);
+        }
+        var event = new DispatchEvent();
+        event.begin();
+        if (isRequest && r.cancellation.isCanceled()) {
+            stats.errors.increment();
+            running.remove(r.id);
+            respondError(codec, send, r.id, ErrorCodes.RequestCancelled, "Request was canceled before it started");
+            dispatched(event, r, queueWait, "cancelled");
+            return false;
+        }
+        var outcome = "ok";
+        var traced = r.method != null && !tracer.isOff();
+        var started = traced ? System.nanoTime() : 0;
+        CancellationToken.setCurrent(r.cancellation);
+        try {
+            if (r.method == null) {
+                int id = r.id;
+                if (r.isError()) {
+                    LOG.severe(r.rawError());
+                    return false;
+                }
+                var result = r.result(MessageActionItem.class);
+                server.handleShowMessageRequestResponse(id, result);
+
+                return false;
+            } else if (r.method.equals("exit")) {
+                LOG.warning("Got exit message, exiting...");
+                return true;
+            } else {
+                if (r.method.equals("initialize")) {
+                    var params = r.params(InitializeParams.class);
+                    if (params != null) tracer.set(params.trace);
+                }
+                var handler = methods.get(r.method);
+                if (handler != null) {
+                    handler.handle(r, send, stats);
+                } else if (isRequest) {
+                    stats.errors.increment();
+                    outcome = "error";
+                    respondError(codec, send, r.id, ErrorCodes.MethodNotFound, "Unhandled method " + r.method);
+                } else if (!r.method.startsWith("$/")) {
+                    LOG.warning(() -> String.format("Don't know what to do with method `%s`", r.method));
+                }
+            }
+        } catch (CancellationException e) {
+            LOG.info(() -> String.format("Request %d was canceled while running", r.id));
+            outcome = "cancelled";
+            if (isRequest) {
+                stats.errors.increment();
+                respondError(codec, send, r.id, ErrorCodes.RequestCancelled, e.getMessage());
+            }
+        } catch (Exception e) {
+            LOG.log(Level.SEVERE, e.getMessage(), e);
+            outcome = "error";
+            if (isRequest) {
+                stats.errors.increment();
+                respondError(codec, send, r.id, ErrorCodes.InternalError, e.getMessage());
+            }
+        } finally {
+            CancellationToken.setCurrent(CancellationToken.NONE);
+            if (isRequest) {
+                running.remove(r.id);
+            }
+            if (r.method != null) {
+                dispatched(event, r, queueWait, outcome);
+            }
+            if (traced) {
+                tracer.handled(r, System.nanoTime() - started, outcome);
+            }
+        }
+        return false;
+    }
+
+    /** Commits {@code event} for {@code r}, if a flight recording has dispatch events enabled. */
+    private static void dispatched(DispatchEvent event, InboundMessage r, long queueWait, String outcome) {
+        event.end();
+        if (!event.shouldCommit()) return;
+        event.method = r.method;
+        event.id = r.id == null ? -1 : r.id;
+        event.queueWait = queueWait;
+        event.outcome = outcome;
+        event.commit();
+    }
+
+    /** Dumps {@code metrics} to {@link ConnectionOptions#metricsFile} on a daemon thread. */
+    private static ScheduledExecutorService scheduleDumps(Metrics metrics, ConnectionOptions options) {
+        var executor =
+                Executors.newSingleThreadScheduledExecutor(
+                        runnable -> {
+                            var thread = new Thread(runnable, "metrics");
+                            thread.setDaemon(true);
+                            return thread;
+                        });
+        var period = options.metricsInterval.toMillis();
+        executor.scheduleAtFixedRate(() -> metrics.dump(options.metricsFile), period, period, TimeUnit.MILLISECONDS);
+        return executor;
+    }
+
+    public static void connect(Function<LanguageClient, LanguageServer> serverFactory, InputStream receive,
+            OutputStream out) {
+        connect(serverFactory, receive, out, new ConnectionOptions());
+    }
+
     public static void connect(Function<LanguageClient, LanguageServer> serverFactory, InputStream receive,
-            OutputStream send) {
-        var server = serverFactory.apply(new RealClient(send, receive));
-        var pending = new ArrayBlockingQueue<Message>(10);
-        var endOfStream = new Message();
+            OutputStream out, ConnectionOptions options) {
+        // Log on a separate thread, so a slow log file never holds up reading or handling messages
+        var logs = options.asyncLogging ? AsyncLogHandler.install(LOG, LOG_BUFFER_CAPACITY) : null;
+        try {
+            serve(serverFactory, receive, out, options);
+        } finally {
+            if (logs != null) {
+                logs.uninstall();
+            }
+        }
+    }
+
+    private static void serve(Function<LanguageClient, LanguageServer> serverFactory, InputStream receive,
+            OutputStream out, ConnectionOptions options) {
+        // All output goes through one writer thread, so frames from background work never interleave
+        var recorder = options.recordTo == null ? null : SessionRecorder.open(options.recordTo);
+        var send = new FrameWriter(out, recorder);
+        var codec = options.codec;
+        var requests = new ClientRequests();
+        var server = serverFactory.apply(new RealClient(codec, send, receive, requests, options.progressInterval));
+        var scheduler = new Scheduler();
+        server.scheduler = scheduler;
+        if (options.trackDocuments)
+            server.documents = new TextDocuments();
+        var methods = MethodRegistry.of(server, codec, options.partialResultChunk);
+        var metrics = new Metrics();
+        if (!methods.contains("$/metrics"))
+            methods.request("$/metrics", Object.class, Metrics.Summary.class, params -> metrics.summary());
+        var tracer = new Tracer(codec, send);
+        if (!methods.contains("$/setTrace"))
+            methods.notification("$/setTrace", SetTraceParams.class, params -> tracer.set(params.value));
+        var dumpMetrics = options.metricsFile == null ? null : scheduleDumps(metrics, options);
+        var dispatcher = ConcurrentDispatcher.create(options);
+        // Tokens of requests that have been read but not yet answered
+        var running = new ConcurrentHashMap<Integer, CancellationToken>();
+        var pending =
+                new InboundQueue(
+                        options,
+                        r -> {
+                            running.remove(r.id);
+                            respondError(codec, send, r.id, ErrorCodes.ContentModified, "Request was superseded by a newer one");
+                        });
+        metrics.watch(pending);
+        metrics.watch(scheduler);
+        var endOfStream = new InboundMessage();
 
         // Read messages and process cancellations on a separate thread
         class MessageReader implements Runnable {
-            void peek(Message message) {
-                if (message.method != null) {// request
-                    if (message.method.equals("$/cancelRequest")) {
-                        var params = jsonb.fromJson(message.params.toString(), CancelParams.class);
-                        var removed = pending.removeIf(r -> r.id != null && r.id.equals(params.id));
-                        if (removed)
-                            LOG.info(String.format("Cancelled request %d, which had not yet started", params.id));
-                        else
-                            LOG.info(String.format("Cannot cancel request %d because it has already started",
-                                    params.id));
+            /** Returns true if the message has been fully handled and shouldn't be queued. */
+            boolean peek(InboundMessage message) {
+                if (message.method == null) {// response
+                    // Complete futures here, so a handler waiting on the client can't block its own answer
+                    return message.id != null && requests.complete(message);
+                }
+                if (message.method.equals("$/cancelRequest")) {
+                    var params = message.params(CancelParams.class);
+                    var token = running.get(params.id);
+                    if (token == null) {
+                        LOG.info(() -> String.format("Cannot cancel request %d because it has already finished",
+                                params.id));
+                        return true;
                     }
+                    token.cancel();
+                    var removed = pending.removeIf(r -> r.method != null && r.id != null && r.id.equals(params.id));
+                    if (removed) {
+                        running.remove(params.id);
+                        respondError(codec, send, params.id, ErrorCodes.RequestCancelled, "Request was canceled before it started");
+                        LOG.info(() -> String.format("Cancelled request %d, which had not yet started", params.id));
+                    } else {
+                        LOG.info(() -> String.format("Cancelling request %d, which has already started", params.id));
+                    }
+                    return true;
                 }
+                if (message.id != null) {
+                    message.cancellation = new CancellationToken();
+                    running.put(message.id, message.cancellation);
+                }
+                return false;
             }
 
             private boolean kill() {
@@ -237,12 +526,25 @@ public class LSP {
             public void run() {
                 LOG.info("Placing incoming messages on queue...");
 
+                var frames = new FrameReader(receive);
                 while (true) {
                     try {
-                        var token = nextToken(receive);
-                        var message = parseMessage(token);
-                        peek(message);
-                        pending.put(message);
+                        var token = nextToken(frames);
+                        if (recorder != null)
+                            recorder.inbound(token);
+                        var read = new FrameReadEvent();
+                        read.begin();
+                        var message = decodeMessage(token, codec);
+                        read.end();
+                        if (read.shouldCommit()) {
+                            read.method = message.method;
+                            read.id = message.id == null ? -1 : message.id;
+                            read.bytes = frames.lastLength;
+                            read.commit();
+                        }
+                        // Cancellations and responses are handled by peek, so they never wait for room in the queue
+                        if (!peek(message))
+                            pending.put(message);
                     } catch (EndOfStream __) {
                         if (kill())
                             return;
@@ -260,10 +562,10 @@ public class LSP {
         LOG.info("Reading messages from queue...");
         var hasAsyncWork = false;
         processMessages: while (true) {
-            Message r;
+            InboundMessage r;
             try {
-                // Take a break periodically
-                r = pending.poll(200, TimeUnit.MILLISECONDS);
+                // Wait for the next message, or stop to run idle work as soon as the queue drains
+                r = pending.poll(hasAsyncWork ? 0 : Long.MAX_VALUE, TimeUnit.NANOSECONDS);
             } catch (Exception e) {
                 LOG.log(Level.SEVERE, e.getMessage(), e);
                 continue;
@@ -273,204 +575,51 @@ public class LSP {
                 LOG.warning("Stream from client has been closed, exiting...");
                 break processMessages;
             }
-            // If poll(_) failed, loop again
+            // The queue is empty, so the client has gone quiet
             if (r == null) {
-                if (hasAsyncWork) {
+                if (dispatcher == null) {
                     server.doAsyncWork();
-                    hasAsyncWork = false;
+                    scheduler.idle();
+                } else {
+                    // Requests may still be running, so don't hold up the next message waiting for them
+                    dispatcher.whenIdle(
+                            () -> {
+                                scheduler.execute(server::doAsyncWork);
+                                scheduler.idle();
+                            });
                 }
+                hasAsyncWork = false;
                 continue;
             }
             // Otherwise, process the new message
             hasAsyncWork = true;
-            try {
-                if (r.method == null) {
-                    MessageActionItem result = jsonb.fromJson(r.result.toString(), MessageActionItem.class);
-                    int id = r.id;
-                    if (r.error != null && !r.error.toString().isBlank()) {
-                        LOG.severe(r.error.toString());
-                        break;
-                    }
-                    server.handleShowMessageRequestResponse(id, result);
-
-                    break;
-                } else {
-                    switch (r.method) {
-                        case "initialize": {
-                            var params = jsonb.fromJson(r.params.toString(), InitializeParams.class);
-                            var response = server.initialize(params);
-                            respond(send, r.id, response);
-                            break;
-                        }
-                        case "initialized": {
-                            server.initialized();
-                            break;
-                        }
-                        case "shutdown": {
-                            LOG.warning("Got shutdown message");
-                            respond(send, r.id, null);
-                            break;
-                        }
-                        case "exit": {
-                            LOG.warning("Got exit message, exiting...");
-                            break processMessages;
-                        }
-                        case "workspace/didChangeWorkspaceFolders": {
-                            var params = jsonb.fromJson(r.params.toString(), DidChangeWorkspaceFoldersParams.class);
-                            server.didChangeWorkspaceFolders(params);
-                            break;
-                        }
-                        case "workspace/didChangeConfiguration": {
-                            var params = jsonb.fromJson(r.params.toString(), DidChangeConfigurationParams.class);
-                            server.didChangeConfiguration(params);
-                            break;
-                        }
-                        case "workspace/didChangeWatchedFiles": {
-                            var params = jsonb.fromJson(r.params.toString(), DidChangeWatchedFilesParams.class);
-                            server.didChangeWatchedFiles(params);
-                            break;
-                        }
-                        case "workspace/symbol": {
-                            var params = jsonb.fromJson(r.params.toString(), WorkspaceSymbolParams.class);
-                            var response = server.workspaceSymbols(params);
-                            respond(send, r.id, response);
-                            break;
-                        }
-                        case "textDocument/documentLink": {
-                            var params = jsonb.fromJson(r.params.toString(), DocumentLinkParams.class);
-                            var response = server.documentLink(params);
-                            respond(send, r.id, response);
-                            break;
-                        }
-                        case "textDocument/didOpen": {
-                            var params = jsonb.fromJson(r.params.toString(), DidOpenTextDocumentParams.class);
-                            server.didOpenTextDocument(params);
-                            break;
-                        }
-                        case "textDocument/didChange": {
-                            var params = jsonb.fromJson(r.params.toString(), DidChangeTextDocumentParams.class);
-                            server.didChangeTextDocument(params);
-                            break;
-                        }
-                        case "textDocument/willSave": {
-                            var params = jsonb.fromJson(r.params.toString(), WillSaveTextDocumentParams.class);
-                            server.willSaveTextDocument(params);
-                            break;
-                        }
-                        case "textDocument/willSaveWaitUntil": {
-                            var params = jsonb.fromJson(r.params.toString(), WillSaveTextDocumentParams.class);
-                            var response = server.willSaveWaitUntilTextDocument(params);
-                            respond(send, r.id, response);
-                            break;
-                        }
-                        case "textDocument/didSave": {
-                            var params = jsonb.fromJson(r.params.toString(), DidSaveTextDocumentParams.class);
-                            server.didSaveTextDocument(params);
-                            break;
-                        }
-                        case "textDocument/didClose": {
-                            var params = jsonb.fromJson(r.params.toString(), DidCloseTextDocumentParams.class);
-                            server.didCloseTextDocument(params);
-                            break;
-                        }
-                        case "textDocument/completion": {
-                            var params = jsonb.fromJson(r.params.toString(), TextDocumentPositionParams.class);
-                            var response = server.completion(params);
-                            respond(send, r.id, response);
-                            break;
-                        }
-                        case "completionItem/resolve": {
-                            var params = jsonb.fromJson(r.params.toString(), CompletionItem.class);
-                            var response = server.resolveCompletionItem(params);
-                            respond(send, r.id, response);
-                            break;
-                        }
-                        case "textDocument/hover": {
-                            var params = jsonb.fromJson(r.params.toString(), TextDocumentPositionParams.class);
-                            var response = server.hover(params);
-                            respond(send, r.id, response);
-                            break;
-                        }
-                        case "textDocument/signatureHelp": {
-                            var params = jsonb.fromJson(r.params.toString(), TextDocumentPositionParams.class);
-                            var response = server.signatureHelp(params);
-                            respond(send, r.id, response);
-                            break;
-                        }
-                        case "textDocument/definition": {
-                            var params = jsonb.fromJson(r.params.toString(), TextDocumentPositionParams.class);
-                            var response = server.gotoDefinition(params);
-                            respond(send, r.id, response);
-                            break;
-                        }
-                        case "textDocument/references": {
-                            var params = jsonb.fromJson(r.params.toString(), ReferenceParams.class);
-                            var response = server.findReferences(params);
-                            respond(send, r.id, response);
-                            break;
-                        }
-                        case "textDocument/documentSymbol": {
-                            var params = jsonb.fromJson(r.params.toString(), DocumentSymbolParams.class);
-                            var response = server.documentSymbol(params);
-                            respond(send, r.id, response);
-                            break;
-                        }
-                        case "textDocument/codeAction": {
-                            var params = jsonb.fromJson(r.params.toString(), CodeActionParams.class);
-                            var response = server.codeAction(params);
-                            respond(send, r.id, response);
-                            break;
-                        }
-                        case "textDocument/codeLens": {
-                            var params = jsonb.fromJson(r.params.toString(), CodeLensParams.class);
-                            var response = server.codeLens(params);
-                            respond(send, r.id, response);
-                            break;
-                        }
-                        case "codeLens/resolve": {
-                            var params = jsonb.fromJson(r.params.toString(), CodeLens.class);
-                            var response = server.resolveCodeLens(params);
-                            respond(send, r.id, response);
-                            break;
-                        }
-                        case "textDocument/prepareRename": {
-                            var params = jsonb.fromJson(r.params.toString(), TextDocumentPositionParams.class);
-                            var response = server.prepareRename(params);
-                            respond(send, r.id, response);
-                            break;
-                        }
-                        case "textDocument/rename": {
-                            var params = jsonb.fromJson(r.params.toString(), RenameParams.class);
-                            var response = server.rename(params);
-                            respond(send, r.id, response);
-                            break;
-                        }
-                        case "textDocument/formatting": {
-                            var params = jsonb.fromJson(r.params.toString(), DocumentFormattingParams.class);
-                            var response = server.formatting(params);
-                            respond(send, r.id, response);
-                            break;
-                        }
-                        case "textDocument/foldingRange": {
-                            var params = jsonb.fromJson(r.params.toString(), FoldingRangeParams.class);
-                            var response = server.foldingRange(params);
-                            respond(send, r.id, response);
-                            break;
-                        }
-                        case "$/cancelRequest":
-                            // Already handled in peek(message)
-                            break;
-                        default:
-                            LOG.warning(String.format("Don't know what to do with method `%s`", r.method));
-                    }
-                }
-            } catch (Exception e) {
-                LOG.log(Level.SEVERE, e.getMessage(), e);
-                if (r.id != null) {
-                    respond(send, r.id, new ResponseError(ErrorCodes.InternalError, e.getMessage(), null));
-                }
+            if (dispatcher == null) {
+                if (handle(server, methods, codec, send, metrics, tracer, r, running))
+                    break processMessages;
+            } else if (dispatcher.dispatch(r, () -> handle(server, methods, codec, send, metrics, tracer, r, running))) {
+                break processMessages;
             }
         }
+        if (dispatcher != null) {
+            dispatcher.close();
+        }
+        scheduler.close();
+        requests.cancelAll();
+        send.close();
+        if (dumpMetrics != null) {
+            dumpMetrics.shutdownNow();
+            metrics.dump(options.metricsFile);
+        }
+        if (recorder != null) {
+            recorder.close();
+        }
+        LOG.info(() -> String.format("Wrote %d messages, %d bytes in %d flushes", send.framesWritten(),
+                send.bytesWritten(), send.flushes()));
+        LOG.info(() -> String.format("Merged %d didChange notifications, dropped %d superseded requests",
+                pending.mergedChanges(), pending.droppedRequests()));
+        LOG.info(() -> String.format("Ran %d background tasks, replaced %d, average lag %d ms, max lag %d ms",
+                scheduler.tasksRun(), scheduler.tasksReplaced(), scheduler.averageLag().toMillis(),
+                scheduler.maxLag().toMillis()));
     }
 
     private static final Logger LOG = Logger.getLogger("main");
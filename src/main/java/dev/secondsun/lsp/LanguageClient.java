@@ -2,6 +2,9 @@ package dev.secondsun.lsp;
 
 
 import com.google.gson.JsonElement;
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
 
 public interface LanguageClient {
     public void publishDiagnostics(PublishDiagnosticsParams params);
@@ -13,4 +16,38 @@ public interface LanguageClient {
     public int showMessageRequest(final ShowMessageRequestParams requestParams);
 
     public void customNotification(String method, JsonElement params);
+
+    /**
+     * Sends a request to the client without waiting for the answer. The future completes with the
+     * result bound to {@code resultType}, or with a {@link ResponseErrorException} if the client
+     * answers with an error. Canceling the future sends {@code $/cancelRequest}.
+     *
+     * <p>The future is completed on the thread that reads from the client, so dependent stages that do
+     * real work should use the {@code *Async} variants.
+     */
+    public <R> CompletableFuture<R> request(String method, Object params, Class<R> resultType);
+
+    /** Like {@link #request(String, Object, Class)}, but fails with a TimeoutException after {@code timeout}. */
+    public default <R> CompletableFuture<R> request(String method, Object params, Class<R> resultType,
+            Duration timeout) {
+        return request(method, params, resultType).orTimeout(timeout.toMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    /** Sends {@code $/progress} with {@code value}, a {@link WorkDoneProgress} or a batch of partial results. */
+    public void progress(JsonElement token, Object value);
+
+    /**
+     * Work done progress for a request's {@code workDoneToken}. If the client sent none, the
+     * progress reports nothing, so handlers can use it either way.
+     */
+    public default Progress workDoneProgress(JsonElement token) {
+        return new Progress(token, this, Duration.ofMillis(100));
+    }
+
+    /**
+     * Asks the client to create a progress with {@code window/workDoneProgress/create}, for work the
+     * client didn't ask for, such as indexing. Completes once the client agrees, since nothing may be
+     * reported for the token before then.
+     */
+    public CompletableFuture<Progress> createProgress();
 }
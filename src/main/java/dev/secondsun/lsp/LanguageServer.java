@@ -4,6 +4,14 @@ import java.util.List;
 import java.util.Optional;
 
 public class LanguageServer {
+    /** Set by {@link LSP#connect} before any message is handled. */
+    Scheduler scheduler;
+    /**
+     * Set by {@link LSP#connect} if {@link ConnectionOptions#trackDocuments}, and kept up to date by the
+     * didOpen, didChange and didClose handlers {@link MethodRegistry} registers.
+     */
+    TextDocuments documents;
+
     public InitializeResult initialize(InitializeParams params) {
         throw new RuntimeException("Unimplemented");
     }
@@ -72,6 +80,15 @@ public class LanguageServer {
         throw new RuntimeException("Unimplemented");
     }
 
+    /**
+     * Streams references into {@code results} as they are found. Override this instead of {@link
+     * #findReferences(ReferenceParams)} when results can be large: the client sees them as they
+     * arrive, and they aren't all held in memory at once.
+     */
+    public void findReferences(ReferenceParams params, ResultSink<Location> results) {
+        throw new RuntimeException("Unimplemented");
+    }
+
     public List<SymbolInformation> documentSymbol(DocumentSymbolParams params) {
         throw new RuntimeException("Unimplemented");
     }
@@ -80,6 +97,11 @@ public class LanguageServer {
         throw new RuntimeException("Unimplemented");
     }
 
+    /** Streams symbols into {@code results}, like {@link #findReferences(ReferenceParams, ResultSink)}. */
+    public void workspaceSymbols(WorkspaceSymbolParams params, ResultSink<SymbolInformation> results) {
+        throw new RuntimeException("Unimplemented");
+    }
+
     public List<Command> codeAction(CodeActionParams params) {
         throw new RuntimeException("Unimplemented");
     }
@@ -116,7 +138,39 @@ public class LanguageServer {
         throw new RuntimeException("Unimplemented");
     }
 
+    /**
+     * Called whenever the client stops sending messages, on the message thread, or on the background
+     * thread once running requests finish if the connection is concurrent. Prefer {@link
+     * #scheduler()}, which debounces per document and doesn't hold up incoming messages.
+     */
     public void doAsyncWork() {}
+
+    /**
+     * Adds methods beyond the ones declared here, such as {@code java/classpath}. Called once, when
+     * the server is connected.
+     */
+    public void registerMethods(MethodRegistry methods) {}
+
+    /** Runs debounced background work for this connection. Null until the server is connected. */
+    protected Scheduler scheduler() {
+        return scheduler;
+    }
+
+    /**
+     * The documents the client has open, with every change already applied by the time the server's
+     * didOpen, didChange or didClose runs. Null unless {@link ConnectionOptions#trackDocuments} is set.
+     */
+    protected TextDocuments documents() {
+        return documents;
+    }
+
+    /**
+     * The cancellation token of the request being handled on the calling thread. Long-running handlers
+     * should call {@link CancellationToken#checkCanceled()} in their loops.
+     */
+    protected CancellationToken cancellation() {
+        return CancellationToken.current();
+    }
     
     /**
      * This should call the client, and save the id that is returned
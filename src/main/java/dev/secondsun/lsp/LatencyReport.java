@@ -0,0 +1,82 @@
+package dev.secondsun.lsp;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/** Request latencies grouped by method, from a {@link Replay} or a {@link Recording}. */
+public class LatencyReport {
+    private final Map<String, List<Long>> samples = new TreeMap<>();
+    private final Map<String, Integer> unanswered = new TreeMap<>();
+
+    /** Records that a {@code method} request was answered after {@code nanos}. */
+    public synchronized void add(String method, long nanos) {
+        samples.computeIfAbsent(method, __ -> new ArrayList<>()).add(nanos);
+    }
+
+    /** Records that a {@code method} request was never answered. */
+    public synchronized void addUnanswered(String method) {
+        unanswered.merge(method, 1, Integer::sum);
+    }
+
+    public synchronized Set<String> methods() {
+        return Set.copyOf(samples.keySet());
+    }
+
+    /** Number of answered requests for {@code method}. */
+    public synchronized int count(String method) {
+        return samples.getOrDefault(method, List.of()).size();
+    }
+
+    public synchronized int unanswered(String method) {
+        return unanswered.getOrDefault(method, 0);
+    }
+
+    /** The nearest-rank {@code percent}th percentile latency of {@code method}, or zero if none were answered. */
+    public synchronized Duration percentile(String method, double percent) {
+        var sorted = sorted(method);
+        if (sorted.length == 0) return Duration.ZERO;
+        var rank = (int) Math.ceil(percent / 100 * sorted.length);
+        return Duration.ofNanos(sorted[Math.max(0, Math.min(sorted.length, rank) - 1)]);
+    }
+
+    public Duration max(String method) {
+        return percentile(method, 100);
+    }
+
+    private long[] sorted(String method) {
+        var sorted = samples.getOrDefault(method, List.of()).stream().mapToLong(Long::longValue).toArray();
+        Arrays.sort(sorted);
+        return sorted;
+    }
+
+    /** A table of count, p50, p90, p99 and max in milliseconds for each method. */
+    @Override
+    public synchronized String toString() {
+        var table = new StringBuilder();
+        table.append(String.format("%-40s %7s %9s %9s %9s %9s%n", "method", "count", "p50 ms", "p90 ms", "p99 ms", "max ms"));
+        for (var method : samples.keySet()) {
+            table.append(
+                    String.format(
+                            "%-40s %7d %9.2f %9.2f %9.2f %9.2f%n",
+                            method,
+                            count(method),
+                            millis(percentile(method, 50)),
+                            millis(percentile(method, 90)),
+                            millis(percentile(method, 99)),
+                            millis(max(method))));
+        }
+        for (var entry : unanswered.entrySet()) {
+            table.append(String.format("%-40s %7d unanswered%n", entry.getKey(), entry.getValue()));
+        }
+        return table.toString();
+    }
+
+    private static double millis(Duration duration) {
+        return duration.toNanos() / 1e6;
+    }
+}
@@ -0,0 +1,14 @@
+package dev.secondsun.lsp;
+
+public class LogTraceParams {
+    public String message;
+    /** Only sent when the trace is {@link TraceValue#Verbose}. */
+    public String verbose;
+
+    public LogTraceParams() {}
+
+    public LogTraceParams(String message, String verbose) {
+        this.message = message;
+        this.verbose = verbose;
+    }
+}
@@ -0,0 +1,300 @@
+package dev.secondsun.lsp;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonIOException;
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * A growable, pooled byte buffer that holds one outgoing frame. Space for the header is reserved at
+ * the front, JSON is encoded straight into the buffer as UTF-8, and the header is filled in once the
+ * body length is known, so a message goes out as a single write without intermediate Strings.
+ */
+public class MessageBuffer {
+    /** Enough room for "Content-Length: " + 10 digits + "\r\n\r\n". */
+    private static final int HEADER_RESERVE = 32;
+    private static final int INITIAL_CAPACITY = 8 * 1024;
+    /** Buffers that grew beyond this are dropped rather than pooled, so one huge response isn't retained. */
+    private static final int MAX_POOLED_CAPACITY = 1024 * 1024;
+    private static final ArrayBlockingQueue<MessageBuffer> POOL = new ArrayBlockingQueue<>(16);
+    private static final byte[] CONTENT_LENGTH = "Content-Length: ".getBytes(StandardCharsets.US_ASCII);
+    /** How ASCII characters are escaped in strings, the same as Gson's default, HTML-safe writer. */
+    private static final String[] ESCAPES = new String[128];
+
+    static {
+        for (var c = 0; c < 0x20; c++) {
+            ESCAPES[c] = String.format("\\u%04x", c);
+        }
+        ESCAPES['"'] = "\\\"";
+        ESCAPES['\\'] = "\\\\";
+        ESCAPES['\t'] = "\\t";
+        ESCAPES['\b'] = "\\b";
+        ESCAPES['\n'] = "\\n";
+        ESCAPES['\r'] = "\\r";
+        ESCAPES['\f'] = "\\f";
+        ESCAPES['<'] = "\\u003c";
+        ESCAPES['>'] = "\\u003e";
+        ESCAPES['&'] = "\\u0026";
+        ESCAPES['='] = "\\u003d";
+        ESCAPES['\''] = "\\u0027";
+    }
+
+    private byte[] bytes;
+    private int size = HEADER_RESERVE, headerStart = HEADER_RESERVE;
+    /** How long the body took to serialize, if whoever wrote it measured that, for {@link FrameWriteEvent}. */
+    long serializeNanos;
+    private final boolean pooled;
+    private final Utf8Writer chars = new Utf8Writer();
+    private JsonWriter json;
+
+    private MessageBuffer(byte[] bytes, boolean pooled) {
+        this.bytes = bytes;
+        this.pooled = pooled;
+    }
+
+    /** Takes a buffer from the pool, or allocates one if the pool is empty. */
+    public static MessageBuffer acquire() {
+        var buffer = POOL.poll();
+        return buffer != null ? buffer : new MessageBuffer(new byte[INITIAL_CAPACITY], true);
+    }
+
+    /** Wraps an already encoded body. The result is not pooled. */
+    public static MessageBuffer wrap(byte[] body) {
+        var buffer = new MessageBuffer(new byte[HEADER_RESERVE + body.length], false);
+        buffer.write(body, 0, body.length);
+        return buffer;
+    }
+
+    /** Returns this buffer to the pool. It must not be used afterwards. */
+    public void release() {
+        size = headerStart = HEADER_RESERVE;
+        serializeNanos = 0;
+        if (pooled && bytes.length <= MAX_POOLED_CAPACITY) {
+            POOL.offer(this);
+        }
+    }
+
+    /** Length of the JSON body written so far. */
+    public int bodyLength() {
+        return size - HEADER_RESERVE;
+    }
+
+    /** The body as a String, for logging and tests. */
+    public String body() {
+        return new String(bytes, HEADER_RESERVE, bodyLength(), StandardCharsets.UTF_8);
+    }
+
+    /** Writes just the body, without a header. */
+    void writeBody(OutputStream out) throws IOException {
+        out.write(bytes, HEADER_RESERVE, bodyLength());
+    }
+
+    /** Writes the header in front of the body, then the whole frame, in one call. */
+    public int writeFrame(OutputStream out) throws IOException {
+        var length = bodyLength();
+        var i = HEADER_RESERVE;
+        bytes[--i] = '\n';
+        bytes[--i] = '\r';
+        bytes[--i] = '\n';
+        bytes[--i] = '\r';
+        do {
+            bytes[--i] = (byte) ('0' + length % 10);
+            length /= 10;
+        } while (length > 0);
+        i -= CONTENT_LENGTH.length;
+        System.arraycopy(CONTENT_LENGTH, 0, bytes, i, CONTENT_LENGTH.length);
+        headerStart = i;
+        out.write(bytes, headerStart, size - headerStart);
+        return size - headerStart;
+    }
+
+    public void write(byte b) {
+        ensure(1);
+        bytes[size++] = b;
+    }
+
+    public void write(byte[] b, int offset, int length) {
+        ensure(length);
+        System.arraycopy(b, offset, bytes, size, length);
+        size += length;
+    }
+
+    /** Writes a literal that is known to be ASCII. */
+    public void writeAscii(String s) {
+        ensure(s.length());
+        for (var i = 0; i < s.length(); i++) {
+            bytes[size++] = (byte) s.charAt(i);
+        }
+    }
+
+    public void writeInt(int value) {
+        if (value < 0) {
+            write((byte) '-');
+            if (value == Integer.MIN_VALUE) {
+                writeAscii("2147483648");
+                return;
+            }
+            value = -value;
+        }
+        ensure(10);
+        var start = size;
+        do {
+            bytes[size++] = (byte) ('0' + value % 10);
+            value /= 10;
+        } while (value > 0);
+        // Digits were written least-significant first
+        for (int i = start, j = size - 1; i < j; i++, j--) {
+            var swap = bytes[i];
+            bytes[i] = bytes[j];
+            bytes[j] = swap;
+        }
+    }
+
+    public void writeLong(long value) {
+        if (value >= Integer.MIN_VALUE && value <= Integer.MAX_VALUE) {
+            writeInt((int) value);
+        } else {
+            writeAscii(Long.toString(value));
+        }
+    }
+
+    /** Writes {@code s} as a quoted JSON string, escaped the way Gson escapes it by default. */
+    public void writeString(String s) {
+        ensure(s.length() + 2);
+        bytes[size++] = '"';
+        for (var i = 0; i < s.length(); i++) {
+            var c = s.charAt(i);
+            if (c < 0x80) {
+                chars.flushSurrogate();
+                var escape = ESCAPES[c];
+                if (escape != null) {
+                    writeAscii(escape);
+                } else {
+                    if (size == bytes.length) ensure(1);
+                    bytes[size++] = (byte) c;
+                }
+            } else if (c == '\u2028' || c == '\u2029') {
+                chars.flushSurrogate();
+                writeAscii(c == '\u2028' ? "\\u2028" : "\\u2029");
+            } else {
+                chars.encode(c);
+            }
+        }
+        chars.flushSurrogate();
+        write((byte) '"');
+    }
+
+    /** Serializes {@code value} with a Gson adapter, configured like {@code gson.toJson} would be. */
+    <T> void writeJson(Gson gson, TypeAdapter<T> adapter, T value) {
+        if (value == null) {
+            writeAscii("null");
+            return;
+        }
+        try {
+            adapter.write(writer(gson), value);
+        } catch (IOException e) {
+            json = null;
+            throw new JsonIOException(e);
+        } catch (RuntimeException e) {
+            json = null;
+            throw e;
+        } finally {
+            chars.flushSurrogate();
+        }
+    }
+
+    private JsonWriter writer(Gson gson) {
+        if (json == null) {
+            json = new JsonWriter(chars);
+            json.setLenient(true);
+        }
+        // Adapters are called directly, so apply the settings Gson.toJson would
+        json.setSerializeNulls(gson.serializeNulls());
+        json.setHtmlSafe(gson.htmlSafe());
+        return json;
+    }
+
+    private void ensure(int extra) {
+        if (size + extra > bytes.length) {
+            bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, size + extra));
+        }
+    }
+
+    /** Encodes chars as UTF-8 directly into the enclosing buffer. */
+    private class Utf8Writer extends Writer {
+        private char highSurrogate;
+
+        @Override
+        public void write(int c) {
+            encode((char) c);
+        }
+
+        @Override
+        public void write(char[] cbuf, int off, int len) {
+            for (var i = off; i < off + len; i++) encode(cbuf[i]);
+        }
+
+        @Override
+        public void write(String str, int off, int len) {
+            for (var i = off; i < off + len; i++) encode(str.charAt(i));
+        }
+
+        private void encode(char c) {
+            if (highSurrogate != 0) {
+                var high = highSurrogate;
+                highSurrogate = 0;
+                if (Character.isLowSurrogate(c)) {
+                    var codePoint = Character.toCodePoint(high, c);
+                    ensure(4);
+                    bytes[size++] = (byte) (0xF0 | (codePoint >> 18));
+                    bytes[size++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+                    bytes[size++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+                    bytes[size++] = (byte) (0x80 | (codePoint & 0x3F));
+                    return;
+                }
+                replacement();
+            }
+            if (c < 0x80) {
+                if (size == bytes.length) ensure(1);
+                bytes[size++] = (byte) c;
+            } else if (c < 0x800) {
+                ensure(2);
+                bytes[size++] = (byte) (0xC0 | (c >> 6));
+                bytes[size++] = (byte) (0x80 | (c & 0x3F));
+            } else if (Character.isHighSurrogate(c)) {
+                highSurrogate = c;
+            } else if (Character.isLowSurrogate(c)) {
+                replacement();
+            } else {
+                ensure(3);
+                bytes[size++] = (byte) (0xE0 | (c >> 12));
+                bytes[size++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                bytes[size++] = (byte) (0x80 | (c & 0x3F));
+            }
+        }
+
+        /** Unpaired surrogates are replaced with '?', as String.getBytes(UTF_8) does. */
+        private void replacement() {
+            MessageBuffer.this.write((byte) '?');
+        }
+
+        void flushSurrogate() {
+            if (highSurrogate != 0) {
+                highSurrogate = 0;
+                replacement();
+            }
+        }
+
+        @Override
+        public void flush() {}
+
+        @Override
+        public void close() {}
+    }
+}
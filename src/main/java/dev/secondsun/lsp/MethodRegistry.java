@@ -0,0 +1,286 @@
+package dev.secondsun.lsp;
+
+import com.google.gson.JsonElement;
+import com.google.gson.reflect.TypeToken;
+import java.lang.reflect.Type;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * Maps method names to handlers. Each handler's params and result bindings are looked up once, when
+ * it is registered, rather than for every message. {@link LanguageServer} methods are registered
+ * only if the server overrides them, so the client gets {@link ErrorCodes#MethodNotFound} for the
+ * rest, except for document notifications, which always keep {@link LanguageServer#documents()}
+ * current; servers add their own methods, such as {@code java/classpath}, in {@link
+ * LanguageServer#registerMethods}.
+ */
+public class MethodRegistry {
+    private final JsonCodec codec;
+    private final int chunkSize;
+    private final Map<String, Handler<?>> handlers = new HashMap<>();
+
+    MethodRegistry(JsonCodec codec, int chunkSize) {
+        this.codec = codec;
+        this.chunkSize = chunkSize;
+    }
+
+    /** Handles a request. {@code handler} may return null, and an Optional is unwrapped. */
+    public <P> void request(String method, Class<P> paramsType, Type resultType, Function<P, ?> handler) {
+        handlers.put(method, new Handler<>(codec.binding(paramsType), codec.binding(resultType), handler));
+    }
+
+    /**
+     * Handles a request whose result is a list of {@code itemType}, which {@code handler} adds to a
+     * {@link ResultSink}. If {@code partialResultToken} finds a token in the params, the items go out
+     * in chunks as {@code $/progress} and the response is an empty list.
+     */
+    public <P, T> void streamingRequest(String method, Class<P> paramsType, Class<T> itemType,
+            Function<P, JsonElement> partialResultToken, BiConsumer<P, ResultSink<T>> handler) {
+        handlers.put(
+                method,
+                new StreamingHandler<>(
+                        codec, chunkSize, codec.binding(paramsType), codec.binding(list(itemType)), partialResultToken, handler));
+    }
+
+    /** Handles a notification. */
+    public <P> void notification(String method, Class<P> paramsType, Consumer<P> handler) {
+        handlers.put(
+                method,
+                new Handler<>(
+                        codec.<P>binding(paramsType),
+                        null,
+                        params -> {
+                            handler.accept(params);
+                            return null;
+                        }));
+    }
+
+    public boolean contains(String method) {
+        return handlers.containsKey(method);
+    }
+
+    Handler<?> get(String method) {
+        return handlers.get(method);
+    }
+
+    static class Handler<P> {
+        final JsonCodec.Binding<P> params;
+        /** Null for notifications. */
+        final JsonCodec.Binding<Object> result;
+        final Function<P, ?> call;
+
+        Handler(JsonCodec.Binding<P> params, JsonCodec.Binding<Object> result, Function<P, ?> call) {
+            this.params = params;
+            this.result = result;
+            this.call = call;
+        }
+
+        /** Runs the handler and, for requests, sends its result, timing both into {@code metrics}. */
+        void handle(InboundMessage r, FrameWriter send, Metrics.Method metrics) {
+            var started = System.nanoTime();
+            var value = call.apply(r.params(params));
+            var handled = System.nanoTime();
+            metrics.handle.record(handled - started);
+            if (r.id != null) {
+                var response = LSP.response(r.id, result, value);
+                response.serializeNanos = System.nanoTime() - handled;
+                metrics.serialize.record(response.serializeNanos);
+                metrics.responseBytes.record(response.bodyLength());
+                send.send(response);
+            }
+        }
+    }
+
+    /** Sends each chunk of a {@link ResultSink} as partial results, when the client asked for them. */
+    private static class StreamingHandler<P, T> extends Handler<P> {
+        final JsonCodec codec;
+        final int chunkSize;
+        final Function<P, JsonElement> partialResultToken;
+        final BiConsumer<P, ResultSink<T>> stream;
+
+        StreamingHandler(JsonCodec codec, int chunkSize, JsonCodec.Binding<P> params, JsonCodec.Binding<Object> result,
+                Function<P, JsonElement> partialResultToken, BiConsumer<P, ResultSink<T>> stream) {
+            super(params, result, null);
+            this.codec = codec;
+            this.chunkSize = chunkSize;
+            this.partialResultToken = partialResultToken;
+            this.stream = stream;
+        }
+
+        @Override
+        void handle(InboundMessage r, FrameWriter send, Metrics.Method metrics) {
+            var started = System.nanoTime();
+            var value = r.params(params);
+            var token = value == null ? null : partialResultToken.apply(value);
+            // The handler may hand the sink to other threads, which don't have the request's token current
+            var sink =
+                    new ResultSink<T>(
+                            chunkSize,
+                            token == null ? null : chunk -> sendChunk(send, token, chunk, metrics),
+                            r.cancellation == null ? CancellationToken.NONE : r.cancellation);
+            stream.accept(value, sink);
+            sink.flush();
+            var handled = System.nanoTime();
+            // Includes serializing any chunks, which happens as the handler runs
+            metrics.handle.record(handled - started);
+            if (r.id != null) {
+                var response = LSP.response(r.id, result, sink.result());
+                response.serializeNanos = System.nanoTime() - handled;
+                metrics.serialize.record(response.serializeNanos);
+                metrics.responseBytes.record(response.bodyLength());
+                send.send(response);
+            }
+        }
+
+        private void sendChunk(FrameWriter send, JsonElement token, List<T> chunk, Metrics.Method metrics) {
+            var started = System.nanoTime();
+            var message = MessageBuffer.acquire();
+            message.writeAscii("{\"jsonrpc\":\"2.0\",\"method\":\"$/progress\",\"params\":{\"token\":");
+            codec.write(message, token);
+            message.writeAscii(",\"value\":");
+            result.write(message, chunk);
+            message.writeAscii("}}");
+            message.serializeNanos = System.nanoTime() - started;
+            metrics.serialize.record(message.serializeNanos);
+            metrics.responseBytes.record(message.bodyLength());
+            send.send(message);
+        }
+    }
+
+    /** Registers every {@link LanguageServer} method that {@code server} overrides, then its own methods. */
+    static MethodRegistry of(LanguageServer server, JsonCodec codec, int chunkSize) {
+        var methods = new MethodRegistry(codec, chunkSize);
+        var s = new Overrides(server);
+        if (s.has("initialize", InitializeParams.class))
+            methods.request("initialize", InitializeParams.class, InitializeResult.class, server::initialize);
+        if (s.has("initialized"))
+            methods.notification("initialized", Object.class, params -> server.initialized());
+        methods.request("shutdown", Object.class, Object.class, params -> null);
+        if (s.has("didChangeWorkspaceFolders", DidChangeWorkspaceFoldersParams.class))
+            methods.notification("workspace/didChangeWorkspaceFolders", DidChangeWorkspaceFoldersParams.class,
+                    server::didChangeWorkspaceFolders);
+        if (s.has("didChangeConfiguration", DidChangeConfigurationParams.class))
+            methods.notification("workspace/didChangeConfiguration", DidChangeConfigurationParams.class,
+                    server::didChangeConfiguration);
+        if (s.has("didChangeWatchedFiles", DidChangeWatchedFilesParams.class))
+            methods.notification("workspace/didChangeWatchedFiles", DidChangeWatchedFilesParams.class,
+                    server::didChangeWatchedFiles);
+        if (s.has("workspaceSymbols", WorkspaceSymbolParams.class, ResultSink.class))
+            methods.streamingRequest("workspace/symbol", WorkspaceSymbolParams.class, SymbolInformation.class,
+                    params -> params.partialResultToken, server::workspaceSymbols);
+        else if (s.has("workspaceSymbols", WorkspaceSymbolParams.class))
+            methods.request("workspace/symbol", WorkspaceSymbolParams.class, list(SymbolInformation.class),
+                    server::workspaceSymbols);
+        if (s.has("documentLink", DocumentLinkParams.class))
+            methods.request("textDocument/documentLink", DocumentLinkParams.class, list(DocumentLink.class),
+                    server::documentLink);
+        // Tracked documents are updated whether or not the server handles these itself
+        var documents = server.documents;
+        var opens = s.has("didOpenTextDocument", DidOpenTextDocumentParams.class);
+        if (opens || documents != null)
+            methods.notification("textDocument/didOpen", DidOpenTextDocumentParams.class,
+                    params -> {
+                        if (documents != null) documents.open(params);
+                        if (opens) server.didOpenTextDocument(params);
+                    });
+        var changes = s.has("didChangeTextDocument", DidChangeTextDocumentParams.class);
+        if (changes || documents != null)
+            methods.notification("textDocument/didChange", DidChangeTextDocumentParams.class,
+                    params -> {
+                        if (documents != null) documents.change(params);
+                        if (changes) server.didChangeTextDocument(params);
+                    });
+        if (s.has("willSaveTextDocument", WillSaveTextDocumentParams.class))
+            methods.notification("textDocument/willSave", WillSaveTextDocumentParams.class,
+                    server::willSaveTextDocument);
+        if (s.has("willSaveWaitUntilTextDocument", WillSaveTextDocumentParams.class))
+            methods.request("textDocument/willSaveWaitUntil", WillSaveTextDocumentParams.class, list(TextEdit.class),
+                    server::willSaveWaitUntilTextDocument);
+        if (s.has("didSaveTextDocument", DidSaveTextDocumentParams.class))
+            methods.notification("textDocument/didSave", DidSaveTextDocumentParams.class, server::didSaveTextDocument);
+        var closes = s.has("didCloseTextDocument", DidCloseTextDocumentParams.class);
+        if (closes || documents != null)
+            methods.notification("textDocument/didClose", DidCloseTextDocumentParams.class,
+                    params -> {
+                        if (documents != null) documents.close(params);
+                        if (closes) server.didCloseTextDocument(params);
+                    });
+        if (s.has("completion", TextDocumentPositionParams.class))
+            methods.request("textDocument/completion", TextDocumentPositionParams.class, CompletionList.class,
+                    params -> orNull(server.completion(params)));
+        if (s.has("resolveCompletionItem", CompletionItem.class))
+            methods.request("completionItem/resolve", CompletionItem.class, CompletionItem.class,
+                    server::resolveCompletionItem);
+        if (s.has("hover", TextDocumentPositionParams.class))
+            methods.request("textDocument/hover", TextDocumentPositionParams.class, Hover.class,
+                    params -> orNull(server.hover(params)));
+        if (s.has("signatureHelp", TextDocumentPositionParams.class))
+            methods.request("textDocument/signatureHelp", TextDocumentPositionParams.class, SignatureHelp.class,
+                    params -> orNull(server.signatureHelp(params)));
+        if (s.has("gotoDefinition", TextDocumentPositionParams.class))
+            methods.request("textDocument/definition", TextDocumentPositionParams.class, list(Location.class),
+                    params -> orNull(server.gotoDefinition(params)));
+        if (s.has("findReferences", ReferenceParams.class, ResultSink.class))
+            methods.streamingRequest("textDocument/references", ReferenceParams.class, Location.class,
+                    params -> params.partialResultToken, server::findReferences);
+        else if (s.has("findReferences", ReferenceParams.class))
+            methods.request("textDocument/references", ReferenceParams.class, list(Location.class),
+                    params -> orNull(server.findReferences(params)));
+        if (s.has("documentSymbol", DocumentSymbolParams.class))
+            methods.request("textDocument/documentSymbol", DocumentSymbolParams.class, list(SymbolInformation.class),
+                    server::documentSymbol);
+        if (s.has("codeAction", CodeActionParams.class))
+            methods.request("textDocument/codeAction", CodeActionParams.class, list(Command.class), server::codeAction);
+        if (s.has("codeLens", CodeLensParams.class))
+            methods.request("textDocument/codeLens", CodeLensParams.class, list(CodeLens.class), server::codeLens);
+        if (s.has("resolveCodeLens", CodeLens.class))
+            methods.request("codeLens/resolve", CodeLens.class, CodeLens.class, server::resolveCodeLens);
+        if (s.has("prepareRename", TextDocumentPositionParams.class))
+            methods.request("textDocument/prepareRename", TextDocumentPositionParams.class, RenameResponse.class,
+                    params -> orNull(server.prepareRename(params)));
+        if (s.has("rename", RenameParams.class))
+            methods.request("textDocument/rename", RenameParams.class, WorkspaceEdit.class, server::rename);
+        if (s.has("formatting", DocumentFormattingParams.class))
+            methods.request("textDocument/formatting", DocumentFormattingParams.class, list(TextEdit.class),
+                    server::formatting);
+        if (s.has("foldingRange", FoldingRangeParams.class))
+            methods.request("textDocument/foldingRange", FoldingRangeParams.class, list(FoldingRange.class),
+                    server::foldingRange);
+        server.registerMethods(methods);
+        return methods;
+    }
+
+    /**
+     * Unwraps an Optional result. Some servers return null rather than an empty Optional, which the
+     * old reflective dispatch accepted, so that means no result too.
+     */
+    private static <T> T orNull(Optional<T> result) {
+        return result == null ? null : result.orElse(null);
+    }
+
+    private static Type list(Class<?> element) {
+        return TypeToken.getParameterized(List.class, element).getType();
+    }
+
+    /** Finds which {@link LanguageServer} methods a server class overrides. */
+    private static class Overrides {
+        final Class<?> type;
+
+        Overrides(LanguageServer server) {
+            this.type = server.getClass();
+        }
+
+        boolean has(String name, Class<?>... parameterTypes) {
+            try {
+                return type.getMethod(name, parameterTypes).getDeclaringClass() != LanguageServer.class;
+            } catch (NoSuchMethodException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+}
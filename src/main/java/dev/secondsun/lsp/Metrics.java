@@ -0,0 +1,168 @@
+package dev.secondsun.lsp;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Counts and histograms for each method a connection handles: how long requests waited to start,
+ * how long their handler ran, how long their result took to serialize and how big it was. Once a
+ * method has been seen, recording it allocates nothing. The summary also reads the counters of the
+ * connection's {@link InboundQueue} and {@link Scheduler}.
+ *
+ * <p>Clients can ask for a {@link #summary} with the {@code $/metrics} request, and {@link
+ * ConnectionOptions#metricsFile} dumps one periodically.
+ */
+public class Metrics {
+    /** Where methods without a handler are counted, so arbitrary names from the client can't grow the map. */
+    public static final String UNKNOWN = "unknown";
+
+    private final Map<String, Method> methods = new ConcurrentHashMap<>();
+    private volatile InboundQueue queue;
+    private volatile Scheduler scheduler;
+
+    /** Includes the counters of {@code queue} in the {@link #summary}. */
+    void watch(InboundQueue queue) {
+        this.queue = queue;
+    }
+
+    /** Includes the counters of {@code scheduler} in the {@link #summary}. */
+    void watch(Scheduler scheduler) {
+        this.scheduler = scheduler;
+    }
+
+    /** The metrics for {@code method}, created the first time it is seen. */
+    public Method method(String method) {
+        var found = methods.get(method);
+        if (found != null) return found;
+        var created = new Method();
+        found = methods.putIfAbsent(method, created);
+        return found != null ? found : created;
+    }
+
+    /** Everything recorded for one method. Times are in nanoseconds. */
+    public static class Method {
+        /** Messages handled, including failed requests. */
+        public final LongAdder count = new LongAdder();
+        /** Requests answered with an error, or cancelled. */
+        public final LongAdder errors = new LongAdder();
+        /** From being read to the handler starting. */
+        public final Histogram queueWait = new Histogram();
+        /** Binding params and running the handler. */
+        public final Histogram handle = new Histogram();
+        /** Serializing the result. */
+        public final Histogram serialize = new Histogram();
+        /** Length of the response body in bytes. */
+        public final Histogram responseBytes = new Histogram();
+    }
+
+    /** A histogram's count, mean, percentiles and max, with times converted to milliseconds. */
+    public static class Distribution {
+        public long count;
+        public double mean, p50, p90, p99, max;
+
+        public Distribution() {}
+
+        Distribution(Histogram histogram, double scale) {
+            count = histogram.count();
+            mean = histogram.mean() / scale;
+            p50 = histogram.percentile(50) / scale;
+            p90 = histogram.percentile(90) / scale;
+            p99 = histogram.percentile(99) / scale;
+            max = histogram.max() / scale;
+        }
+    }
+
+    public static class MethodSummary {
+        public long count, errors;
+        public Distribution queueWaitMs, handleMs, serializeMs, responseBytes;
+    }
+
+    /** What the queue did to messages before they were handled. */
+    public static class QueueSummary {
+        /** didChange notifications merged into the one queued before them. */
+        public long mergedChanges;
+        /** Requests answered with ContentModified because a newer one replaced them. */
+        public long droppedRequests;
+    }
+
+    /** How the connection's background work kept up. */
+    public static class SchedulerSummary {
+        /** Tasks and idle callbacks that ran, and tasks replaced before they started. */
+        public long tasksRun, tasksReplaced;
+        /** How long tasks started after they were due, and how long they ran. */
+        public double averageLagMs, maxLagMs, averageRunMs;
+    }
+
+    /** The result of {@code $/metrics}. */
+    public static class Summary {
+        /** Every method, sorted by name. */
+        public Map<String, MethodSummary> methods;
+        /** Null unless the metrics belong to a connection. */
+        public QueueSummary queue;
+        /** Null unless the metrics belong to a connection. */
+        public SchedulerSummary background;
+    }
+
+    /**
+     * A snapshot of every method and of the connection's queue and background work. This is the
+     * result of {@code $/metrics}.
+     */
+    public Summary summary() {
+        var summary = new Summary();
+        summary.methods = methods();
+        var queue = this.queue;
+        if (queue != null) {
+            summary.queue = new QueueSummary();
+            summary.queue.mergedChanges = queue.mergedChanges();
+            summary.queue.droppedRequests = queue.droppedRequests();
+        }
+        var scheduler = this.scheduler;
+        if (scheduler != null) {
+            summary.background = new SchedulerSummary();
+            summary.background.tasksRun = scheduler.tasksRun();
+            summary.background.tasksReplaced = scheduler.tasksReplaced();
+            summary.background.averageLagMs = scheduler.averageLag().toNanos() / 1e6;
+            summary.background.maxLagMs = scheduler.maxLag().toNanos() / 1e6;
+            summary.background.averageRunMs = scheduler.averageRunTime().toNanos() / 1e6;
+        }
+        return summary;
+    }
+
+    private Map<String, MethodSummary> methods() {
+        var summary = new TreeMap<String, MethodSummary>();
+        methods.forEach(
+                (name, method) -> {
+                    var s = new MethodSummary();
+                    s.count = method.count.sum();
+                    s.errors = method.errors.sum();
+                    s.queueWaitMs = new Distribution(method.queueWait, 1e6);
+                    s.handleMs = new Distribution(method.handle, 1e6);
+                    s.serializeMs = new Distribution(method.serialize, 1e6);
+                    s.responseBytes = new Distribution(method.responseBytes, 1);
+                    summary.put(name, s);
+                });
+        return summary;
+    }
+
+    /** Writes {@link #summary} as JSON to {@code file}, replacing it atomically so readers never see half a dump. */
+    public void dump(Path file) {
+        var temp = file.resolveSibling(file.getFileName() + ".tmp");
+        try {
+            Files.writeString(temp, LSP.toJson(summary()), StandardCharsets.UTF_8);
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            LOG.log(Level.WARNING, "Failed to write metrics to " + file, e);
+        }
+    }
+
+    private static final Logger LOG = Logger.getLogger("main");
+}
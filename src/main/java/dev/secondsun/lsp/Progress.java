@@ -0,0 +1,90 @@
+package dev.secondsun.lsp;
+
+import com.google.gson.JsonElement;
+import java.time.Duration;
+
+/**
+ * Reports work done progress for one token with {@code $/progress}. Reports closer together than the
+ * connection's {@link ConnectionOptions#progressInterval} are dropped, so a loop can report every
+ * step without flooding the client; begin and end always go out. A progress without a token, because
+ * the client didn't send a workDoneToken, reports nothing.
+ *
+ * <p>Closing a progress that has begun ends it, so try-with-resources always clears the client's
+ * indicator.
+ */
+public class Progress implements AutoCloseable {
+    /** Null if this progress goes nowhere. */
+    public final JsonElement token;
+
+    private final LanguageClient client;
+    private final long intervalNanos;
+    private boolean begun, ended;
+    private long lastSent, dropped;
+
+    public Progress(JsonElement token, LanguageClient client, Duration interval) {
+        this.token = token;
+        this.client = client;
+        this.intervalNanos = interval.toNanos();
+    }
+
+    public void begin(String title) {
+        begin(title, null, null);
+    }
+
+    public synchronized void begin(String title, String message, Integer percentage) {
+        if (begun) throw new IllegalStateException("Progress has already begun");
+        begun = true;
+        var value = new WorkDoneProgress();
+        value.kind = WorkDoneProgress.Begin;
+        value.title = title;
+        value.message = message;
+        value.percentage = percentage;
+        send(value);
+    }
+
+    public boolean report(String message) {
+        return report(message, null);
+    }
+
+    /** Reports progress, unless the last report was too recent. Returns whether it was sent. */
+    public synchronized boolean report(String message, Integer percentage) {
+        if (!begun || ended) throw new IllegalStateException("Progress has not begun or has ended");
+        if (token == null) return false;
+        if (System.nanoTime() - lastSent < intervalNanos) {
+            dropped++;
+            return false;
+        }
+        var value = new WorkDoneProgress();
+        value.kind = WorkDoneProgress.Report;
+        value.message = message;
+        value.percentage = percentage;
+        send(value);
+        return true;
+    }
+
+    public synchronized void end(String message) {
+        if (!begun || ended) throw new IllegalStateException("Progress has not begun or has already ended");
+        ended = true;
+        var value = new WorkDoneProgress();
+        value.kind = WorkDoneProgress.End;
+        value.message = message;
+        send(value);
+    }
+
+    /** Ends the progress if it has begun and not ended. */
+    @Override
+    public synchronized void close() {
+        if (begun && !ended) end(null);
+    }
+
+    /** Reports dropped because they came too soon after the previous one. */
+    public synchronized long dropped() {
+        return dropped;
+    }
+
+    private void send(WorkDoneProgress value) {
+        if (token == null) return;
+        lastSent = System.nanoTime();
+        client.progress(token, value);
+    }
+}
@@ -0,0 +1,17 @@
+package dev.secondsun.lsp;
+
+import com.google.gson.JsonElement;
+
+public class ProgressParams {
+    /** A string or integer, chosen by whoever created the progress. */
+    public JsonElement token;
+    /** A {@link WorkDoneProgress}, or a batch of partial results. */
+    public Object value;
+
+    public ProgressParams() {}
+
+    public ProgressParams(JsonElement token, Object value) {
+        this.token = token;
+        this.value = value;
+    }
+}
@@ -0,0 +1,95 @@
+package dev.secondsun.lsp;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.logging.Logger;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.ZipException;
+
+/**
+ * A session written by {@link ConnectionOptions#recordTo}. The file is gzipped: a 4-byte magic and a
+ * version byte, then one record per frame of direction byte, nanoseconds since the session started
+ * (long), body length (int) and the UTF-8 body.
+ */
+public class Recording {
+    static final byte[] MAGIC = {'L', 'S', 'P', 'R'};
+    static final byte VERSION = 1, INBOUND = 0, OUTBOUND = 1;
+
+    public static class Frame {
+        /** True if the client sent this frame, false if the server did. */
+        public final boolean inbound;
+        /** When the frame was read or written, relative to the start of the session. */
+        public final long nanos;
+        public final String body;
+
+        public Frame(boolean inbound, long nanos, String body) {
+            this.inbound = inbound;
+            this.nanos = nanos;
+            this.body = body;
+        }
+    }
+
+    /** Every frame in the order it was recorded. */
+    public final List<Frame> frames;
+
+    public Recording(List<Frame> frames) {
+        this.frames = Collections.unmodifiableList(frames);
+    }
+
+    /**
+     * Reads a recording. A file cut short, because the server was killed mid-session, yields the
+     * frames before the cut.
+     */
+    public static Recording read(Path file) throws IOException {
+        var frames = new ArrayList<Frame>();
+        try (var in = new DataInputStream(new GZIPInputStream(new BufferedInputStream(Files.newInputStream(file))))) {
+            var magic = in.readNBytes(MAGIC.length);
+            if (!Arrays.equals(magic, MAGIC)) throw new IOException(file + " is not a session recording");
+            var version = in.readByte();
+            if (version != VERSION) throw new IOException("Unsupported recording version " + version);
+            while (true) {
+                var direction = in.read();
+                if (direction == -1) break;
+                var nanos = in.readLong();
+                var body = new byte[in.readInt()];
+                in.readFully(body);
+                frames.add(new Frame(direction == INBOUND, nanos, new String(body, StandardCharsets.UTF_8)));
+            }
+        } catch (EOFException | ZipException e) {
+            LOG.warning(String.format("Recording %s is truncated after %d frames", file, frames.size()));
+        }
+        return new Recording(frames);
+    }
+
+    /** How long the server took to answer each request when the session was recorded. */
+    public LatencyReport latencies() {
+        var report = new LatencyReport();
+        var started = new HashMap<Integer, Frame>();
+        var methods = new HashMap<Integer, String>();
+        for (var frame : frames) {
+            var message = LSP.decodeMessage(frame.body);
+            if (message.id == null) continue;
+            if (frame.inbound && message.method != null) {
+                started.put(message.id, frame);
+                methods.put(message.id, message.method);
+            } else if (!frame.inbound && message.method == null) {
+                var request = started.remove(message.id);
+                if (request != null) report.add(methods.remove(message.id), frame.nanos - request.nanos);
+            }
+        }
+        for (var method : methods.values()) report.addUnanswered(method);
+        return report;
+    }
+
+    private static final Logger LOG = Logger.getLogger("main");
+}
@@ -0,0 +1,216 @@
+package dev.secondsun.lsp;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Function;
+import java.util.logging.Logger;
+
+/**
+ * Feeds the client side of a {@link Recording} into a server through {@link LSP#connect} and
+ * measures how long each request takes to be answered. Everything runs in-process over pipes, so a
+ * recorded session can be replayed offline against any {@link LanguageServer}.
+ *
+ * <p>{@code java dev.secondsun.lsp.Replay <recording> <server class> [speed] [workspace]} replays
+ * a session against a server with a {@code (LanguageClient)} or no-arg constructor and prints the
+ * recorded and replayed latencies side by side.
+ */
+public class Replay {
+    private static final int PIPE_SIZE = 10 * 1024 * 1024;
+    private static final String EXIT = "{\"jsonrpc\":\"2.0\",\"method\":\"exit\"}";
+
+    /**
+     * 1 sends frames at the pace they were recorded, 10 ten times faster, and {@link
+     * Double#POSITIVE_INFINITY} as fast as the server reads them.
+     */
+    public double speed = 1;
+
+    /**
+     * If set, the recorded workspace root, taken from {@code initialize}, is replaced with this
+     * directory in every frame sent to the server.
+     */
+    public Path workspace;
+
+    /** Passed to {@link LSP#connect}, so a session can be replayed in each dispatch mode. */
+    public ConnectionOptions options = new ConnectionOptions();
+
+    /** How long to wait for outstanding requests before sending {@code exit}, and for the server to stop. */
+    public Duration timeout = Duration.ofSeconds(30);
+
+    public LatencyReport run(Path recording, Function<LanguageClient, LanguageServer> serverFactory)
+            throws IOException, InterruptedException {
+        return run(Recording.read(recording), serverFactory);
+    }
+
+    public LatencyReport run(Recording recording, Function<LanguageClient, LanguageServer> serverFactory)
+            throws IOException, InterruptedException {
+        var clientToServer = new PipedInputStream(PIPE_SIZE);
+        var toServer = new PipedOutputStream(clientToServer);
+        var serverToClient = new PipedInputStream(PIPE_SIZE);
+        var fromServer = new PipedOutputStream(serverToClient);
+        var report = new LatencyReport();
+        var outstanding = new Outstanding();
+        var server = new Thread(() -> LSP.connect(serverFactory, clientToServer, fromServer, options), "replay-server");
+        var reader =
+                new Thread(
+                        () -> {
+                            var frames = new FrameReader(serverToClient);
+                            try {
+                                while (true) {
+                                    var message = LSP.decodeMessage(frames.nextToken());
+                                    if (message.method == null && message.id != null) {
+                                        outstanding.finish(message.id, report);
+                                    }
+                                }
+                            } catch (LSP.EndOfStream __) {
+                                // Server has stopped
+                            }
+                        },
+                        "replay-reader");
+        server.start();
+        reader.start();
+
+        var replacements = replacements(recording);
+        var start = System.nanoTime();
+        var first = -1L;
+        var sentExit = false;
+        for (var frame : recording.frames) {
+            if (!frame.inbound) continue;
+            if (first == -1) first = frame.nanos;
+            if (speed != Double.POSITIVE_INFINITY) {
+                sleepUntil(start + (long) ((frame.nanos - first) / speed));
+            }
+            var body = frame.body;
+            for (var replace : replacements.entrySet()) body = body.replace(replace.getKey(), replace.getValue());
+            var message = LSP.decodeMessage(body);
+            if ("exit".equals(message.method)) {
+                // Let requests still running finish, or they would be counted as unanswered
+                outstanding.await(timeout);
+                sentExit = true;
+            } else if (message.method != null && message.id != null) {
+                outstanding.start(message.id, message.method);
+            }
+            write(toServer, body);
+        }
+        if (!sentExit) {
+            outstanding.await(timeout);
+            write(toServer, EXIT);
+        }
+        server.join(timeout.toMillis());
+        fromServer.close();
+        reader.join(timeout.toMillis());
+        outstanding.unanswered(report);
+        return report;
+    }
+
+    /** Maps the recorded workspace root, as a URI and as a path, to {@link #workspace}. */
+    private Map<String, String> replacements(Recording recording) {
+        var replacements = new LinkedHashMap<String, String>();
+        if (workspace == null) return replacements;
+        for (var frame : recording.frames) {
+            if (!frame.inbound) continue;
+            var message = LSP.decodeMessage(frame.body);
+            if (!"initialize".equals(message.method)) continue;
+            var params = message.params(InitializeParams.class);
+            var local = workspace.toAbsolutePath().normalize();
+            if (params.rootUri != null) {
+                replacements.put(trimSlash(params.rootUri.toString()), trimSlash(local.toUri().toString()));
+            }
+            if (params.rootPath != null) {
+                var recorded = trimSlash(params.rootPath);
+                // JSON escapes the separators of Windows paths
+                replacements.put(recorded.replace("\\", "\\\\"), local.toString().replace("\\", "\\\\"));
+            }
+            LOG.info("Replaying " + replacements.keySet() + " in " + local);
+            break;
+        }
+        return replacements;
+    }
+
+    private static String trimSlash(String path) {
+        return path.endsWith("/") || path.endsWith("\\") ? path.substring(0, path.length() - 1) : path;
+    }
+
+    private static void sleepUntil(long due) {
+        long remaining;
+        while ((remaining = due - System.nanoTime()) > 0) {
+            LockSupport.parkNanos(remaining);
+        }
+    }
+
+    private static void write(OutputStream out, String body) throws IOException {
+        var bytes = body.getBytes(StandardCharsets.UTF_8);
+        out.write(("Content-Length: " + bytes.length + "\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+        out.write(bytes);
+        out.flush();
+    }
+
+    /** Requests sent to the server that haven't been answered yet. */
+    private static class Outstanding {
+        private final Map<Integer, String> methods = new HashMap<>();
+        private final Map<Integer, Long> sent = new HashMap<>();
+
+        synchronized void start(int id, String method) {
+            methods.put(id, method);
+            sent.put(id, System.nanoTime());
+        }
+
+        synchronized void finish(int id, LatencyReport report) {
+            var started = sent.remove(id);
+            if (started == null) return;
+            report.add(methods.remove(id), System.nanoTime() - started);
+            notifyAll();
+        }
+
+        synchronized void await(Duration timeout) throws InterruptedException {
+            var deadline = System.nanoTime() + timeout.toNanos();
+            long remaining;
+            while (!sent.isEmpty() && (remaining = deadline - System.nanoTime()) > 0) {
+                TimeUnit.NANOSECONDS.timedWait(this, remaining);
+            }
+        }
+
+        synchronized void unanswered(LatencyReport report) {
+            for (var method : methods.values()) report.addUnanswered(method);
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.err.println("Usage: Replay <recording> <server class> [speed] [workspace]");
+            System.exit(1);
+        }
+        var replay = new Replay();
+        if (args.length > 2) replay.speed = Double.parseDouble(args[2]);
+        if (args.length > 3) replay.workspace = Path.of(args[3]);
+        var serverClass = Class.forName(args[1]).asSubclass(LanguageServer.class);
+        Function<LanguageClient, LanguageServer> serverFactory =
+                client -> {
+                    try {
+                        try {
+                            return serverClass.getConstructor(LanguageClient.class).newInstance(client);
+                        } catch (NoSuchMethodException __) {
+                            return serverClass.getConstructor().newInstance();
+                        }
+                    } catch (ReflectiveOperationException e) {
+                        throw new RuntimeException(e);
+                    }
+                };
+        var recording = Recording.read(Path.of(args[0]));
+        System.out.println("Recorded:");
+        System.out.println(recording.latencies());
+        System.out.println("Replayed at " + replay.speed + "x:");
+        System.out.println(replay.run(recording, serverFactory));
+    }
+
+    private static final Logger LOG = Logger.getLogger("main");
+}
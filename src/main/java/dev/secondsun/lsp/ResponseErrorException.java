@@ -0,0 +1,11 @@
+package dev.secondsun.lsp;
+
+/** Completes a {@link LanguageClient#request} future when the client answers with an error. */
+public class ResponseErrorException extends RuntimeException {
+    public final ResponseError error;
+
+    public ResponseErrorException(ResponseError error) {
+        super(error.message);
+        this.error = error;
+    }
+}
@@ -0,0 +1,66 @@
+package dev.secondsun.lsp;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Collects the items of a list result as a handler finds them. If the client sent a
+ * partialResultToken, every {@link ConnectionOptions#partialResultChunk} items are sent right away
+ * as a {@code $/progress} and then forgotten, so memory is bounded by the chunk size rather than the
+ * whole result. Otherwise the items are kept and sent as the response.
+ *
+ * <p>Items may be added from any thread until the handler returns. Adding checks the request's
+ * own cancellation token, so a worker thread stops when the request is cancelled too.
+ */
+public class ResultSink<T> {
+    private final int chunkSize;
+    /** Sends a chunk as partial results, or null if the client didn't ask for them. */
+    private final Consumer<List<T>> partialResults;
+    private final CancellationToken cancellation;
+    private final List<T> items = new ArrayList<>();
+    private long count;
+
+    ResultSink(int chunkSize, Consumer<List<T>> partialResults, CancellationToken cancellation) {
+        this.chunkSize = chunkSize;
+        this.partialResults = partialResults;
+        this.cancellation = cancellation;
+    }
+
+    /** Adds an item, sending a chunk if that fills one. Throws if the request has been cancelled. */
+    public synchronized void add(T item) {
+        cancellation.checkCanceled();
+        items.add(item);
+        count++;
+        if (partialResults != null && items.size() >= chunkSize) {
+            flush();
+        }
+    }
+
+    public synchronized void addAll(Collection<? extends T> more) {
+        for (var item : more) add(item);
+    }
+
+    /** Whether items are going to the client as partial results. */
+    public boolean isStreaming() {
+        return partialResults != null;
+    }
+
+    /** Items added so far, whether sent or kept. */
+    public synchronized long count() {
+        return count;
+    }
+
+    /** Sends any partial chunk. */
+    synchronized void flush() {
+        if (partialResults == null || items.isEmpty()) return;
+        partialResults.accept(items);
+        items.clear();
+    }
+
+    /** The result to respond with: every item if not streaming, otherwise an empty list. */
+    synchronized List<T> result() {
+        return partialResults == null ? items : List.of();
+    }
+}
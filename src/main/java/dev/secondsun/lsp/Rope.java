@@ -0,0 +1,257 @@
+package dev.secondsun.lsp;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Immutable text stored as a height-balanced tree of short strings. An edit copies only the path to
+ * the leaves it touches, so it takes O(log n) time and space, and every version shares everything
+ * else with the one it was made from. Each node counts its chars and newlines, so finding a line's
+ * start or an offset's line is also O(log n).
+ *
+ * <p>Reading chars in order is O(1) per char: the rope remembers the last leaf it read from.
+ */
+public final class Rope implements CharSequence {
+    /** Leaves are split to at most this many chars, and adjacent leaves merged while they fit. */
+    static final int MAX_LEAF = 1024;
+    public static final Rope EMPTY = new Rope("");
+
+    /** Set for leaves, null for branches. */
+    private final String text;
+    private final Rope left, right;
+    private final int length, newlines, height;
+    /** The leaf charAt read from last; a benign race, since Fingers are immutable. */
+    private volatile Finger finger;
+
+    private static final class Finger {
+        final int start;
+        final String text;
+
+        Finger(int start, String text) {
+            this.start = start;
+            this.text = text;
+        }
+    }
+
+    private Rope(String text) {
+        this.text = text;
+        this.left = this.right = null;
+        this.length = text.length();
+        var count = 0;
+        for (var i = text.indexOf('\n'); i != -1; i = text.indexOf('\n', i + 1)) count++;
+        this.newlines = count;
+        this.height = 0;
+    }
+
+    private Rope(Rope left, Rope right) {
+        this.text = null;
+        this.left = left;
+        this.right = right;
+        this.length = left.length + right.length;
+        this.newlines = left.newlines + right.newlines;
+        this.height = Math.max(left.height, right.height) + 1;
+    }
+
+    public static Rope of(CharSequence text) {
+        if (text instanceof Rope) return (Rope) text;
+        if (text.length() == 0) return EMPTY;
+        var s = text.toString();
+        var leaves = new ArrayList<Rope>(s.length() / MAX_LEAF + 1);
+        for (var i = 0; i < s.length(); i += MAX_LEAF) {
+            leaves.add(new Rope(s.substring(i, Math.min(s.length(), i + MAX_LEAF))));
+        }
+        return build(leaves, 0, leaves.size());
+    }
+
+    private static Rope build(List<Rope> leaves, int from, int to) {
+        if (to - from == 1) return leaves.get(from);
+        var mid = (from + to) >>> 1;
+        return new Rope(build(leaves, from, mid), build(leaves, mid, to));
+    }
+
+    /** Replaces chars {@code start} to {@code end} with {@code replacement}. */
+    public Rope replace(int start, int end, CharSequence replacement) {
+        if (start < 0 || end < start || end > length) {
+            throw new IndexOutOfBoundsException(String.format("[%d, %d) in a rope of length %d", start, end, length));
+        }
+        return join(join(prefix(this, start), of(replacement)), suffix(this, end));
+    }
+
+    public Rope insert(int offset, CharSequence inserted) {
+        return replace(offset, offset, inserted);
+    }
+
+    public Rope delete(int start, int end) {
+        return replace(start, end, "");
+    }
+
+    @Override
+    public int length() {
+        return length;
+    }
+
+    @Override
+    public char charAt(int index) {
+        var f = finger;
+        if (f != null && index >= f.start && index - f.start < f.text.length()) {
+            return f.text.charAt(index - f.start);
+        }
+        if (index < 0 || index >= length) throw new IndexOutOfBoundsException(index);
+        var node = this;
+        var start = 0;
+        while (node.text == null) {
+            if (index - start < node.left.length) {
+                node = node.left;
+            } else {
+                start += node.left.length;
+                node = node.right;
+            }
+        }
+        finger = new Finger(start, node.text);
+        return node.text.charAt(index - start);
+    }
+
+    /** Like charAt, but without moving the finger, so it never allocates. */
+    private char at(int index) {
+        var node = this;
+        while (node.text == null) {
+            if (index < node.left.length) {
+                node = node.left;
+            } else {
+                index -= node.left.length;
+                node = node.right;
+            }
+        }
+        return node.text.charAt(index);
+    }
+
+    @Override
+    public Rope subSequence(int start, int end) {
+        if (start < 0 || end < start || end > length) {
+            throw new IndexOutOfBoundsException(String.format("[%d, %d) in a rope of length %d", start, end, length));
+        }
+        return prefix(suffix(this, start), end - start);
+    }
+
+    /** Number of lines, which is one more than the number of '\n's. */
+    public int lineCount() {
+        return newlines + 1;
+    }
+
+    /** The offset where {@code line} starts, or the length if there is no such line. */
+    public int lineStart(int line) {
+        if (line <= 0) return 0;
+        if (line > newlines) return length;
+        var node = this;
+        var offset = 0;
+        while (node.text == null) {
+            if (line <= node.left.newlines) {
+                node = node.left;
+            } else {
+                line -= node.left.newlines;
+                offset += node.left.length;
+                node = node.right;
+            }
+        }
+        var i = -1;
+        for (; line > 0; line--) i = node.text.indexOf('\n', i + 1);
+        return offset + i + 1;
+    }
+
+    /**
+     * The offset where the text of {@code line} ends, before its "\n" or "\r\n", or the length if
+     * there is no such line.
+     */
+    public int lineEnd(int line) {
+        if (line < 0) line = 0;
+        // The last line has no "\n" after it, so a trailing '\r' is part of its text
+        if (line >= newlines) return length;
+        var end = lineStart(line + 1) - 1;
+        return end > 0 && at(end - 1) == '\r' ? end - 1 : end;
+    }
+
+    /** The line {@code offset} is on: the number of '\n's before it. */
+    public int lineAt(int offset) {
+        if (offset <= 0) return 0;
+        if (offset >= length) return newlines;
+        var node = this;
+        var line = 0;
+        while (node.text == null) {
+            if (offset <= node.left.length) {
+                node = node.left;
+            } else {
+                offset -= node.left.length;
+                line += node.left.newlines;
+                node = node.right;
+            }
+        }
+        for (var i = node.text.indexOf('\n'); i != -1 && i < offset; i = node.text.indexOf('\n', i + 1)) line++;
+        return line;
+    }
+
+    /** Depth of the tree, which stays within about 1.44 log2 of the number of leaves. */
+    public int height() {
+        return height;
+    }
+
+    @Override
+    public String toString() {
+        if (text != null) return text;
+        var out = new StringBuilder(length);
+        appendTo(out);
+        return out.toString();
+    }
+
+    /** Appends the text to {@code out} a leaf at a time. */
+    public void appendTo(StringBuilder out) {
+        if (text != null) {
+            out.append(text);
+        } else {
+            left.appendTo(out);
+            right.appendTo(out);
+        }
+    }
+
+    /** The first {@code count} chars. */
+    private static Rope prefix(Rope node, int count) {
+        if (count <= 0) return EMPTY;
+        if (count >= node.length) return node;
+        if (node.text != null) return new Rope(node.text.substring(0, count));
+        if (count <= node.left.length) return prefix(node.left, count);
+        return join(node.left, prefix(node.right, count - node.left.length));
+    }
+
+    /** Everything from {@code start} on. */
+    private static Rope suffix(Rope node, int start) {
+        if (start <= 0) return node;
+        if (start >= node.length) return EMPTY;
+        if (node.text != null) return new Rope(node.text.substring(start));
+        if (start >= node.left.length) return suffix(node.right, start - node.left.length);
+        return join(suffix(node.left, start), node.right);
+    }
+
+    /** Concatenates two ropes, keeping the tree balanced by descending the taller one's spine. */
+    private static Rope join(Rope a, Rope b) {
+        if (a.length == 0) return b;
+        if (b.length == 0) return a;
+        if (a.text != null && b.text != null && a.length + b.length <= MAX_LEAF) {
+            return new Rope(a.text + b.text);
+        }
+        if (a.height > b.height + 1) return balance(a.left, join(a.right, b));
+        if (b.height > a.height + 1) return balance(join(a, b.left), b.right);
+        return new Rope(a, b);
+    }
+
+    /** A branch of {@code l} and {@code r}, rotated if their heights differ by more than one. */
+    private static Rope balance(Rope l, Rope r) {
+        if (l.height > r.height + 1) {
+            if (l.left.height >= l.right.height) return new Rope(l.left, balance(l.right, r));
+            return new Rope(new Rope(l.left, l.right.left), balance(l.right.right, r));
+        }
+        if (r.height > l.height + 1) {
+            if (r.right.height >= r.left.height) return new Rope(balance(l, r.left), r.right);
+            return new Rope(balance(l, r.left.left), new Rope(r.left.right, r.right));
+        }
+        return new Rope(l, r);
+    }
+}
@@ -0,0 +1,180 @@
+package dev.secondsun.lsp;
+
+import java.net.URI;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Runs a server's background work, such as linting a document after the user stops typing. Tasks are
+ * keyed by document: scheduling a task for a URI replaces the one still waiting for that URI, so a
+ * burst of edits produces one run after the last edit plus the delay.
+ *
+ * <p>Tasks and idle callbacks run one at a time on a single "background" thread owned by the
+ * connection, never on the thread that handles messages.
+ */
+public class Scheduler implements AutoCloseable {
+    private final ScheduledThreadPoolExecutor executor;
+    private final Map<URI, Task> pending = new ConcurrentHashMap<>();
+    private final List<Runnable> idleCallbacks = new CopyOnWriteArrayList<>();
+    /** Set by {@link #close}, after which new tasks are dropped. */
+    private volatile boolean closed;
+
+    private long tasksRun, tasksReplaced, totalLagNanos, maxLagNanos, totalRunNanos;
+
+    public Scheduler() {
+        executor =
+                new ScheduledThreadPoolExecutor(
+                        1,
+                        runnable -> {
+                            var thread = new Thread(runnable, "background");
+                            thread.setDaemon(true);
+                            return thread;
+                        });
+        executor.setRemoveOnCancelPolicy(true);
+    }
+
+    /**
+     * Runs {@code task} once {@code delay} has passed, unless another task is scheduled for {@code uri}
+     * first, in which case this one is dropped. A task that has already started is not interrupted.
+     * Once the scheduler is closed, tasks are dropped.
+     */
+    public void schedule(URI uri, Duration delay, Runnable task) {
+        if (closed) {
+            return;
+        }
+        pending.compute(
+                uri,
+                (key, previous) -> {
+                    if (previous != null && previous.future.cancel(false)) {
+                        replaced();
+                    }
+                    var next = new Task(key, System.nanoTime() + delay.toNanos(), task);
+                    try {
+                        next.future = executor.schedule(next, delay.toNanos(), TimeUnit.NANOSECONDS);
+                    } catch (RejectedExecutionException e) {
+                        // Closed while this was being scheduled
+                        return null;
+                    }
+                    return next;
+                });
+    }
+
+    /** Drops the task waiting for {@code uri}, if any. */
+    public void cancel(URI uri) {
+        var task = pending.remove(uri);
+        if (task != null) {
+            task.future.cancel(false);
+        }
+    }
+
+    /** Runs {@code callback} every time the client stops sending messages and every request has been answered. */
+    public void onIdle(Runnable callback) {
+        idleCallbacks.add(callback);
+    }
+
+    /** Called by the message loop when it runs out of messages. */
+    void idle() {
+        for (var callback : idleCallbacks) {
+            execute(callback);
+        }
+    }
+
+    /** Runs {@code task} on the background thread as soon as it is free, unless the scheduler is closed. */
+    void execute(Runnable task) {
+        if (closed) {
+            return;
+        }
+        var now = System.nanoTime();
+        try {
+            executor.execute(() -> run(task, now));
+        } catch (RejectedExecutionException e) {
+            // Closed while this was being submitted
+        }
+    }
+
+    /** Stops the background thread, dropping any tasks that haven't started and any scheduled later. */
+    @Override
+    public void close() {
+        closed = true;
+        executor.shutdownNow();
+        pending.clear();
+    }
+
+    /** Number of tasks and idle callbacks that have run. */
+    public synchronized long tasksRun() {
+        return tasksRun;
+    }
+
+    /** Number of tasks that were replaced before they started. */
+    public synchronized long tasksReplaced() {
+        return tasksReplaced;
+    }
+
+    /** Average time between when a task was due and when it started. */
+    public synchronized Duration averageLag() {
+        return Duration.ofNanos(tasksRun == 0 ? 0 : totalLagNanos / tasksRun);
+    }
+
+    /** Longest time any task waited past its due time. */
+    public synchronized Duration maxLag() {
+        return Duration.ofNanos(maxLagNanos);
+    }
+
+    /** Average time tasks took to run. */
+    public synchronized Duration averageRunTime() {
+        return Duration.ofNanos(tasksRun == 0 ? 0 : totalRunNanos / tasksRun);
+    }
+
+    private void run(Runnable task, long dueNanos) {
+        var started = System.nanoTime();
+        try {
+            task.run();
+        } catch (RuntimeException e) {
+            LOG.log(Level.SEVERE, "Background task failed", e);
+        } finally {
+            ran(started - dueNanos, System.nanoTime() - started);
+        }
+    }
+
+    private synchronized void ran(long lagNanos, long runNanos) {
+        lagNanos = Math.max(0, lagNanos);
+        tasksRun++;
+        totalLagNanos += lagNanos;
+        maxLagNanos = Math.max(maxLagNanos, lagNanos);
+        totalRunNanos += runNanos;
+    }
+
+    private synchronized void replaced() {
+        tasksReplaced++;
+    }
+
+    private class Task implements Runnable {
+        final URI uri;
+        final long dueNanos;
+        final Runnable task;
+        Future<?> future;
+
+        Task(URI uri, long dueNanos, Runnable task) {
+            this.uri = uri;
+            this.dueNanos = dueNanos;
+            this.task = task;
+        }
+
+        @Override
+        public void run() {
+            pending.remove(uri, this);
+            Scheduler.this.run(task, dueNanos);
+        }
+    }
+
+    private static final Logger LOG = Logger.getLogger("main");
+}
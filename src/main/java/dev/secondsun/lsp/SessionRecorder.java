@@ -0,0 +1,95 @@
+package dev.secondsun.lsp;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Appends every frame of a connection to a {@link Recording} file. The reader thread records what
+ * the client sends and the writer thread records what goes out, each stamped with nanoseconds since
+ * the recording started. A failure to write stops the recording, never the connection.
+ */
+class SessionRecorder implements AutoCloseable {
+    private final DataOutputStream out;
+    private final long start = System.nanoTime();
+    private boolean failed;
+
+    private SessionRecorder(DataOutputStream out) {
+        this.out = out;
+    }
+
+    static SessionRecorder open(Path file) {
+        try {
+            var out = new DataOutputStream(new GZIPOutputStream(new BufferedOutputStream(Files.newOutputStream(file)), 8192, true));
+            out.write(Recording.MAGIC);
+            out.writeByte(Recording.VERSION);
+            LOG.info("Recording session to " + file);
+            return new SessionRecorder(out);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /** Records a message body read from the client. */
+    synchronized void inbound(String body) {
+        if (failed) return;
+        var bytes = body.getBytes(StandardCharsets.UTF_8);
+        try {
+            header(Recording.INBOUND, bytes.length);
+            out.write(bytes);
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    /** Records a message about to be written to the client. */
+    synchronized void outbound(MessageBuffer message) {
+        if (failed) return;
+        try {
+            header(Recording.OUTBOUND, message.bodyLength());
+            message.writeBody(out);
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    /** Pushes what has been recorded so far to the file, so a crash loses little. */
+    synchronized void flush() {
+        if (failed) return;
+        try {
+            out.flush();
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        // The reader thread may outlive the connection, so drop anything recorded after this
+        failed = true;
+        try {
+            out.close();
+        } catch (IOException e) {
+            LOG.log(Level.WARNING, "Failed to close recording", e);
+        }
+    }
+
+    private void header(byte direction, int length) throws IOException {
+        out.writeByte(direction);
+        out.writeLong(System.nanoTime() - start);
+        out.writeInt(length);
+    }
+
+    private void fail(IOException e) {
+        LOG.log(Level.SEVERE, "Failed to record session, recording stopped", e);
+        failed = true;
+    }
+
+    private static final Logger LOG = Logger.getLogger("main");
+}
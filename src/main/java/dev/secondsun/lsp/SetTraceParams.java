@@ -0,0 +1,6 @@
+package dev.secondsun.lsp;
+
+public class SetTraceParams {
+    /** One of {@link TraceValue}. */
+    public String value;
+}
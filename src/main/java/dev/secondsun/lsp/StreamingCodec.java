@@ -0,0 +1,1116 @@
+package dev.secondsun.lsp;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonNull;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonPrimitive;
+import com.google.gson.annotations.JsonAdapter;
+import com.google.gson.annotations.SerializedName;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.GenericArrayType;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.lang.reflect.WildcardType;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+/**
+ * A {@link JsonCodec} that doesn't go through Gson's reader, writer or adapters. Values are parsed
+ * straight out of the frame's String and written straight into the {@link MessageBuffer}. Each
+ * class's fields are looked up once, and primitive fields are read and written without boxing.
+ *
+ * <p>It follows Gson's rules, so the two codecs are interchangeable: fields are written subclass
+ * first in declaration order, a subclass of the declared class is written as its runtime class, null
+ * fields and map entries are skipped, strings are escaped the same way, numbers and booleans may be
+ * quoted and a string field accepts a number or boolean. {@code JsonElement} fields are still built
+ * as Gson trees, since that is the type the protocol classes declare. Classes with their own
+ * {@code @JsonAdapter}, other than {@link MarkedString}, and types it doesn't know, such as generic
+ * classes and arrays, are handed to {@link JsonCodec#gson()}.
+ */
+class StreamingCodec implements JsonCodec {
+    static final StreamingCodec INSTANCE = new StreamingCodec();
+
+    private final Map<Type, Codec<?>> codecs = new ConcurrentHashMap<>();
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <T> Binding<T> binding(Type type) {
+        return (Binding<T>) codec(type);
+    }
+
+    @SuppressWarnings("unchecked")
+    private Codec<Object> codec(Type type) {
+        var codec = codecs.get(type);
+        if (codec == null) {
+            // Not computeIfAbsent, because object codecs are recursive. Field codecs are resolved on first use.
+            codec = create(type);
+            var existing = codecs.putIfAbsent(type, codec);
+            if (existing != null) codec = existing;
+        }
+        return (Codec<Object>) codec;
+    }
+
+    private Codec<?> create(Type type) {
+        var raw = raw(type);
+        if (raw == String.class) return STRING;
+        if (raw == int.class || raw == Integer.class) return INT;
+        if (raw == boolean.class || raw == Boolean.class) return BOOLEAN;
+        if (raw == long.class || raw == Long.class) return LONG;
+        if (raw == double.class || raw == Double.class) return DOUBLE;
+        if (raw == char.class || raw == Character.class) return CHARACTER;
+        if (raw == URI.class) return URI_CODEC;
+        if (raw == Object.class) return new NaturalCodec();
+        if (JsonElement.class.isAssignableFrom(raw)) return new TreeCodec(raw);
+        if (raw == MarkedString.class) return MARKED_STRING;
+        if (raw.isEnum()) return new EnumCodec(raw);
+        if (raw == List.class || raw == Collection.class || raw == ArrayList.class)
+            return new CollectionCodec(typeArgument(type, 0), ArrayList::new);
+        if (raw == Set.class || raw == LinkedHashSet.class)
+            return new CollectionCodec(typeArgument(type, 0), n -> new LinkedHashSet<>());
+        if (raw == Map.class || raw == HashMap.class || raw == LinkedHashMap.class) {
+            var key = keyConverter(raw(typeArgument(type, 0)));
+            if (key != null) return new MapCodec(key, typeArgument(type, 1));
+        }
+        if (isPlainClass(type, raw)) {
+            var object = ObjectCodec.create(this, raw);
+            if (object != null) return object;
+        }
+        return new Fallback(JsonCodec.gson().binding(type));
+    }
+
+    /** A class whose public fields can be bound here, rather than one that needs Gson's adapters. */
+    private static boolean isPlainClass(Type type, Class<?> raw) {
+        return type instanceof Class
+                && raw.getTypeParameters().length == 0
+                && !raw.isInterface()
+                && !raw.isArray()
+                && !raw.isPrimitive()
+                && !Modifier.isAbstract(raw.getModifiers())
+                && !raw.isAnnotationPresent(JsonAdapter.class)
+                && !raw.getName().startsWith("java.");
+    }
+
+    private static Class<?> raw(Type type) {
+        if (type instanceof Class) return (Class<?>) type;
+        if (type instanceof ParameterizedType) return (Class<?>) ((ParameterizedType) type).getRawType();
+        if (type instanceof WildcardType) return raw(((WildcardType) type).getUpperBounds()[0]);
+        if (type instanceof GenericArrayType) return Object[].class;
+        return Object.class;
+    }
+
+    private static Type typeArgument(Type type, int i) {
+        if (type instanceof ParameterizedType) {
+            var argument = ((ParameterizedType) type).getActualTypeArguments()[i];
+            return argument instanceof WildcardType ? ((WildcardType) argument).getUpperBounds()[0] : argument;
+        }
+        return Object.class;
+    }
+
+    /** Converts the names of an object to map keys, or null if keys of {@code type} aren't supported. */
+    private static Function<String, Object> keyConverter(Class<?> type) {
+        if (type == String.class || type == Object.class) return name -> name;
+        if (type == URI.class) return StreamingCodec::uri;
+        if (type == Integer.class) return Integer::valueOf;
+        return null;
+    }
+
+    private static URI uri(String text) {
+        try {
+            return new URI(text);
+        } catch (URISyntaxException e) {
+            throw new JsonParseException(e);
+        }
+    }
+
+    /** Reads and writes one type. Implementations don't see nulls, which {@link #read} and {@link #write} handle. */
+    abstract static class Codec<T> implements Binding<T> {
+        abstract T read(Cursor in);
+
+        abstract void writeValue(MessageBuffer out, T value);
+
+        /** Writes {@code value} as this type, or as its runtime class if that is more specific. */
+        void writeNonNull(MessageBuffer out, T value) {
+            writeValue(out, value);
+        }
+
+        @Override
+        public final T read(String json, int start) {
+            var in = new Cursor(json, start);
+            return in.nextNull() ? null : read(in);
+        }
+
+        @Override
+        public final void write(MessageBuffer out, T value) {
+            if (value == null) {
+                out.writeAscii("null");
+            } else {
+                writeNonNull(out, value);
+            }
+        }
+    }
+
+    private static final Codec<String> STRING =
+            new Codec<>() {
+                @Override
+                String read(Cursor in) {
+                    return in.nextString();
+                }
+
+                @Override
+                void writeValue(MessageBuffer out, String value) {
+                    out.writeString(value);
+                }
+            };
+
+    private static final Codec<Integer> INT =
+            new Codec<>() {
+                @Override
+                Integer read(Cursor in) {
+                    return in.nextInt();
+                }
+
+                @Override
+                void writeValue(MessageBuffer out, Integer value) {
+                    out.writeInt(value);
+                }
+            };
+
+    private static final Codec<Long> LONG =
+            new Codec<>() {
+                @Override
+                Long read(Cursor in) {
+                    return in.nextLong();
+                }
+
+                @Override
+                void writeValue(MessageBuffer out, Long value) {
+                    out.writeLong(value);
+                }
+            };
+
+    private static final Codec<Double> DOUBLE =
+            new Codec<>() {
+                @Override
+                Double read(Cursor in) {
+                    return in.nextDouble();
+                }
+
+                @Override
+                void writeValue(MessageBuffer out, Double value) {
+                    if (value.isNaN() || value.isInfinite()) {
+                        throw new IllegalArgumentException(value + " is not a valid double value as per JSON specification.");
+                    }
+                    out.writeAscii(value.toString());
+                }
+            };
+
+    private static final Codec<Boolean> BOOLEAN =
+            new Codec<>() {
+                @Override
+                Boolean read(Cursor in) {
+                    return in.nextBoolean();
+                }
+
+                @Override
+                void writeValue(MessageBuffer out, Boolean value) {
+                    out.writeAscii(value ? "true" : "false");
+                }
+            };
+
+    private static final Codec<Character> CHARACTER =
+            new Codec<>() {
+                @Override
+                Character read(Cursor in) {
+                    var start = in.pos;
+                    var text = in.nextString();
+                    if (text.length() != 1) {
+                        throw new JsonParseException(
+                                String.format("Expected a char but was \"%s\" at offset %d", text, start));
+                    }
+                    return text.charAt(0);
+                }
+
+                @Override
+                void writeValue(MessageBuffer out, Character value) {
+                    out.writeString(value.toString());
+                }
+            };
+
+    private static final Codec<URI> URI_CODEC =
+            new Codec<>() {
+                @Override
+                URI read(Cursor in) {
+                    var text = in.nextString();
+                    return text.equals("null") ? null : uri(text);
+                }
+
+                @Override
+                void writeValue(MessageBuffer out, URI value) {
+                    out.writeString(value.toASCIIString());
+                }
+            };
+
+    /** Written as a plain string when it has no language, as {@link MarkedString.Adapter} does, and read either way. */
+    private static final Codec<MarkedString> MARKED_STRING =
+            new Codec<>() {
+                @Override
+                MarkedString read(Cursor in) {
+                    if (in.peek() == '"') {
+                        return new MarkedString(in.nextString());
+                    }
+                    var value = new MarkedString();
+                    in.beginObject();
+                    while (in.hasNextName()) {
+                        if (in.nameIs("language")) {
+                            in.nameValue();
+                            value.language = in.nextNull() ? null : in.nextString();
+                        } else if (in.nameIs("value")) {
+                            in.nameValue();
+                            value.value = in.nextNull() ? null : in.nextString();
+                        } else {
+                            in.nameValue();
+                            in.skipValue();
+                        }
+                    }
+                    return value;
+                }
+
+                @Override
+                void writeValue(MessageBuffer out, MarkedString value) {
+                    if (value.language == null) {
+                        STRING.write(out, value.value);
+                        return;
+                    }
+                    out.writeAscii("{\"language\":");
+                    out.writeString(value.language);
+                    out.writeAscii(",\"value\":");
+                    STRING.write(out, value.value);
+                    out.write((byte) '}');
+                }
+            };
+
+    private static class EnumCodec extends Codec<Object> {
+        final Map<String, Object> constants = new HashMap<>();
+        final Map<Object, String> names = new HashMap<>();
+
+        EnumCodec(Class<?> type) {
+            for (var field : type.getDeclaredFields()) {
+                if (!field.isEnumConstant()) continue;
+                var constant = Enum.valueOf(type.asSubclass(Enum.class), field.getName());
+                var serialized = field.getAnnotation(SerializedName.class);
+                var name = serialized != null ? serialized.value() : field.getName();
+                names.put(constant, name);
+                constants.put(name, constant);
+                if (serialized != null) {
+                    for (var alternate : serialized.alternate()) constants.put(alternate, constant);
+                }
+            }
+        }
+
+        @Override
+        Object read(Cursor in) {
+            return constants.get(in.nextString());
+        }
+
+        @Override
+        void writeValue(MessageBuffer out, Object value) {
+            out.writeString(names.get(value));
+        }
+    }
+
+    /** {@code Object}: maps, lists, strings, doubles and booleans when reading, the runtime class when writing. */
+    private class NaturalCodec extends Codec<Object> {
+        @Override
+        Object read(Cursor in) {
+            switch (in.peek()) {
+                case '{':
+                    var map = new LinkedHashMap<String, Object>();
+                    in.beginObject();
+                    while (in.hasNextName()) {
+                        var name = in.nextName();
+                        map.put(name, in.nextNull() ? null : read(in));
+                    }
+                    return map;
+                case '[':
+                    var list = new ArrayList<Object>();
+                    in.beginArray();
+                    while (in.hasNextElement()) {
+                        list.add(in.nextNull() ? null : read(in));
+                    }
+                    return list;
+                case '"':
+                    return in.nextString();
+                case 't':
+                case 'f':
+                    return in.nextBoolean();
+                default:
+                    return in.nextDouble();
+            }
+        }
+
+        @Override
+        void writeValue(MessageBuffer out, Object value) {
+            if (value.getClass() == Object.class) {
+                out.writeAscii("{}");
+            } else {
+                codec(value.getClass()).writeValue(out, value);
+            }
+        }
+    }
+
+    private static class TreeCodec extends Codec<JsonElement> {
+        final Class<?> type;
+
+        TreeCodec(Class<?> type) {
+            this.type = type;
+        }
+
+        @Override
+        JsonElement read(Cursor in) {
+            var tree = tree(in);
+            if (!type.isInstance(tree)) {
+                throw new JsonParseException(
+                        String.format("Expected %s but was %s", type.getSimpleName(), tree.getClass().getSimpleName()));
+            }
+            return tree;
+        }
+
+        private static JsonElement tree(Cursor in) {
+            switch (in.peek()) {
+                case '{':
+                    var object = new JsonObject();
+                    in.beginObject();
+                    while (in.hasNextName()) {
+                        var name = in.nextName();
+                        object.add(name, in.nextNull() ? JsonNull.INSTANCE : tree(in));
+                    }
+                    return object;
+                case '[':
+                    var array = new JsonArray();
+                    in.beginArray();
+                    while (in.hasNextElement()) {
+                        array.add(in.nextNull() ? JsonNull.INSTANCE : tree(in));
+                    }
+                    return array;
+                case '"':
+                    return new JsonPrimitive(in.nextString());
+                case 'n':
+                    in.nextNull();
+                    return JsonNull.INSTANCE;
+                case 't':
+                case 'f':
+                    return new JsonPrimitive(in.nextBoolean());
+                default:
+                    return new JsonPrimitive(new NumberText(in.nextNumberText()));
+            }
+        }
+
+        @Override
+        void writeValue(MessageBuffer out, JsonElement value) {
+            if (value.isJsonNull()) {
+                out.writeAscii("null");
+            } else if (value.isJsonObject()) {
+                out.write((byte) '{');
+                var first = true;
+                for (var member : value.getAsJsonObject().entrySet()) {
+                    // Gson drops members whose value is null unless serializeNulls is set
+                    if (member.getValue().isJsonNull()) continue;
+                    if (!first) out.write((byte) ',');
+                    first = false;
+                    out.writeString(member.getKey());
+                    out.write((byte) ':');
+                    writeValue(out, member.getValue());
+                }
+                out.write((byte) '}');
+            } else if (value.isJsonArray()) {
+                out.write((byte) '[');
+                var first = true;
+                for (var element : value.getAsJsonArray()) {
+                    if (!first) out.write((byte) ',');
+                    first = false;
+                    writeValue(out, element);
+                }
+                out.write((byte) ']');
+            } else {
+                var primitive = value.getAsJsonPrimitive();
+                if (primitive.isString()) {
+                    out.writeString(primitive.getAsString());
+                } else if (primitive.isBoolean()) {
+                    out.writeAscii(primitive.getAsBoolean() ? "true" : "false");
+                } else {
+                    out.writeAscii(primitive.getAsNumber().toString());
+                }
+            }
+        }
+    }
+
+    /** A number kept as its text, so it is written back exactly as it was read, as Gson's trees do. */
+    private static class NumberText extends Number {
+        final String text;
+
+        NumberText(String text) {
+            this.text = text;
+        }
+
+        @Override
+        public int intValue() {
+            try {
+                return Integer.parseInt(text);
+            } catch (NumberFormatException e) {
+                return (int) longValue();
+            }
+        }
+
+        @Override
+        public long longValue() {
+            try {
+                return Long.parseLong(text);
+            } catch (NumberFormatException e) {
+                return (long) doubleValue();
+            }
+        }
+
+        @Override
+        public float floatValue() {
+            return Float.parseFloat(text);
+        }
+
+        @Override
+        public double doubleValue() {
+            return Double.parseDouble(text);
+        }
+
+        @Override
+        public String toString() {
+            return text;
+        }
+    }
+
+    private class CollectionCodec extends Codec<Collection<Object>> {
+        final Type elementType;
+        final Function<Integer, Collection<Object>> create;
+        Codec<Object> element;
+
+        CollectionCodec(Type elementType, Function<Integer, Collection<Object>> create) {
+            this.elementType = elementType;
+            this.create = create;
+        }
+
+        private Codec<Object> element() {
+            var codec = element;
+            if (codec == null) element = codec = codec(elementType);
+            return codec;
+        }
+
+        @Override
+        Collection<Object> read(Cursor in) {
+            var element = element();
+            var values = create.apply(10);
+            in.beginArray();
+            while (in.hasNextElement()) {
+                values.add(in.nextNull() ? null : element.read(in));
+            }
+            return values;
+        }
+
+        @Override
+        void writeValue(MessageBuffer out, Collection<Object> values) {
+            var element = element();
+            out.write((byte) '[');
+            var first = true;
+            for (var value : values) {
+                if (!first) out.write((byte) ',');
+                first = false;
+                if (value == null) {
+                    out.writeAscii("null");
+                } else {
+                    element.writeNonNull(out, value);
+                }
+            }
+            out.write((byte) ']');
+        }
+    }
+
+    private class MapCodec extends Codec<Map<Object, Object>> {
+        final Function<String, Object> key;
+        final Type valueType;
+        Codec<Object> value;
+
+        MapCodec(Function<String, Object> key, Type valueType) {
+            this.key = key;
+            this.valueType = valueType;
+        }
+
+        private Codec<Object> value() {
+            var codec = value;
+            if (codec == null) value = codec = codec(valueType);
+            return codec;
+        }
+
+        @Override
+        Map<Object, Object> read(Cursor in) {
+            var value = value();
+            var map = new LinkedHashMap<Object, Object>();
+            in.beginObject();
+            while (in.hasNextName()) {
+                var name = in.nextName();
+                if (map.put(key.apply(name), in.nextNull() ? null : value.read(in)) != null) {
+                    throw new JsonParseException("duplicate key: " + name);
+                }
+            }
+            return map;
+        }
+
+        @Override
+        void writeValue(MessageBuffer out, Map<Object, Object> map) {
+            var value = value();
+            out.write((byte) '{');
+            var first = true;
+            for (var entry : map.entrySet()) {
+                if (entry.getValue() == null) continue;
+                if (!first) out.write((byte) ',');
+                first = false;
+                out.writeString(String.valueOf(entry.getKey()));
+                out.write((byte) ':');
+                value.writeNonNull(out, entry.getValue());
+            }
+            out.write((byte) '}');
+        }
+    }
+
+    /** A type bound by Gson, for example a class with its own {@code @JsonAdapter}. */
+    private static class Fallback extends Codec<Object> {
+        final Binding<Object> gson;
+
+        Fallback(Binding<Object> gson) {
+            this.gson = gson;
+        }
+
+        @Override
+        Object read(Cursor in) {
+            var start = in.pos;
+            in.skipValue();
+            return gson.read(in.json, start);
+        }
+
+        @Override
+        void writeValue(MessageBuffer out, Object value) {
+            gson.write(out, value);
+        }
+    }
+
+    /** Binds a class's fields, which are looked up once and sorted the way Gson orders them. */
+    private static class ObjectCodec extends Codec<Object> {
+        final StreamingCodec codecs;
+        final Class<?> type;
+        final Constructor<?> constructor;
+        final Property[] properties;
+
+        private ObjectCodec(StreamingCodec codecs, Class<?> type, Constructor<?> constructor, Property[] properties) {
+            this.codecs = codecs;
+            this.type = type;
+            this.constructor = constructor;
+            this.properties = properties;
+        }
+
+        /** Returns null if the class can't be bound without Gson, for example because it has no no-arg constructor. */
+        static ObjectCodec create(StreamingCodec codecs, Class<?> type) {
+            Constructor<?> constructor;
+            try {
+                constructor = type.getDeclaredConstructor();
+            } catch (NoSuchMethodException e) {
+                return null;
+            }
+            if (!constructor.trySetAccessible()) return null;
+            var properties = new ArrayList<Property>();
+            for (var c = type; c != Object.class; c = c.getSuperclass()) {
+                for (var field : c.getDeclaredFields()) {
+                    var modifiers = field.getModifiers();
+                    if (Modifier.isStatic(modifiers) || Modifier.isTransient(modifiers) || field.isSynthetic()) continue;
+                    if (!field.trySetAccessible()) return null;
+                    properties.add(new Property(codecs, field));
+                }
+            }
+            return new ObjectCodec(codecs, type, constructor, properties.toArray(new Property[0]));
+        }
+
+        @Override
+        Object read(Cursor in) {
+            Object value;
+            try {
+                value = constructor.newInstance();
+            } catch (ReflectiveOperationException e) {
+                throw new JsonParseException("Failed to create " + type.getName(), e);
+            }
+            in.beginObject();
+            while (in.hasNextName()) {
+                var property = find(in);
+                in.nameValue();
+                if (property == null) {
+                    in.skipValue();
+                } else {
+                    property.read(in, value);
+                }
+            }
+            return value;
+        }
+
+        private Property find(Cursor in) {
+            for (var property : properties) {
+                if (in.nameIs(property.name)) return property;
+            }
+            for (var property : properties) {
+                for (var alternate : property.alternates) {
+                    if (in.nameIs(alternate)) return property;
+                }
+            }
+            return null;
+        }
+
+        @Override
+        void writeValue(MessageBuffer out, Object value) {
+            out.write((byte) '{');
+            var first = true;
+            for (var property : properties) {
+                if (property.write(out, value, first)) first = false;
+            }
+            out.write((byte) '}');
+        }
+
+        @Override
+        void writeNonNull(MessageBuffer out, Object value) {
+            // A subclass is written with all of its fields, as Gson does
+            if (value.getClass() == type) {
+                writeValue(out, value);
+            } else {
+                codecs.codec(value.getClass()).writeValue(out, value);
+            }
+        }
+    }
+
+    /** One field. Primitive fields are read and written without boxing. */
+    private static class Property {
+        final StreamingCodec codecs;
+        final Field field;
+        final Class<?> type;
+        final String name;
+        final String[] alternates;
+        /** The name and colon, already escaped, with and without a leading comma. */
+        final byte[] first, next;
+        Codec<Object> codec;
+
+        Property(StreamingCodec codecs, Field field) {
+            this.codecs = codecs;
+            this.field = field;
+            this.type = field.getType();
+            var serialized = field.getAnnotation(SerializedName.class);
+            this.name = serialized != null ? serialized.value() : field.getName();
+            this.alternates = serialized != null ? serialized.alternate() : new String[0];
+            var buffer = MessageBuffer.acquire();
+            try {
+                buffer.write((byte) ',');
+                buffer.writeString(name);
+                buffer.write((byte) ':');
+                this.next = buffer.body().getBytes(StandardCharsets.UTF_8);
+            } finally {
+                buffer.release();
+            }
+            this.first = Arrays.copyOfRange(next, 1, next.length);
+        }
+
+        private Codec<Object> codec() {
+            var c = codec;
+            if (c == null) codec = c = codecs.codec(field.getGenericType());
+            return c;
+        }
+
+        void read(Cursor in, Object target) {
+            try {
+                if (in.nextNull()) {
+                    // JSON null leaves a primitive at its default
+                    if (!type.isPrimitive()) field.set(target, null);
+                } else if (type == int.class) {
+                    field.setInt(target, in.nextInt());
+                } else if (type == boolean.class) {
+                    field.setBoolean(target, in.nextBoolean());
+                } else if (type == long.class) {
+                    field.setLong(target, in.nextLong());
+                } else if (type == double.class) {
+                    field.setDouble(target, in.nextDouble());
+                } else {
+                    field.set(target, codec().read(in));
+                }
+            } catch (IllegalAccessException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        /** Writes the field unless it is null, and returns whether it did. */
+        boolean write(MessageBuffer out, Object source, boolean isFirst) {
+            try {
+                if (type == int.class) {
+                    name(out, isFirst);
+                    out.writeInt(field.getInt(source));
+                    return true;
+                }
+                if (type == boolean.class) {
+                    name(out, isFirst);
+                    out.writeAscii(field.getBoolean(source) ? "true" : "false");
+                    return true;
+                }
+                var value = field.get(source);
+                if (value == null) return false;
+                name(out, isFirst);
+                codec().writeNonNull(out, value);
+                return true;
+            } catch (IllegalAccessException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        private void name(MessageBuffer out, boolean isFirst) {
+            var bytes = isFirst ? first : next;
+            out.write(bytes, 0, bytes.length);
+        }
+    }
+
+    /** Reads JSON values from a String, starting at {@link #pos}. Whitespace before a token is skipped. */
+    static class Cursor {
+        final String json;
+        int pos;
+        /** Bounds of the name last read by {@link #hasNextName}, between the quotes. */
+        private int nameStart, nameEnd;
+        private boolean nameEscaped;
+
+        Cursor(String json, int pos) {
+            this.json = json;
+            this.pos = pos;
+        }
+
+        char peek() {
+            skipWhitespace();
+            if (pos >= json.length()) {
+                malformed();
+            }
+            return json.charAt(pos);
+        }
+
+        /** Consumes a null literal if there is one. */
+        boolean nextNull() {
+            if (peek() == 'n' && json.startsWith("null", pos)) {
+                pos += 4;
+                return true;
+            }
+            return false;
+        }
+
+        void beginObject() {
+            expect('{');
+        }
+
+        void beginArray() {
+            expect('[');
+        }
+
+        /**
+         * Moves to the next member of the current object and reads its name, or consumes the closing
+         * brace and returns false. Call {@link #nameValue} before reading the member's value.
+         */
+        boolean hasNextName() {
+            if (!skipComma('}')) {
+                return false;
+            }
+            expect('"');
+            nameStart = pos;
+            nameEscaped = false;
+            while (true) {
+                if (pos >= json.length()) malformed();
+                var c = json.charAt(pos);
+                if (c == '"') break;
+                if (c == '\\') {
+                    nameEscaped = true;
+                    pos++;
+                }
+                pos++;
+            }
+            nameEnd = pos++;
+            return true;
+        }
+
+        boolean nameIs(String name) {
+            if (nameEscaped) {
+                return name.equals(unescape(json, nameStart, nameEnd));
+            }
+            return nameEnd - nameStart == name.length() && json.regionMatches(nameStart, name, 0, name.length());
+        }
+
+        /** Consumes the colon after the name. */
+        void nameValue() {
+            expect(':');
+        }
+
+        /** The name, and the colon after it. */
+        String nextName() {
+            var name = nameEscaped ? unescape(json, nameStart, nameEnd) : json.substring(nameStart, nameEnd);
+            expect(':');
+            return name;
+        }
+
+        /** Moves to the next element of the current array, or consumes the closing bracket and returns false. */
+        boolean hasNextElement() {
+            return skipComma(']');
+        }
+
+        /**
+         * Consumes the comma before the next member or element, or the closing {@code close} and returns
+         * false. Containers are read without a stack, so a comma is optional.
+         */
+        private boolean skipComma(char close) {
+            var c = peek();
+            if (c == ',') {
+                pos++;
+                c = peek();
+            }
+            if (c == close) {
+                pos++;
+                return false;
+            }
+            return true;
+        }
+
+        /** A string, or the text of a number or boolean. */
+        String nextString() {
+            var c = peek();
+            if (c != '"') {
+                if (c == 't' || c == 'f') return Boolean.toString(nextBoolean());
+                return nextNumberText();
+            }
+            var start = ++pos;
+            while (pos < json.length()) {
+                c = json.charAt(pos);
+                if (c == '"') {
+                    return json.substring(start, pos++);
+                }
+                if (c == '\\') {
+                    // Rare in protocol messages, so only strings with escapes take the slow path
+                    var end = skipString(start);
+                    pos = end + 1;
+                    return unescape(json, start, end);
+                }
+                pos++;
+            }
+            return malformed();
+        }
+
+        /** Returns the index of the closing quote of the string whose contents start at {@code i}. */
+        private int skipString(int i) {
+            for (; i < json.length(); i++) {
+                var c = json.charAt(i);
+                if (c == '\\') i++;
+                else if (c == '"') return i;
+            }
+            return malformed();
+        }
+
+        String nextNumberText() {
+            var c = peek();
+            if (c == '"') {
+                var text = nextString();
+                if (text.isEmpty()) malformed();
+                return text;
+            }
+            var start = pos;
+            while (pos < json.length()) {
+                c = json.charAt(pos);
+                if ((c >= '0' && c <= '9') || c == '-' || c == '+' || c == '.' || c == 'e' || c == 'E') pos++;
+                else break;
+            }
+            if (pos == start) malformed();
+            return json.substring(start, pos);
+        }
+
+        int nextInt() {
+            var c = peek();
+            if (c != '"') {
+                // Fast path for the small non-negative integers that make up most of a message's numbers
+                var i = pos;
+                var value = 0;
+                while (i < json.length() && i - pos < 9) {
+                    c = json.charAt(i);
+                    if (c < '0' || c > '9') break;
+                    value = value * 10 + (c - '0');
+                    i++;
+                }
+                if (i > pos && (i == json.length() || isDelimiter(json.charAt(i)))) {
+                    pos = i;
+                    return value;
+                }
+            }
+            var text = nextNumberText();
+            try {
+                return Integer.parseInt(text);
+            } catch (NumberFormatException e) {
+                var value = parseDouble(text);
+                var asInt = (int) value;
+                if (asInt != value) {
+                    throw new JsonParseException("Expected an int but was " + text);
+                }
+                return asInt;
+            }
+        }
+
+        long nextLong() {
+            var text = nextNumberText();
+            try {
+                return Long.parseLong(text);
+            } catch (NumberFormatException e) {
+                var value = parseDouble(text);
+                var asLong = (long) value;
+                if (asLong != value) {
+                    throw new JsonParseException("Expected a long but was " + text);
+                }
+                return asLong;
+            }
+        }
+
+        double nextDouble() {
+            return parseDouble(nextNumberText());
+        }
+
+        private static double parseDouble(String text) {
+            try {
+                return Double.parseDouble(text);
+            } catch (NumberFormatException e) {
+                throw new JsonParseException("Expected a number but was " + text);
+            }
+        }
+
+        boolean nextBoolean() {
+            var c = peek();
+            if (c == '"') {
+                return Boolean.parseBoolean(nextString());
+            }
+            if (json.startsWith("true", pos)) {
+                pos += 4;
+                return true;
+            }
+            if (json.startsWith("false", pos)) {
+                pos += 5;
+                return false;
+            }
+            return malformed();
+        }
+
+        void skipValue() {
+            var c = peek();
+            if (c == '"') {
+                pos = skipString(pos + 1) + 1;
+                return;
+            }
+            if (c == '{' || c == '[') {
+                var depth = 0;
+                while (pos < json.length()) {
+                    c = json.charAt(pos);
+                    if (c == '"') {
+                        pos = skipString(pos + 1) + 1;
+                        continue;
+                    }
+                    pos++;
+                    if (c == '{' || c == '[') depth++;
+                    else if ((c == '}' || c == ']') && --depth == 0) return;
+                }
+                malformed();
+            }
+            var start = pos;
+            while (pos < json.length() && !isDelimiter(json.charAt(pos))) pos++;
+            if (pos == start) malformed();
+        }
+
+        private static boolean isDelimiter(char c) {
+            return c == ',' || c == '}' || c == ']' || c == ':' || c == ' ' || c == '\t' || c == '\r' || c == '\n';
+        }
+
+        private void expect(char c) {
+            if (peek() != c) {
+                malformed();
+            }
+            pos++;
+        }
+
+        private void skipWhitespace() {
+            while (pos < json.length()) {
+                var c = json.charAt(pos);
+                if (c != ' ' && c != '\t' && c != '\r' && c != '\n') break;
+                pos++;
+            }
+        }
+
+        private <T> T malformed() {
+            throw new JsonParseException(String.format("Malformed JSON at offset %d of %d", pos, json.length()));
+        }
+
+        /** Decodes the escapes in the string contents between {@code start} and {@code end}. */
+        static String unescape(String json, int start, int end) {
+            var text = new StringBuilder(end - start);
+            var run = start;
+            for (var i = json.indexOf('\\', start); i != -1 && i < end; i = json.indexOf('\\', run)) {
+                // Copy the characters since the last escape in one go
+                text.append(json, run, i);
+                if (++i >= end) {
+                    throw new JsonParseException("Unterminated escape sequence");
+                }
+                run = i + 1;
+                var c = json.charAt(i);
+                switch (c) {
+                    case 'u':
+                        if (i + 5 > end) {
+                            throw new JsonParseException("Unterminated escape sequence");
+                        }
+                        try {
+                            text.append((char) Integer.parseInt(json, i + 1, i + 5, 16));
+                        } catch (NumberFormatException e) {
+                            throw new JsonParseException("Malformed escape sequence \\u" + json.substring(i + 1, i + 5));
+                        }
+                        i += 4;
+                        run = i + 1;
+                        break;
+                    case 't':
+                        text.append('\t');
+                        break;
+                    case 'b':
+                        text.append('\b');
+                        break;
+                    case 'n':
+                        text.append('\n');
+                        break;
+                    case 'r':
+                        text.append('\r');
+                        break;
+                    case 'f':
+                        text.append('\f');
+                        break;
+                    default:
+                        // \" \\ \/ and, as Gson allows, any other escaped character stand for themselves
+                        text.append(c);
+                }
+            }
+            return text.append(json, run, end).toString();
+        }
+    }
+}
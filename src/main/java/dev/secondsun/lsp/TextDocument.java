@@ -0,0 +1,131 @@
+package dev.secondsun.lsp;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * One version of an open document. Snapshots never change: applying edits returns a new one, so a
+ * handler can keep working on the version it started with while newer changes arrive. The text is
+ * a {@link Rope}, so an edit costs O(log n) and shares the rest of the text with the version
+ * before it, and so do conversions between offsets and positions.
+ *
+ * <p>Positions are in UTF-16 code units, like Java strings, so {@code character} counts a
+ * surrogate pair as two. Every node of the rope counts the newlines under it, which makes it a line
+ * index that edits update along with the text: converting either way is O(log n) and allocates
+ * nothing but the result. {@link #rangesAt} and {@link #offsetsAt} convert whole lists, and look a
+ * line up only once while consecutive offsets stay on it.
+ *
+ * <p>Lines end at {@code \n}, and a {@code \r} just before it isn't part of the line. A bare {@code
+ * \r}, which the protocol also counts as a line break, is treated as an ordinary character, so
+ * positions in a document that uses old Mac line endings won't match the client's.
+ */
+public class TextDocument {
+    public final URI uri;
+    public final String languageId;
+    public final int version;
+    private final Rope text;
+
+    public TextDocument(URI uri, String languageId, int version, CharSequence text) {
+        this.uri = uri;
+        this.languageId = languageId;
+        this.version = version;
+        this.text = Rope.of(text);
+    }
+
+    /** The text, which can be read in order or sliced with {@link CharSequence#subSequence} without copying it. */
+    public CharSequence text() {
+        return text;
+    }
+
+    public int length() {
+        return text.length();
+    }
+
+    /**
+     * The offset of {@code position}. A character past the end of its line means the end of the
+     * line, and a line past the end of the document means the end of the document.
+     */
+    public int offsetAt(Position position) {
+        return offsetAt(text, position);
+    }
+
+    private static int offsetAt(Rope text, Position position) {
+        var line = Math.max(position.line, 0);
+        if (line >= text.lineCount()) return text.length();
+        var start = text.lineStart(line);
+        return Math.min(start + Math.max(position.character, 0), text.lineEnd(line));
+    }
+
+    /** The position of {@code offset}, which is clamped to the document. */
+    public Position positionAt(int offset) {
+        offset = Math.max(0, Math.min(offset, text.length()));
+        var line = text.lineAt(offset);
+        return new Position(line, offset - text.lineStart(line));
+    }
+
+    /** The range from {@code starts[i]} to {@code ends[i]}, for each {@code i}. */
+    public List<Range> rangesAt(int[] starts, int[] ends) {
+        var ranges = new ArrayList<Range>(starts.length);
+        var cursor = new LineCursor();
+        for (var i = 0; i < starts.length; i++) {
+            ranges.add(new Range(cursor.positionAt(starts[i]), cursor.positionAt(ends[i])));
+        }
+        return ranges;
+    }
+
+    /** Stores the offsets where each of {@code ranges} starts and ends in {@code starts} and {@code ends}. */
+    public void offsetsAt(List<Range> ranges, int[] starts, int[] ends) {
+        var cursor = new LineCursor();
+        for (var i = 0; i < ranges.size(); i++) {
+            var range = ranges.get(i);
+            starts[i] = cursor.offsetAt(range.start);
+            ends[i] = cursor.offsetAt(range.end);
+        }
+    }
+
+    /** Remembers the last line it looked up, since a range usually starts and ends on one line. */
+    private class LineCursor {
+        /** The line, the offset it starts at, where its text ends, and where the next line starts. */
+        int line = -1, start, end, next;
+
+        Position positionAt(int offset) {
+            offset = Math.max(0, Math.min(offset, text.length()));
+            if (line == -1 || offset < start || offset >= next) seek(text.lineAt(offset));
+            return new Position(line, offset - start);
+        }
+
+        int offsetAt(Position position) {
+            var line = Math.max(position.line, 0);
+            if (line >= text.lineCount()) return text.length();
+            if (line != this.line) seek(line);
+            return Math.min(start + Math.max(position.character, 0), end);
+        }
+
+        private void seek(int line) {
+            this.line = line;
+            start = text.lineStart(line);
+            end = text.lineEnd(line);
+            // The last line has no newline, so its end of text belongs to it
+            next = line + 1 < text.lineCount() ? text.lineStart(line + 1) : text.length() + 1;
+        }
+    }
+
+    /**
+     * Applies {@code changes} in order, each to the result of the one before, as the protocol
+     * specifies. A change without a range replaces the whole text.
+     */
+    public TextDocument apply(List<TextDocumentContentChangeEvent> changes, int newVersion) {
+        var text = this.text;
+        for (var change : changes) {
+            if (change.range == null) {
+                text = Rope.of(change.text);
+                continue;
+            }
+            var start = offsetAt(text, change.range.start);
+            var end = Math.max(start, offsetAt(text, change.range.end));
+            text = text.replace(start, end, change.text);
+        }
+        return new TextDocument(uri, languageId, newVersion, text);
+    }
+}
@@ -0,0 +1,10 @@
+package dev.secondsun.lsp;
+
+/**
+ * How the client sends document changes, for the {@code textDocumentSync} server capability. With
+ * {@link #Incremental}, each didChange carries only the edited ranges, which {@link TextDocuments}
+ * applies.
+ */
+public class TextDocumentSyncKind {
+    public static final int None = 0, Full = 1, Incremental = 2;
+}
@@ -0,0 +1,72 @@
+package dev.secondsun.lsp;
+
+import java.net.URI;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Logger;
+
+/**
+ * The documents the client has open, kept up to date from didOpen, didChange and didClose. When
+ * {@link ConnectionOptions#trackDocuments} is set, {@link LSP#connect} feeds the connection's store
+ * before the server's own handlers run, so servers only read from it, through {@link
+ * LanguageServer#documents()}. Advertise {@link
+ * TextDocumentSyncKind#Incremental} to receive only the edited ranges.
+ *
+ * <p>Reads may happen on any thread and return immutable snapshots.
+ */
+public class TextDocuments {
+    private final Map<URI, TextDocument> open = new ConcurrentHashMap<>();
+
+    /** The latest version of {@code uri}, or null if it isn't open. */
+    public TextDocument get(URI uri) {
+        return open.get(uri);
+    }
+
+    public Collection<TextDocument> all() {
+        return List.copyOf(open.values());
+    }
+
+    public TextDocument open(DidOpenTextDocumentParams params) {
+        var item = params.textDocument;
+        var document = new TextDocument(item.uri, item.languageId, item.version, item.text == null ? "" : item.text);
+        open.put(item.uri, document);
+        return document;
+    }
+
+    /**
+     * Applies a didChange to the document it names and returns the new version. A change to a document
+     * that isn't open, for a version older than the one held, or with an edit that has no text, is
+     * ignored with a warning.
+     */
+    public TextDocument change(DidChangeTextDocumentParams params) {
+        var uri = params.textDocument.uri;
+        var version = params.textDocument.version;
+        if (params.contentChanges == null || params.contentChanges.stream().anyMatch(c -> c == null || c.text == null)) {
+            LOG.warning(() -> String.format("Ignoring change to %s version %d, which has an edit without text", uri, version));
+            return open.get(uri);
+        }
+        var changed =
+                open.computeIfPresent(
+                        uri,
+                        (key, current) -> {
+                            if (version < current.version) {
+                                LOG.warning(() -> String.format("Ignoring change to %s version %d, which is older than version %d",
+                                        uri, version, current.version));
+                                return current;
+                            }
+                            return current.apply(params.contentChanges, version);
+                        });
+        if (changed == null) {
+            LOG.warning(() -> String.format("Ignoring change to %s, which isn't open", uri));
+        }
+        return changed;
+    }
+
+    public void close(DidCloseTextDocumentParams params) {
+        open.remove(params.textDocument.uri);
+    }
+
+    private static final Logger LOG = Logger.getLogger("main");
+}
@@ -0,0 +1,5 @@
+package dev.secondsun.lsp;
+
+public class TraceValue {
+    public static final String Off = "off", Messages = "messages", Verbose = "verbose";
+}
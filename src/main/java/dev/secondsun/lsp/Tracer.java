@@ -0,0 +1,44 @@
+package dev.secondsun.lsp;
+
+/**
+ * Sends a {@code $/logTrace} for every message the server handles, at the level the client asked
+ * for in {@code initialize} or {@code $/setTrace}. While the trace is off, which is the default,
+ * tracing costs one volatile read per message.
+ */
+class Tracer {
+    private static final int OFF = 0, MESSAGES = 1, VERBOSE = 2;
+
+    private final JsonCodec codec;
+    private final FrameWriter send;
+    private volatile int level = OFF;
+
+    Tracer(JsonCodec codec, FrameWriter send) {
+        this.codec = codec;
+        this.send = send;
+    }
+
+    /** Sets the level from a {@link TraceValue}. Anything unrecognized turns tracing off. */
+    void set(String value) {
+        if (TraceValue.Verbose.equals(value)) level = VERBOSE;
+        else if (TraceValue.Messages.equals(value)) level = MESSAGES;
+        else level = OFF;
+    }
+
+    boolean isOff() {
+        return level == OFF;
+    }
+
+    /** Traces {@code r}, which took {@code nanos} to handle and ended with {@code outcome}. */
+    void handled(InboundMessage r, long nanos, String outcome) {
+        var level = this.level;
+        if (level == OFF) return;
+        String message;
+        if (r.id != null) {
+            message = String.format("Handled request '%s - (%d)' in %d ms: %s", r.method, r.id, nanos / 1_000_000, outcome);
+        } else {
+            message = String.format("Handled notification '%s' in %d ms: %s", r.method, nanos / 1_000_000, outcome);
+        }
+        var verbose = level == VERBOSE ? "Params: " + r.rawParams() : null;
+        LSP.notifyClient(codec, send, "$/logTrace", new LogTraceParams(message, verbose));
+    }
+}
@@ -0,0 +1,14 @@
+package dev.secondsun.lsp;
+
+/** The value of a work done {@code $/progress}: a begin, any number of reports, then an end. */
+public class WorkDoneProgress {
+    public static final String Begin = "begin", Report = "report", End = "end";
+
+    public String kind;
+    /** Only in begin. */
+    public String title;
+    public Boolean cancellable;
+    public String message;
+    /** 0 to 100, or null if the amount of work is unknown. Not in end. */
+    public Integer percentage;
+}
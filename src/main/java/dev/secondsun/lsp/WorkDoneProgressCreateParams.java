@@ -0,0 +1,13 @@
+package dev.secondsun.lsp;
+
+import com.google.gson.JsonElement;
+
+public class WorkDoneProgressCreateParams {
+    public JsonElement token;
+
+    public WorkDoneProgressCreateParams() {}
+
+    public WorkDoneProgressCreateParams(JsonElement token) {
+        this.token = token;
+    }
+}
@@ -1,7 +1,13 @@
 package dev.secondsun.lsp;
 
+import com.google.gson.JsonElement;
+
 public class WorkspaceSymbolParams {
     public String query;
+    /** Set if the client will show progress for this request; see {@link LanguageClient#workDoneProgress}. */
+    public JsonElement workDoneToken;
+    /** Set if the client accepts results in batches through {@code $/progress}. */
+    public JsonElement partialResultToken;
 
     public WorkspaceSymbolParams() {}
 
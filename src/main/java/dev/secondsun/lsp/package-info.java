@@ -0,0 +1,3 @@
+/** Language server protocol types, and the connection that reads and writes them. */
+@GenerateAdapters
+package dev.secondsun.lsp;
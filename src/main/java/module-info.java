@@ -2,6 +2,7 @@
      requires transitive jdk.zipfs;
      requires transitive java.logging;
      requires transitive java.xml;
+     requires jdk.jfr;
      requires transitive com.google.gson;
 
      exports dev.secondsun.lsp;
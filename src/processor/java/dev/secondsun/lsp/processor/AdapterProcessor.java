@@ -0,0 +1,416 @@
+package dev.secondsun.lsp.processor;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.NestingKind;
+import javax.lang.model.element.PackageElement;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.PrimitiveType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.ElementFilter;
+import javax.tools.Diagnostic;
+
+/**
+ * Generates a streaming Gson {@code TypeAdapter} for every plain data class in a package annotated
+ * with {@code @GenerateAdapters}, and a {@code GeneratedAdapters} factory that hands them out.
+ *
+ * <p>The adapters behave like Gson's reflective ones with the default settings: fields are read and
+ * written by name in declaration order, subclass fields before superclass fields, null fields are
+ * left out, unknown names are skipped, and a JSON null leaves a primitive field at its default. int,
+ * long, boolean and String fields are encoded inline; every other field type goes through {@code
+ * gson.getAdapter}, which for classes in the package is another generated adapter. A subclass of a
+ * generated class is written by Gson's adapter for the subclass, as Gson's reflective adapters write
+ * a field, collection element or map value that holds one, so the fields it adds aren't dropped.
+ *
+ * <p>Classes Gson would handle specially are left to it: anything with {@code @JsonAdapter}, generic
+ * or abstract classes, nested classes, classes with private or final fields or without a no-argument
+ * constructor, and classes extending something outside the package. So are classes with methods
+ * other than equals, hashCode and toString, and classes holding interfaces other than collections,
+ * like an ExecutorService or a Path, which aren't protocol data.
+ */
+@SupportedAnnotationTypes(AdapterProcessor.ANNOTATION)
+public class AdapterProcessor extends AbstractProcessor {
+    static final String ANNOTATION = "dev.secondsun.lsp.GenerateAdapters";
+    private static final String JSON_ADAPTER = "com.google.gson.annotations.JsonAdapter";
+
+    @Override
+    public SourceVersion getSupportedSourceVersion() {
+        return SourceVersion.latestSupported();
+    }
+
+    @Override
+    public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment round) {
+        for (var annotation : annotations) {
+            for (var element : round.getElementsAnnotatedWith(annotation)) {
+                if (element.getKind() != ElementKind.PACKAGE) {
+                    error(element, "@GenerateAdapters belongs on a package");
+                    continue;
+                }
+                try {
+                    generate((PackageElement) element);
+                } catch (IOException e) {
+                    error(element, "Failed to write adapters: " + e.getMessage());
+                }
+            }
+        }
+        return true;
+    }
+
+    private void generate(PackageElement pkg) throws IOException {
+        var classes = new ArrayList<TypeElement>();
+        var fields = new ArrayList<List<VariableElement>>();
+        var types = new ArrayList<>(ElementFilter.typesIn(pkg.getEnclosedElements()));
+        // Sorted, so the generated source doesn't change from one build to the next
+        types.sort(Comparator.comparing(type -> type.getSimpleName().toString()));
+        for (var type : types) {
+            var typeFields = dataFields(pkg, type);
+            if (typeFields != null) {
+                classes.add(type);
+                fields.add(typeFields);
+            }
+        }
+        var name = pkg.getQualifiedName() + ".GeneratedAdapters";
+        var file = processingEnv.getFiler().createSourceFile(name, classes.toArray(Element[]::new));
+        try (var out = file.openWriter()) {
+            writeFactory(out, pkg, classes, fields);
+        }
+    }
+
+    /** The fields Gson would bind for {@code type}, or null if it isn't a class this processor handles. */
+    private List<VariableElement> dataFields(PackageElement pkg, TypeElement type) {
+        if (type.getKind() != ElementKind.CLASS
+                || type.getNestingKind() != NestingKind.TOP_LEVEL
+                || !type.getModifiers().contains(Modifier.PUBLIC)
+                || type.getModifiers().contains(Modifier.ABSTRACT)
+                || !type.getTypeParameters().isEmpty()
+                || hasAnnotation(type, JSON_ADAPTER)
+                || !hasNoArgConstructor(type)
+                || hasBehavior(type)) {
+            return null;
+        }
+        var fields = new ArrayList<VariableElement>();
+        var names = new HashSet<String>();
+        for (var t = type; ; ) {
+            if (!processingEnv.getElementUtils().getPackageOf(t).equals(pkg)) {
+                return null;
+            }
+            for (var field : ElementFilter.fieldsIn(t.getEnclosedElements())) {
+                var modifiers = field.getModifiers();
+                if (modifiers.contains(Modifier.STATIC) || modifiers.contains(Modifier.TRANSIENT)) {
+                    continue;
+                }
+                if (modifiers.contains(Modifier.PRIVATE)
+                        || modifiers.contains(Modifier.FINAL)
+                        || !isSupported(field.asType())
+                        || isService(field.asType())
+                        || !names.add(field.getSimpleName().toString())) {
+                    return null;
+                }
+                fields.add(field);
+            }
+            var superclass = t.getSuperclass();
+            var superElement = (TypeElement) processingEnv.getTypeUtils().asElement(superclass);
+            if (superElement.getQualifiedName().contentEquals("java.lang.Object")) {
+                break;
+            }
+            t = superElement;
+        }
+        return fields.isEmpty() ? null : fields;
+    }
+
+    private static boolean hasNoArgConstructor(TypeElement type) {
+        var constructors = ElementFilter.constructorsIn(type.getEnclosedElements());
+        for (ExecutableElement constructor : constructors) {
+            if (constructor.getParameters().isEmpty() && !constructor.getModifiers().contains(Modifier.PRIVATE)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** True for classes like LanguageServer that have methods beyond equals, hashCode and toString. */
+    private static boolean hasBehavior(TypeElement type) {
+        for (var method : ElementFilter.methodsIn(type.getEnclosedElements())) {
+            var name = method.getSimpleName().toString();
+            if (!method.getModifiers().contains(Modifier.STATIC)
+                    && !name.equals("equals")
+                    && !name.equals("hashCode")
+                    && !name.equals("toString")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean hasAnnotation(Element element, String name) {
+        for (var mirror : element.getAnnotationMirrors()) {
+            var type = (TypeElement) mirror.getAnnotationType().asElement();
+            if (type.getQualifiedName().contentEquals(name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** Primitives and declared types whose arguments are declared types, so a Type can be built for them. */
+    private static boolean isSupported(TypeMirror type) {
+        if (type.getKind().isPrimitive()) {
+            return true;
+        }
+        if (type.getKind() != TypeKind.DECLARED) {
+            return false;
+        }
+        for (var argument : ((DeclaredType) type).getTypeArguments()) {
+            if (!isSupported(argument) || argument.getKind().isPrimitive()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** An interface other than a collection or map, which settings hold but protocol messages don't. */
+    private boolean isService(TypeMirror type) {
+        if (type.getKind() != TypeKind.DECLARED || ((DeclaredType) type).asElement().getKind() != ElementKind.INTERFACE) {
+            return false;
+        }
+        var types = processingEnv.getTypeUtils();
+        var elements = processingEnv.getElementUtils();
+        for (var container : List.of("java.util.Collection", "java.util.Map")) {
+            var containerType = types.erasure(elements.getTypeElement(container).asType());
+            if (types.isAssignable(types.erasure(type), containerType)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void writeFactory(Writer out, PackageElement pkg, List<TypeElement> classes,
+            List<List<VariableElement>> fields) throws IOException {
+        out.write("package " + pkg.getQualifiedName() + ";\n\n");
+        out.write("import com.google.gson.Gson;\n");
+        out.write("import com.google.gson.TypeAdapter;\n");
+        out.write("import com.google.gson.TypeAdapterFactory;\n");
+        out.write("import com.google.gson.reflect.TypeToken;\n");
+        out.write("import com.google.gson.stream.JsonReader;\n");
+        out.write("import com.google.gson.stream.JsonToken;\n");
+        out.write("import com.google.gson.stream.JsonWriter;\n");
+        out.write("import java.io.IOException;\n");
+        out.write("import java.util.Set;\n\n");
+        out.write("// Generated by " + AdapterProcessor.class.getName() + ", do not edit\n\n");
+        out.write("/** Streaming adapters for the protocol classes in this package, so Gson doesn't bind them by reflection. */\n");
+        out.write("public final class GeneratedAdapters implements TypeAdapterFactory {\n");
+        // Switch on the name rather than comparing class literals or keeping a map of constructor
+        // references, which would load every protocol class or spin a lambda class apiece on a cold JVM.
+        // Adapters are built by static methods typed TypeAdapter<?>, otherwise the verifier loads every
+        // adapter class to check it is a TypeAdapter before create() can run
+        out.write("    @Override\n");
+        out.write("    @SuppressWarnings(\"unchecked\")\n");
+        out.write("    public <T> TypeAdapter<T> create(Gson gson, TypeToken<T> type) {\n");
+        out.write("        var raw = type.getRawType();\n");
+        out.write("        switch (raw.getName()) {\n");
+        for (var type : classes) {
+            var simple = type.getSimpleName();
+            out.write("            case \"" + type.getQualifiedName() + "\":\n");
+            out.write("                return raw == " + simple + ".class ? (TypeAdapter<T>) " + simple + "Adapter.create(gson) : null;\n");
+        }
+        out.write("            default:\n");
+        out.write("                return null;\n");
+        out.write("        }\n");
+        out.write("    }\n\n");
+        out.write("    /** The classes that have a generated adapter. */\n");
+        out.write("    public static Set<Class<?>> types() {\n");
+        out.write("        return Set.of(\n");
+        for (var i = 0; i < classes.size(); i++) {
+            out.write("                " + classes.get(i).getSimpleName() + ".class" + (i < classes.size() - 1 ? "," : ");")
+                    + "\n");
+        }
+        out.write("    }\n");
+        out.write("\n");
+        out.write("    private static String readString(JsonReader in) throws IOException {\n");
+        out.write("        var token = in.peek();\n");
+        out.write("        return token == JsonToken.BOOLEAN ? Boolean.toString(in.nextBoolean()) : in.nextString();\n");
+        out.write("    }\n\n");
+        out.write("    private static boolean readBoolean(JsonReader in) throws IOException {\n");
+        out.write("        return in.peek() == JsonToken.STRING ? Boolean.parseBoolean(in.nextString()) : in.nextBoolean();\n");
+        out.write("    }\n");
+        for (var i = 0; i < classes.size(); i++) {
+            writeAdapter(out, classes.get(i), fields.get(i));
+        }
+        out.write("}\n");
+    }
+
+    private void writeAdapter(Writer out, TypeElement type, List<VariableElement> fields) throws IOException {
+        var simple = type.getSimpleName().toString();
+        out.write("\n    private static final class " + simple + "Adapter extends TypeAdapter<" + simple + "> {\n");
+        out.write("        private final Gson gson;\n");
+        var delegated = new ArrayList<VariableElement>();
+        for (var field : fields) {
+            if (inline(field.asType()) == null) {
+                delegated.add(field);
+                out.write("        private final TypeAdapter<" + boxed(field.asType()) + "> " + field.getSimpleName() + ";\n");
+            }
+        }
+        out.write("\n");
+        out.write("        static TypeAdapter<?> create(Gson gson) {\n");
+        out.write("            return new " + simple + "Adapter(gson);\n");
+        out.write("        }\n\n");
+        if (!delegated.isEmpty()) {
+            out.write("        @SuppressWarnings(\"unchecked\")\n");
+        }
+        out.write("        " + simple + "Adapter(Gson gson) {\n");
+        out.write("            this.gson = gson;\n");
+        for (var field : delegated) {
+            out.write("            this." + field.getSimpleName() + " = (TypeAdapter<" + boxed(field.asType())
+                    + ">) gson.getAdapter(TypeToken.get(" + typeExpression(field.asType()) + "));\n");
+        }
+        out.write("        }\n\n");
+
+        // write
+        out.write("        @Override\n");
+        out.write("        @SuppressWarnings(\"unchecked\")\n");
+        out.write("        public void write(JsonWriter out, " + simple + " value) throws IOException {\n");
+        out.write("            if (value == null) {\n");
+        out.write("                out.nullValue();\n");
+        out.write("                return;\n");
+        out.write("            }\n");
+        // Gson only looks past the declared type to a more specific adapter when the declared one is
+        // reflective, which this one isn't, so it has to look for itself
+        out.write("            if (value.getClass() != " + simple + ".class) {\n");
+        out.write("                ((TypeAdapter<" + simple + ">) gson.getAdapter(value.getClass())).write(out, value);\n");
+        out.write("                return;\n");
+        out.write("            }\n");
+        out.write("            out.beginObject();\n");
+        for (var field : fields) {
+            var name = field.getSimpleName().toString();
+            var kind = field.asType().getKind();
+            if (kind.isPrimitive()) {
+                if (inline(field.asType()) != null) {
+                    out.write("            out.name(\"" + name + "\").value(value." + name + ");\n");
+                } else {
+                    out.write("            out.name(\"" + name + "\");\n");
+                    out.write("            this." + name + ".write(out, value." + name + ");\n");
+                }
+            } else if (isString(field.asType())) {
+                out.write("            if (value." + name + " != null) out.name(\"" + name + "\").value(value." + name
+                        + ");\n");
+            } else {
+                out.write("            if (value." + name + " != null) {\n");
+                out.write("                out.name(\"" + name + "\");\n");
+                out.write("                this." + name + ".write(out, value." + name + ");\n");
+                out.write("            }\n");
+            }
+        }
+        out.write("            out.endObject();\n");
+        out.write("        }\n\n");
+
+        // read
+        out.write("        @Override\n");
+        out.write("        public " + simple + " read(JsonReader in) throws IOException {\n");
+        out.write("            if (in.peek() == JsonToken.NULL) {\n");
+        out.write("                in.nextNull();\n");
+        out.write("                return null;\n");
+        out.write("            }\n");
+        out.write("            var value = new " + simple + "();\n");
+        out.write("            in.beginObject();\n");
+        out.write("            while (in.hasNext()) {\n");
+        out.write("                switch (in.nextName()) {\n");
+        for (var field : fields) {
+            var name = field.getSimpleName().toString();
+            var inline = inline(field.asType());
+            out.write("                    case \"" + name + "\":\n");
+            if (inline != null) {
+                out.write("                        if (in.peek() == JsonToken.NULL) {\n");
+                out.write("                            in.nextNull();\n");
+                // A null leaves a primitive at its default, but clears a String
+                if (!field.asType().getKind().isPrimitive()) {
+                    out.write("                            value." + name + " = null;\n");
+                }
+                out.write("                        } else {\n");
+                out.write("                            value." + name + " = " + inline + ";\n");
+                out.write("                        }\n");
+            } else if (field.asType().getKind().isPrimitive()) {
+                out.write("                        {\n");
+                out.write("                            var read = this." + name + ".read(in);\n");
+                out.write("                            if (read != null) value." + name + " = read;\n");
+                out.write("                        }\n");
+            } else {
+                out.write("                        value." + name + " = this." + name + ".read(in);\n");
+            }
+            out.write("                        break;\n");
+        }
+        out.write("                    default:\n");
+        out.write("                        in.skipValue();\n");
+        out.write("                }\n");
+        out.write("            }\n");
+        out.write("            in.endObject();\n");
+        out.write("            return value;\n");
+        out.write("        }\n");
+        out.write("    }\n");
+    }
+
+    /** The expression that reads a value of {@code type} inline, or null if it goes through a delegate adapter. */
+    private static String inline(TypeMirror type) {
+        switch (type.getKind()) {
+            case INT:
+                return "in.nextInt()";
+            case LONG:
+                return "in.nextLong()";
+            case BOOLEAN:
+                return "readBoolean(in)";
+            case DECLARED:
+                return isString(type) ? "readString(in)" : null;
+            default:
+                return null;
+        }
+    }
+
+    /** {@code type} as a type argument, so primitives are boxed. */
+    private String boxed(TypeMirror type) {
+        if (type.getKind().isPrimitive()) {
+            return processingEnv.getTypeUtils().boxedClass((PrimitiveType) type).getQualifiedName().toString();
+        }
+        return type.toString();
+    }
+
+    private static boolean isString(TypeMirror type) {
+        return type.getKind() == TypeKind.DECLARED
+                && ((TypeElement) ((DeclaredType) type).asElement()).getQualifiedName().contentEquals("java.lang.String");
+    }
+
+    /** A java.lang.reflect.Type expression for {@code type}, built without reflection on generic signatures. */
+    private String typeExpression(TypeMirror type) {
+        if (type.getKind().isPrimitive()) {
+            return type + ".class";
+        }
+        var declared = (DeclaredType) type;
+        var raw = processingEnv.getTypeUtils().erasure(type) + ".class";
+        if (declared.getTypeArguments().isEmpty()) {
+            return raw;
+        }
+        var expression = new StringBuilder("TypeToken.getParameterized(").append(raw);
+        for (var argument : declared.getTypeArguments()) {
+            expression.append(", ").append(typeExpression(argument));
+        }
+        return expression.append(").getType()").toString();
+    }
+
+    private void error(Element element, String message) {
+        processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, message, element);
+    }
+}
@@ -0,0 +1,89 @@
+package dev.secondsun.lsp.test;
+
+import dev.secondsun.lsp.CompletionItem;
+import dev.secondsun.lsp.CompletionItemKind;
+import dev.secondsun.lsp.CompletionList;
+import dev.secondsun.lsp.DidChangeTextDocumentParams;
+import dev.secondsun.lsp.JsonCodec;
+import dev.secondsun.lsp.LSP;
+import dev.secondsun.lsp.MarkupContent;
+import dev.secondsun.lsp.MarkupKind;
+import dev.secondsun.lsp.MessageBuffer;
+import dev.secondsun.lsp.TextDocumentPositionParams;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Compares the {@link JsonCodec}s on the messages a server sees most: decoding a completion request
+ * and a didChange with a whole 20 KB file, and encoding a 1,000-item {@link CompletionList}.
+ *
+ * <p>Run with {@code org.openjdk.jmh.Main CodecBenchmark -prof gc} to compare allocation too.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CodecBenchmark {
+    @Param({"gson", "streaming"})
+    String codec;
+
+    JsonCodec json;
+    String completion, didChange;
+    JsonCodec.Binding<CompletionList> list;
+    CompletionList items;
+
+    @Setup
+    public void setup() {
+        json = codec.equals("gson") ? JsonCodec.gson() : JsonCodec.streaming();
+        completion =
+                "{\"jsonrpc\":\"2.0\",\"id\":12,\"method\":\"textDocument/completion\",\"params\":{\"textDocument\":"
+                        + "{\"uri\":\"file:///workspace/src/main/java/org/example/Foo.java\"},\"position\":"
+                        + "{\"line\":120,\"character\":17},\"context\":{\"triggerKind\":2,\"triggerCharacter\":\".\"}}}";
+        var text = new StringBuilder();
+        while (text.length() < 20_000) {
+            text.append("    public void method").append(text.length()).append("() {\\n        return \\\"x\\\";\\n    }\\n");
+        }
+        didChange =
+                "{\"jsonrpc\":\"2.0\",\"method\":\"textDocument/didChange\",\"params\":{\"textDocument\":{\"uri\":"
+                        + "\"file:///workspace/src/main/java/org/example/Foo.java\",\"version\":42},\"contentChanges\":"
+                        + "[{\"text\":\"" + text + "\"}]}}";
+        list = json.binding(CompletionList.class);
+        var all = new ArrayList<CompletionItem>();
+        for (var i = 0; i < 1000; i++) {
+            var item = new CompletionItem();
+            item.label = "getSomethingUseful" + i;
+            item.kind = CompletionItemKind.Method;
+            item.detail = "java.util.List<java.lang.String> getSomethingUseful" + i + "(int index)";
+            item.documentation = new MarkupContent();
+            item.documentation.kind = MarkupKind.Markdown;
+            item.documentation.value = "Returns something useful for `index`.";
+            item.sortText = String.format("%04d", i);
+            all.add(item);
+        }
+        items = new CompletionList(false, all);
+    }
+
+    @Benchmark
+    public int decodeCompletion() {
+        return LSP.decodeMessage(completion, json).params(TextDocumentPositionParams.class).position.line;
+    }
+
+    @Benchmark
+    public int decodeDidChange() {
+        return LSP.decodeMessage(didChange, json).params(DidChangeTextDocumentParams.class).contentChanges.get(0).text.length();
+    }
+
+    @Benchmark
+    public int encodeCompletionList() {
+        var buffer = MessageBuffer.acquire();
+        try {
+            list.write(buffer, items);
+            return buffer.bodyLength();
+        } finally {
+            buffer.release();
+        }
+    }
+}
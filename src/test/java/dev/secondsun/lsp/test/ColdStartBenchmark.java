@@ -0,0 +1,68 @@
+package dev.secondsun.lsp.test;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonObject;
+import dev.secondsun.lsp.*;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Time to the first initialize round trip in a fresh JVM: bind initialize params and the first
+ * didOpen and completion request, and write the initialize and completion results. {@code generated}
+ * uses the adapters generated at build time, {@code reflective} Gson
+ * reflection, as before.
+ *
+ * <p>Every fork is one cold measurement, so run with several forks, e.g. {@code -f 10}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 0)
+@Measurement(iterations = 1)
+@Fork(10)
+public class ColdStartBenchmark {
+    @Param({"generated", "reflective"})
+    String adapters;
+
+    private static final String INITIALIZE =
+            "{\"processId\":1234,\"rootPath\":\"/workspace\",\"rootUri\":\"file:///workspace\",\"trace\":\"off\","
+                    + "\"initializationOptions\":{\"settings\":{\"java\":{\"home\":\"/usr/lib/jvm\"}}},"
+                    + "\"workspaceFolders\":[{\"uri\":\"file:///workspace\",\"name\":\"workspace\"}]}";
+    private static final String DID_OPEN =
+            "{\"textDocument\":{\"uri\":\"file:///workspace/Foo.java\",\"languageId\":\"java\",\"version\":1,"
+                    + "\"text\":\"class Foo {\\n    void bar() {}\\n}\\n\"}}";
+    private static final String COMPLETION =
+            "{\"textDocument\":{\"uri\":\"file:///workspace/Foo.java\"},\"position\":{\"line\":1,\"character\":8}}";
+
+    @Benchmark
+    public int firstRoundTrip() {
+        Gson gson =
+                adapters.equals("generated")
+                        ? new GsonBuilder().registerTypeAdapterFactory(new GeneratedAdapters()).create()
+                        : new GsonBuilder().create();
+        var initialize = gson.fromJson(INITIALIZE, InitializeParams.class);
+        var capabilities = new JsonObject();
+        capabilities.addProperty("hoverProvider", true);
+        var length = gson.toJson(new InitializeResult(capabilities)).length();
+
+        var opened = gson.fromJson(DID_OPEN, DidOpenTextDocumentParams.class);
+        var position = gson.fromJson(COMPLETION, TextDocumentPositionParams.class);
+        var items = new ArrayList<CompletionItem>();
+        for (var i = 0; i < 20; i++) {
+            var item = new CompletionItem();
+            item.label = "bar" + i;
+            item.kind = CompletionItemKind.Method;
+            item.detail = "void bar" + i + "()";
+            item.documentation = new MarkupContent();
+            item.documentation.kind = MarkupKind.Markdown;
+            item.documentation.value = "Does **bar** " + i;
+            items.add(item);
+        }
+        var list = new CompletionList();
+        list.items = items;
+        length += gson.toJson(list).length();
+        return length + initialize.processId + opened.textDocument.version + position.position.line;
+    }
+}
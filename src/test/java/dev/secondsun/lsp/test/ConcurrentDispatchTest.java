@@ -0,0 +1,135 @@
+package dev.secondsun.lsp.test;
+
+import dev.secondsun.lsp.*;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.equalTo;
+
+public class ConcurrentDispatchTest {
+    PipedInputStream clientToServer = new PipedInputStream(10 * 1024 * 1024),
+            serverToClient = new PipedInputStream(10 * 1024 * 1024);
+    PipedOutputStream writeClientToServer, writeServerToClient;
+    FrameReader fromServer = new FrameReader(serverToClient);
+    Thread main;
+    CountDownLatch releaseReferences = new CountDownLatch(1), releaseChange = new CountDownLatch(1);
+    volatile int version;
+
+    class SlowLanguageServer extends LanguageServer {
+        @Override
+        public void didChangeTextDocument(DidChangeTextDocumentParams params) {
+            if (params.textDocument.version == 3) {
+                try {
+                    releaseChange.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+            version = params.textDocument.version;
+        }
+
+        @Override
+        public List<SymbolInformation> workspaceSymbols(WorkspaceSymbolParams params) {
+            var symbol = new SymbolInformation();
+            symbol.name = "version " + version;
+            return List.of(symbol);
+        }
+
+        @Override
+        public Optional<List<Location>> findReferences(ReferenceParams params) {
+            try {
+                releaseReferences.await(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+            return Optional.of(List.of());
+        }
+
+        @Override
+        public Optional<Hover> hover(TextDocumentPositionParams params) {
+            return Optional.of(new Hover(List.of(new MarkedString("version " + version))));
+        }
+    }
+
+    @BeforeEach
+    public void connectServer() throws IOException {
+        writeClientToServer = new PipedOutputStream(clientToServer);
+        writeServerToClient = new PipedOutputStream(serverToClient);
+        var options = new ConnectionOptions();
+        options.concurrent = true;
+        main = new Thread(() -> LSP.connect(client -> new SlowLanguageServer(), clientToServer, writeServerToClient, options), "runServer");
+        main.start();
+    }
+
+    @AfterEach
+    public void exit() throws IOException, InterruptedException {
+        releaseReferences.countDown();
+        releaseChange.countDown();
+        sendToServer("{\"jsonrpc\":\"2.0\",\"method\":\"exit\"}");
+        main.join(10_000);
+        assertThat("Main thread has quit", main.isAlive(), equalTo(false));
+    }
+
+    private void sendToServer(String message) throws IOException {
+        var header = String.format("Content-Length: %d\r\n\r\n", message.getBytes().length);
+        writeClientToServer.write(header.getBytes());
+        writeClientToServer.write(message.getBytes());
+    }
+
+    private static final String document = "{\"uri\":\"file:///Foo.java\"";
+
+    @Test
+    public void requestsSeeEarlierChanges() throws IOException {
+        sendToServer("{\"jsonrpc\":\"2.0\",\"id\":1,\"method\":\"textDocument/references\",\"params\":{\"textDocument\":"
+                + document + "},\"position\":{\"line\":0,\"character\":0}}}");
+        sendToServer("{\"jsonrpc\":\"2.0\",\"method\":\"textDocument/didChange\",\"params\":{\"textDocument\":"
+                + document + ",\"version\":2},\"contentChanges\":[]}}");
+        sendToServer("{\"jsonrpc\":\"2.0\",\"id\":2,\"method\":\"textDocument/hover\",\"params\":{\"textDocument\":"
+                + document + "},\"position\":{\"line\":0,\"character\":0}}}");
+
+        // didChange waits for references, which started first, and hover waits for didChange
+        releaseReferences.countDown();
+        var first = fromServer.nextToken();
+        var second = fromServer.nextToken();
+        assertThat(first, containsString("\"id\":1"));
+        assertThat(second, containsString("\"id\":2"));
+        assertThat(second, containsString("version 2"));
+    }
+
+    @Test
+    public void hoverOnOtherDocumentRunsDuringSlowRequest() throws IOException {
+        sendToServer("{\"jsonrpc\":\"2.0\",\"id\":1,\"method\":\"textDocument/references\",\"params\":{\"textDocument\":"
+                + document + "},\"position\":{\"line\":0,\"character\":0}}}");
+        sendToServer("{\"jsonrpc\":\"2.0\",\"id\":2,\"method\":\"textDocument/hover\",\"params\":{\"textDocument\":"
+                + "{\"uri\":\"file:///Bar.java\"},\"position\":{\"line\":0,\"character\":0}}}");
+
+        assertThat(fromServer.nextToken(), containsString("\"id\":2"));
+        releaseReferences.countDown();
+        assertThat(fromServer.nextToken(), containsString("\"id\":1"));
+    }
+
+    @Test
+    public void workspaceRequestsSeeEarlierChanges() throws IOException, InterruptedException {
+        sendToServer("{\"jsonrpc\":\"2.0\",\"method\":\"textDocument/didChange\",\"params\":{\"textDocument\":"
+                + document + ",\"version\":3},\"contentChanges\":[]}}");
+        sendToServer("{\"jsonrpc\":\"2.0\",\"id\":1,\"method\":\"workspace/symbol\",\"params\":{\"query\":\"\"}}");
+
+        // workspace/symbol isn't about one document, but still waits for the slow didChange
+        Thread.sleep(100);
+        releaseChange.countDown();
+        var response = fromServer.nextToken();
+        assertThat(response, containsString("\"id\":1"));
+        assertThat(response, containsString("version 3"));
+    }
+}
@@ -0,0 +1,104 @@
+package dev.secondsun.lsp.test;
+
+import dev.secondsun.lsp.*;
+import java.io.IOException;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Sends 50 concurrent hover and definition requests whose handlers block for 2 ms, as if reading
+ * files, and waits for every response. {@code platform} runs them on a fixed pool of 8 platform
+ * threads, {@code virtual} on a virtual thread each (a Java 21 runtime is needed for that to differ).
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DispatchModeBenchmark {
+    private static final int REQUESTS = 50;
+    private static final int PLATFORM_THREADS = 8;
+
+    @Param({"platform", "virtual"})
+    String mode;
+
+    PipedOutputStream toServer;
+    FrameReader fromServer;
+    Thread main;
+    ExecutorService pool;
+    byte[][] requests = new byte[REQUESTS][];
+
+    static class BlockingServer extends LanguageServer {
+        @Override
+        public Optional<Hover> hover(TextDocumentPositionParams params) {
+            block();
+            return Optional.of(new Hover(List.of(new MarkedString("hover"))));
+        }
+
+        @Override
+        public Optional<List<Location>> gotoDefinition(TextDocumentPositionParams params) {
+            block();
+            return Optional.of(List.of());
+        }
+
+        private static void block() {
+            try {
+                Thread.sleep(2);
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
+    @Setup
+    public void setup() throws IOException {
+        var clientToServer = new PipedInputStream(1024 * 1024);
+        var serverToClient = new PipedInputStream(1024 * 1024);
+        toServer = new PipedOutputStream(clientToServer);
+        var writeServerToClient = new PipedOutputStream(serverToClient);
+        fromServer = new FrameReader(serverToClient);
+        var options = new ConnectionOptions();
+        if (mode.equals("virtual")) {
+            options.virtualThreads = true;
+        } else {
+            options.concurrent = true;
+            pool = Executors.newFixedThreadPool(PLATFORM_THREADS);
+            options.executor = pool;
+        }
+        main = new Thread(() -> LSP.connect(client -> new BlockingServer(), clientToServer, writeServerToClient, options));
+        main.start();
+        for (var i = 0; i < REQUESTS; i++) {
+            var method = i % 2 == 0 ? "textDocument/hover" : "textDocument/definition";
+            var body =
+                    String.format(
+                            "{\"jsonrpc\":\"2.0\",\"id\":%d,\"method\":\"%s\",\"params\":{\"textDocument\":{\"uri\":\"file:///Foo%d.java\"},"
+                                    + "\"position\":{\"line\":1,\"character\":2}}}",
+                            i, method, i % 5);
+            requests[i] = (String.format("Content-Length: %d\r\n\r\n", body.length()) + body).getBytes();
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException, InterruptedException {
+        var exit = "{\"jsonrpc\":\"2.0\",\"method\":\"exit\"}";
+        toServer.write((String.format("Content-Length: %d\r\n\r\n", exit.length()) + exit).getBytes());
+        main.join(10_000);
+        if (pool != null) pool.shutdown();
+    }
+
+    @Benchmark
+    public int concurrentRequests() throws IOException {
+        for (var request : requests) toServer.write(request);
+        toServer.flush();
+        var total = 0;
+        for (var i = 0; i < REQUESTS; i++) total += fromServer.nextToken().length();
+        return total;
+    }
+}
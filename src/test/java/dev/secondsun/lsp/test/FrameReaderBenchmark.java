@@ -0,0 +1,80 @@
+package dev.secondsun.lsp.test;
+
+import dev.secondsun.lsp.FrameReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Compares {@link FrameReader} with the per-byte reader it replaced, on frames from 1 KB to 4 MB.
+ *
+ * <p>Run with {@code java -cp ... org.openjdk.jmh.Main FrameReaderBenchmark}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FrameReaderBenchmark {
+    private static final int FRAMES = 4;
+
+    @Param({"1024", "65536", "4194304"})
+    int size;
+
+    byte[] stream;
+
+    @Setup
+    public void setup() {
+        var text = "{\"jsonrpc\":\"2.0\",\"method\":\"textDocument/didOpen\",\"params\":{\"text\":\"";
+        var body = new StringBuilder(text);
+        while (body.length() < size - 3) body.append("class Foo { int bar; } é ");
+        body.setLength(size - 3);
+        body.append("\"}}");
+        var bytes = body.toString().getBytes(StandardCharsets.UTF_8);
+        var out = new ByteArrayOutputStream();
+        for (var i = 0; i < FRAMES; i++) {
+            out.writeBytes(("Content-Length: " + bytes.length + "\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+            out.writeBytes(bytes);
+        }
+        stream = out.toByteArray();
+    }
+
+    @Benchmark
+    public int frameReader() {
+        var frames = new FrameReader(new ByteArrayInputStream(stream));
+        var total = 0;
+        for (var i = 0; i < FRAMES; i++) total += frames.nextToken().length();
+        return total;
+    }
+
+    @Benchmark
+    public int perByte() throws IOException {
+        var in = new ByteArrayInputStream(stream);
+        var total = 0;
+        for (var i = 0; i < FRAMES; i++) total += perByteToken(in).length();
+        return total;
+    }
+
+    /** The reader {@link FrameReader} replaced: one read() and one char append per byte. */
+    private static String perByteToken(InputStream in) throws IOException {
+        var length = -1;
+        while (true) {
+            var line = new StringBuilder();
+            for (var next = (char) in.read(); next != '\r'; next = (char) in.read()) line.append(next);
+            in.read();
+            if (line.length() == 0) break;
+            var header = line.toString();
+            if (header.startsWith("Content-Length: ")) {
+                length = Integer.parseInt(header.substring("Content-Length: ".length()));
+            }
+        }
+        var body = new StringBuilder();
+        for (var i = 0; i < length; i++) body.append((char) in.read());
+        return body.toString();
+    }
+}
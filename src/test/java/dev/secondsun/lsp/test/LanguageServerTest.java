@@ -2,37 +2,201 @@ package dev.secondsun.lsp.test;
 
 import dev.secondsun.lsp.*;
 import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Tag;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestInfo;
 
+import com.google.gson.JsonArray;
+import jdk.jfr.consumer.RecordingFile;
 import java.io.IOException;
+import java.nio.file.Files;
 import java.io.PipedInputStream;
 import java.io.PipedOutputStream;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.containsString;
 import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.nullValue;
 
 public class LanguageServerTest {
     PipedInputStream clientToServer = new PipedInputStream(10 * 1024 * 1024),
             serverToClient = new PipedInputStream(10 * 1024 * 1024);
     PipedOutputStream writeClientToServer, writeServerToClient;
     LanguageServer mockServer;
+    LanguageClient client;
     Thread main;
     CompletableFuture<Void> receivedInitialize = new CompletableFuture<>();
+    CompletableFuture<Void> startedCompletion = new CompletableFuture<>();
+    CompletableFuture<Void> startedSymbols = new CompletableFuture<>();
+    CountDownLatch holdInitialize = new CountDownLatch(0);
+    List<DidChangeTextDocumentParams> changes = new ArrayList<>();
+
+    /** A result subclass with a field of its own, which has to go out with the rest. */
+    public static class SourcedHover extends Hover {
+        public String source = "javadoc";
+
+        SourcedHover(List<MarkedString> contents) {
+            super(contents);
+        }
+    }
+
+    /** Params that count how many times they have been bound. */
+    public static class CountedParams {
+        static final AtomicInteger bound = new AtomicInteger();
+        public int n;
+
+        public CountedParams() {
+            bound.incrementAndGet();
+        }
+    }
 
     class TestLanguageServer extends LanguageServer {
         @Override
         public InitializeResult initialize(InitializeParams params) {
             receivedInitialize.complete(null);
+            try {
+                holdInitialize.await(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
             return new InitializeResult();
         }
+
+        @Override
+        public List<CodeLens> codeLens(CodeLensParams params) {
+            return List.of();
+        }
+
+        @Override
+        public List<SymbolInformation> documentSymbol(DocumentSymbolParams params) {
+            return List.of();
+        }
+
+        @Override
+        public Optional<Hover> hover(TextDocumentPositionParams params) {
+            if (params.position.line == 0) {
+                return Optional.empty();
+            }
+            if (params.position.line == 2) {
+                return Optional.of(new SourcedHover(List.of(new MarkedString("int x"))));
+            }
+            // Block the message loop on the client, which only works if responses bypass the queue
+            try {
+                var config = client.request("workspace/configuration", params, JsonArray.class, Duration.ofSeconds(10)).get();
+                return Optional.of(new Hover(List.of(new MarkedString(config.get(0).getAsString()))));
+            } catch (InterruptedException | ExecutionException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        @Override
+        public void findReferences(ReferenceParams params, ResultSink<Location> results) {
+            for (var line = 0; line < 250; line++) {
+                var position = new Position(line, 0);
+                results.add(new Location(params.textDocument.uri, new Range(position, position)));
+            }
+        }
+
+        @Override
+        public Optional<List<Location>> gotoDefinition(TextDocumentPositionParams params) {
+            // Written before Optional results, and still returns null for none
+            return null;
+        }
+
+        @Override
+        public void workspaceSymbols(WorkspaceSymbolParams params, ResultSink<SymbolInformation> results) {
+            // Find symbols on another thread, which doesn't have the request's token current
+            var worker =
+                    new Thread(
+                            () -> {
+                                while (true) {
+                                    results.add(new SymbolInformation());
+                                    startedSymbols.complete(null);
+                                    Thread.onSpinWait();
+                                }
+                            });
+            var failure = new CompletableFuture<Throwable>();
+            worker.setUncaughtExceptionHandler((thread, e) -> failure.complete(e));
+            worker.start();
+            try {
+                throw (RuntimeException) failure.get(10, TimeUnit.SECONDS);
+            } catch (InterruptedException | ExecutionException | TimeoutException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        @Override
+        public void registerMethods(MethodRegistry methods) {
+            methods.request("java/echo", Position.class, Position.class, params -> params);
+            methods.request("java/count", CountedParams.class, Integer.class, params -> params.n);
+            methods.request("java/text", TextDocumentIdentifier.class, String.class,
+                    params -> documents() == null ? null : documents().get(params.uri).text().toString());
+            methods.request(
+                    "java/index",
+                    Object.class,
+                    Long.class,
+                    params -> {
+                        try (var progress = client.createProgress().get(10, TimeUnit.SECONDS)) {
+                            progress.begin("Indexing");
+                            for (var i = 0; i < 1000; i++) {
+                                progress.report("File " + i, i / 10);
+                            }
+                            return progress.dropped();
+                        } catch (InterruptedException | ExecutionException | TimeoutException e) {
+                            throw new RuntimeException(e);
+                        }
+                    });
+        }
+
+        @Override
+        public void didChangeTextDocument(DidChangeTextDocumentParams params) {
+            changes.add(params);
+        }
+
+        @Override
+        public Optional<SignatureHelp> signatureHelp(TextDocumentPositionParams params) {
+            return Optional.of(new SignatureHelp(List.of(), 0, 0));
+        }
+
+        @Override
+        public Optional<CompletionList> completion(TextDocumentPositionParams params) {
+            startedCompletion.complete(null);
+            // Spin until the client gives up
+            while (true) {
+                cancellation().checkCanceled();
+                Thread.onSpinWait();
+            }
+        }
     }
 
+    ConnectionOptions options = new ConnectionOptions();
+
     @BeforeEach
-    public void connectServerAndInitialize() throws IOException {
+    public void connectServerAndInitialize(TestInfo test) throws IOException {
+        if (test.getTags().contains("streaming")) {
+            options.codec = JsonCodec.streaming();
+        }
+        if (test.getTags().contains("scheduling")) {
+            options.interactiveMethods = ConnectionOptions.INTERACTIVE_METHODS;
+            options.backgroundMethods = ConnectionOptions.BACKGROUND_METHODS;
+            options.supersededMethods = ConnectionOptions.SUPERSEDED_METHODS;
+            options.coalesceChanges = true;
+        }
+        options.trackDocuments = test.getTags().contains("documents");
+        // Long enough that no report in progressIsThrottled gets through, however slow the machine
+        options.progressInterval = Duration.ofHours(1);
         writeClientToServer = new PipedOutputStream(clientToServer);
         writeServerToClient = new PipedOutputStream(serverToClient);
         main = new Thread(this::runServer, "runServer");
@@ -40,10 +204,11 @@ public class LanguageServerTest {
     }
 
     private void runServer() {
-        LSP.connect(this::serverFactory, clientToServer, writeServerToClient);
+        LSP.connect(this::serverFactory, clientToServer, writeServerToClient, options);
     }
 
     private LanguageServer serverFactory(LanguageClient client) {
+        this.client = client;
         mockServer = new TestLanguageServer();
         return mockServer;
     }
@@ -69,6 +234,483 @@ public class LanguageServerTest {
         assertThat("Main thread has quit", main.isAlive(), equalTo(false));
     }
 
+    @Test
+    public void cancelRunningRequest()
+            throws IOException, InterruptedException, ExecutionException, TimeoutException {
+        sendToServer(initializeMessage);
+        receivedInitialize.get(10, TimeUnit.SECONDS);
+        var completion = "{\"jsonrpc\":\"2.0\",\"id\":2,\"method\":\"textDocument/completion\",\"params\":"
+                + "{\"textDocument\":{\"uri\":\"file:///Foo.java\"},\"position\":{\"line\":0,\"character\":0}}}";
+        sendToServer(completion);
+        startedCompletion.get(10, TimeUnit.SECONDS);
+        sendToServer("{\"jsonrpc\":\"2.0\",\"method\":\"$/cancelRequest\",\"params\":{\"id\":2}}");
+
+        var fromServer = new FrameReader(serverToClient);
+        assertThat(fromServer.nextToken(), containsString("\"id\":1"));
+        assertThat(fromServer.nextToken(), equalTo("{\"jsonrpc\":\"2.0\",\"id\":2,\"error\":{\"code\":-32800,"
+                + "\"message\":\"Request was canceled by the client\"}}"));
+        sendToServer(exitMessage);
+        main.join(10_000);
+    }
+
+    CompletableFuture<Object> ping;
+
+    /**
+     * Has the server send the client a request, and returns its id. The server reads messages in
+     * order and completes its own requests as it reads the answers, so once {@link #awaitRead} has
+     * answered it, the server has read everything sent before.
+     */
+    private String ping(FrameReader fromServer) throws IOException {
+        ping = client.request("test/ping", null, Object.class, Duration.ofSeconds(10));
+        var request = fromServer.nextToken();
+        return request.substring(request.indexOf("\"id\":") + 5, request.indexOf("}", request.indexOf("\"id\":")));
+    }
+
+    /** Answers {@link #ping} and returns once the server has read everything sent so far. */
+    private void awaitRead(String pingId) throws IOException, InterruptedException, ExecutionException,
+            TimeoutException {
+        sendToServer("{\"jsonrpc\":\"2.0\",\"id\":" + pingId + ",\"result\":null}");
+        writeClientToServer.flush();
+        ping.get(10, TimeUnit.SECONDS);
+    }
+
+    @Test
+    @Tag("scheduling")
+    public void interactiveRequestsJumpTheQueue()
+            throws IOException, InterruptedException, ExecutionException, TimeoutException {
+        // Keep the main loop busy while requests pile up behind it
+        holdInitialize = new CountDownLatch(1);
+        sendToServer(initializeMessage);
+        receivedInitialize.get(10, TimeUnit.SECONDS);
+        var fromServer = new FrameReader(serverToClient);
+        var pingId = ping(fromServer);
+        var document = "{\"textDocument\":{\"uri\":\"file:///Foo.java\"}";
+        sendToServer("{\"jsonrpc\":\"2.0\",\"id\":2,\"method\":\"textDocument/codeLens\",\"params\":" + document + "}}");
+        sendToServer("{\"jsonrpc\":\"2.0\",\"id\":3,\"method\":\"textDocument/documentSymbol\",\"params\":" + document + "}}");
+        sendToServer("{\"jsonrpc\":\"2.0\",\"method\":\"textDocument/didChange\",\"params\":" + document + "}}");
+        sendToServer("{\"jsonrpc\":\"2.0\",\"id\":4,\"method\":\"textDocument/codeLens\",\"params\":" + document + "}}");
+        sendToServer("{\"jsonrpc\":\"2.0\",\"id\":5,\"method\":\"textDocument/hover\",\"params\":" + document
+                + ",\"position\":{\"line\":0,\"character\":0}}}");
+        awaitRead(pingId);
+        holdInitialize.countDown();
+
+        // hover jumps ahead of codeLens, but not ahead of the didChange
+        var order = new ArrayList<String>();
+        for (var i = 0; i < 5; i++) {
+            var token = fromServer.nextToken();
+            order.add(token.substring(token.indexOf("\"id\":") + 5, token.indexOf(",", token.indexOf("\"id\":"))));
+        }
+        assertThat(order, equalTo(List.of("1", "2", "3", "5", "4")));
+        sendToServer(exitMessage);
+        main.join(10_000);
+    }
+
+    @Test
+    @Tag("scheduling")
+    public void typingBurstIsCoalesced()
+            throws IOException, InterruptedException, ExecutionException, TimeoutException {
+        holdInitialize = new CountDownLatch(1);
+        sendToServer(initializeMessage);
+        receivedInitialize.get(10, TimeUnit.SECONDS);
+        var fromServer = new FrameReader(serverToClient);
+        var pingId = ping(fromServer);
+        var document = "{\"textDocument\":{\"uri\":\"file:///Foo.java\"";
+        var position = ",\"position\":{\"line\":0,\"character\":0}}}";
+        for (var i = 0; i < 3; i++) {
+            sendToServer("{\"jsonrpc\":\"2.0\",\"method\":\"textDocument/didChange\",\"params\":" + document
+                    + ",\"version\":" + (i + 2) + "},\"contentChanges\":[{\"range\":{\"start\":{\"line\":0,\"character\":" + i
+                    + "},\"end\":{\"line\":0,\"character\":" + i + "}},\"text\":\"x\"}]}}");
+            sendToServer("{\"jsonrpc\":\"2.0\",\"id\":" + (i + 2) + ",\"method\":\"textDocument/signatureHelp\",\"params\":"
+                    + document + "}" + position);
+        }
+        awaitRead(pingId);
+        holdInitialize.countDown();
+
+        var responses = new ArrayList<String>();
+        for (var i = 0; i < 4; i++) {
+            responses.add(fromServer.nextToken());
+        }
+        // The superseded requests were answered as soon as the newer ones arrived
+        assertThat(responses.get(0), containsString("\"id\":2,\"error\":{\"code\":-32801"));
+        assertThat(responses.get(1), containsString("\"id\":3,\"error\":{\"code\":-32801"));
+        assertThat(responses.get(2), containsString("\"id\":1"));
+        assertThat(responses.get(3), containsString("\"id\":4,\"result\""));
+        sendToServer("{\"jsonrpc\":\"2.0\",\"id\":5,\"method\":\"$/metrics\"}");
+        writeClientToServer.flush();
+        assertThat(fromServer.nextToken(), containsString("\"queue\":{\"mergedChanges\":2,\"droppedRequests\":2}"));
+        sendToServer(exitMessage);
+        main.join(10_000);
+        assertThat(changes.size(), equalTo(1));
+        assertThat(changes.get(0).textDocument.version, equalTo(4));
+        assertThat(changes.get(0).contentChanges.size(), equalTo(3));
+    }
+
+    @Test
+    @Tag("scheduling")
+    public void changeWithoutContentIsNotMerged()
+            throws IOException, InterruptedException, ExecutionException, TimeoutException {
+        holdInitialize = new CountDownLatch(1);
+        sendToServer(initializeMessage);
+        receivedInitialize.get(10, TimeUnit.SECONDS);
+        var fromServer = new FrameReader(serverToClient);
+        var pingId = ping(fromServer);
+        var document = "{\"textDocument\":{\"uri\":\"file:///Foo.java\"";
+        sendToServer("{\"jsonrpc\":\"2.0\",\"method\":\"textDocument/didChange\",\"params\":" + document
+                + ",\"version\":2},\"contentChanges\":[{\"text\":\"x\"}]}}");
+        sendToServer("{\"jsonrpc\":\"2.0\",\"method\":\"textDocument/didChange\",\"params\":" + document
+                + ",\"version\":3},\"contentChanges\":null}}");
+        awaitRead(pingId);
+        holdInitialize.countDown();
+
+        // Both reach the handler, which is left to deal with the missing contentChanges
+        assertThat(fromServer.nextToken(), containsString("\"id\":1"));
+        sendToServer(exitMessage);
+        main.join(10_000);
+        assertThat("Main thread has quit", main.isAlive(), equalTo(false));
+        assertThat(changes.size(), equalTo(2));
+        assertThat(changes.get(1).contentChanges, nullValue());
+    }
+
+    @Test
+    @Tag("scheduling")
+    public void malformedDocumentUriIsAnswered()
+            throws IOException, InterruptedException, ExecutionException, TimeoutException {
+        sendToServer(initializeMessage);
+        var document = "{\"textDocument\":{\"uri\":\"file:///My Project/Foo.java\"";
+        sendToServer("{\"jsonrpc\":\"2.0\",\"method\":\"textDocument/didChange\",\"params\":" + document
+                + ",\"version\":2},\"contentChanges\":[]}}");
+        for (var id = 2; id <= 3; id++) {
+            sendToServer("{\"jsonrpc\":\"2.0\",\"id\":" + id + ",\"method\":\"textDocument/signatureHelp\",\"params\":"
+                    + document + "},\"position\":{\"line\":0,\"character\":0}}}");
+        }
+        sendToServer("{\"jsonrpc\":\"2.0\",\"id\":4,\"method\":\"java/echo\",\"params\":{\"line\":1,\"character\":2}}");
+        writeClientToServer.flush();
+
+        // Neither request supersedes the other, and the server keeps going
+        var fromServer = new FrameReader(serverToClient);
+        for (var id = 1; id <= 4; id++) {
+            assertThat(fromServer.nextToken(), containsString("\"id\":" + id + ","));
+        }
+        sendToServer(exitMessage);
+        main.join(10_000);
+        assertThat("Main thread has quit", main.isAlive(), equalTo(false));
+    }
+
+    @Test
+    public void subclassedResultKeepsItsFields()
+            throws IOException, InterruptedException, ExecutionException, TimeoutException {
+        sendToServer("{\"jsonrpc\":\"2.0\",\"id\":1,\"method\":\"textDocument/hover\",\"params\":"
+                + "{\"textDocument\":{\"uri\":\"file:///Foo.java\"},\"position\":{\"line\":2,\"character\":0}}}");
+        writeClientToServer.flush();
+        var fromServer = new FrameReader(serverToClient);
+        assertThat(fromServer.nextToken(), equalTo("{\"jsonrpc\":\"2.0\",\"id\":1,\"result\":{\"source\":\"javadoc\","
+                + "\"contents\":[\"int x\"]}}"));
+        sendToServer(exitMessage);
+        main.join(10_000);
+    }
+
+    @Test
+    @Tag("documents")
+    public void trackedDocumentsAreUpToDate()
+            throws IOException, InterruptedException, ExecutionException, TimeoutException {
+        sendToServer("{\"jsonrpc\":\"2.0\",\"method\":\"textDocument/didOpen\",\"params\":{\"textDocument\":"
+                + "{\"uri\":\"file:///Foo.java\",\"languageId\":\"java\",\"version\":1,\"text\":\"class Foo {}\"}}}");
+        sendToServer("{\"jsonrpc\":\"2.0\",\"method\":\"textDocument/didChange\",\"params\":{\"textDocument\":"
+                + "{\"uri\":\"file:///Foo.java\",\"version\":2},\"contentChanges\":[{\"range\":{\"start\":"
+                + "{\"line\":0,\"character\":6},\"end\":{\"line\":0,\"character\":9}},\"text\":\"Bar\"}]}}");
+        sendToServer("{\"jsonrpc\":\"2.0\",\"id\":1,\"method\":\"java/text\",\"params\":{\"uri\":\"file:///Foo.java\"}}");
+        writeClientToServer.flush();
+        var fromServer = new FrameReader(serverToClient);
+        assertThat(fromServer.nextToken(), equalTo("{\"jsonrpc\":\"2.0\",\"id\":1,\"result\":\"class Bar {}\"}"));
+        // The server's own handler still runs, after the document is updated
+        assertThat(changes.size(), equalTo(1));
+        sendToServer(exitMessage);
+        main.join(10_000);
+    }
+
+    @Test
+    public void documentsAreNotTrackedByDefault()
+            throws IOException, InterruptedException, ExecutionException, TimeoutException {
+        sendToServer("{\"jsonrpc\":\"2.0\",\"method\":\"textDocument/didOpen\",\"params\":{\"textDocument\":"
+                + "{\"uri\":\"file:///Foo.java\",\"languageId\":\"java\",\"version\":1,\"text\":\"class Foo {}\"}}}");
+        sendToServer("{\"jsonrpc\":\"2.0\",\"id\":1,\"method\":\"java/text\",\"params\":{\"uri\":\"file:///Foo.java\"}}");
+        writeClientToServer.flush();
+        var fromServer = new FrameReader(serverToClient);
+        assertThat(fromServer.nextToken(), equalTo("{\"jsonrpc\":\"2.0\",\"id\":1,\"result\":null}"));
+        sendToServer(exitMessage);
+        main.join(10_000);
+    }
+
+    @Test
+    public void cancelledWhileQueuedIsNeverDeserialized()
+            throws IOException, InterruptedException, ExecutionException, TimeoutException {
+        CountedParams.bound.set(0);
+        holdInitialize = new CountDownLatch(1);
+        sendToServer(initializeMessage);
+        receivedInitialize.get(10, TimeUnit.SECONDS);
+        sendToServer("{\"jsonrpc\":\"2.0\",\"id\":2,\"method\":\"java/count\",\"params\":{\"n\":2}}");
+        sendToServer("{\"jsonrpc\":\"2.0\",\"method\":\"$/cancelRequest\",\"params\":{\"id\":2}}");
+        writeClientToServer.flush();
+        var fromServer = new FrameReader(serverToClient);
+        assertThat(fromServer.nextToken(), equalTo("{\"jsonrpc\":\"2.0\",\"id\":2,\"error\":{\"code\":-32800,"
+                + "\"message\":\"Request was canceled before it started\"}}"));
+        holdInitialize.countDown();
+        assertThat(fromServer.nextToken(), containsString("\"id\":1"));
+
+        sendToServer("{\"jsonrpc\":\"2.0\",\"id\":3,\"method\":\"java/count\",\"params\":{\"n\":3}}");
+        writeClientToServer.flush();
+        assertThat(fromServer.nextToken(), equalTo("{\"jsonrpc\":\"2.0\",\"id\":3,\"result\":3}"));
+        assertThat(CountedParams.bound.get(), equalTo(1));
+        sendToServer(exitMessage);
+        main.join(10_000);
+    }
+
+    @Test
+    public void nullOptionalIsAnEmptyResult()
+            throws IOException, InterruptedException, ExecutionException, TimeoutException {
+        sendToServer("{\"jsonrpc\":\"2.0\",\"id\":1,\"method\":\"textDocument/definition\",\"params\":"
+                + "{\"textDocument\":{\"uri\":\"file:///Foo.java\"},\"position\":{\"line\":0,\"character\":0}}}");
+        writeClientToServer.flush();
+        var fromServer = new FrameReader(serverToClient);
+        assertThat(fromServer.nextToken(), equalTo("{\"jsonrpc\":\"2.0\",\"id\":1,\"result\":null}"));
+        sendToServer(exitMessage);
+        main.join(10_000);
+    }
+
+    @Test
+    public void serverWaitsOnClientRequest()
+            throws IOException, InterruptedException, ExecutionException, TimeoutException {
+        sendToServer(initializeMessage);
+        receivedInitialize.get(10, TimeUnit.SECONDS);
+        sendToServer("{\"jsonrpc\":\"2.0\",\"id\":2,\"method\":\"textDocument/hover\",\"params\":"
+                + "{\"textDocument\":{\"uri\":\"file:///Foo.java\"},\"position\":{\"line\":1,\"character\":0}}}");
+        writeClientToServer.flush();
+
+        var fromServer = new FrameReader(serverToClient);
+        assertThat(fromServer.nextToken(), containsString("\"id\":1,"));
+        var request = fromServer.nextToken();
+        assertThat(request, containsString("\"method\":\"workspace/configuration\""));
+        assertThat(request, containsString("\"id\":1}"));
+        sendToServer("{\"jsonrpc\":\"2.0\",\"id\":1,\"result\":[\"tabs\"]}");
+        writeClientToServer.flush();
+        var hover = fromServer.nextToken();
+        assertThat(hover, containsString("\"id\":2,"));
+        assertThat(hover, containsString("tabs"));
+
+        // The response didn't stop the loop
+        sendToServer("{\"jsonrpc\":\"2.0\",\"id\":3,\"method\":\"shutdown\"}");
+        writeClientToServer.flush();
+        assertThat(fromServer.nextToken(), containsString("\"id\":3,"));
+        sendToServer(exitMessage);
+        main.join(10_000);
+        assertThat("Main thread has quit", main.isAlive(), equalTo(false));
+    }
+
+    @Test
+    public void customAndUnimplementedMethods()
+            throws IOException, InterruptedException, ExecutionException, TimeoutException {
+        sendToServer("{\"jsonrpc\":\"2.0\",\"id\":1,\"method\":\"textDocument/rename\",\"params\":{}}");
+        sendToServer("{\"jsonrpc\":\"2.0\",\"id\":2,\"method\":\"java/echo\",\"params\":{\"line\":1,\"character\":2}}");
+        writeClientToServer.flush();
+
+        var fromServer = new FrameReader(serverToClient);
+        assertThat(fromServer.nextToken(), containsString("\"id\":1,\"error\":{\"code\":-32601"));
+        assertThat(fromServer.nextToken(), containsString("\"id\":2,\"result\":{\"line\":1,\"character\":2}"));
+        sendToServer(exitMessage);
+        main.join(10_000);
+    }
+
+    @Test
+    public void metricsRequest()
+            throws IOException, InterruptedException, ExecutionException, TimeoutException {
+        sendToServer("{\"jsonrpc\":\"2.0\",\"id\":1,\"method\":\"textDocument/rename\",\"params\":{}}");
+        sendToServer("{\"jsonrpc\":\"2.0\",\"id\":2,\"method\":\"java/echo\",\"params\":{\"line\":1,\"character\":2}}");
+        writeClientToServer.flush();
+        var fromServer = new FrameReader(serverToClient);
+        fromServer.nextToken();
+        fromServer.nextToken();
+
+        sendToServer("{\"jsonrpc\":\"2.0\",\"id\":3,\"method\":\"$/metrics\"}");
+        writeClientToServer.flush();
+        var metrics = fromServer.nextToken();
+        // rename has no handler, so it is counted with every other method the server doesn't know
+        assertThat(metrics, containsString("\"unknown\":{\"count\":1,\"errors\":1,"));
+        assertThat(metrics, not(containsString("textDocument/rename")));
+        assertThat(metrics, containsString("\"java/echo\":{\"count\":1,\"errors\":0,"));
+        // The whole response body, {"jsonrpc":"2.0","id":2,"result":{"line":1,"character":2}}
+        assertThat(metrics, containsString("\"responseBytes\":{\"count\":1,\"mean\":58.0,"));
+        assertThat(metrics, containsString("\"queue\":{\"mergedChanges\":0,\"droppedRequests\":0}"));
+        assertThat(metrics, containsString("\"background\":{\"tasksRun\":0,\"tasksReplaced\":0,\"averageLagMs\":0.0,"));
+        sendToServer(exitMessage);
+        main.join(10_000);
+    }
+
+    @Test
+    public void flightRecorderEvents() throws Exception {
+        try (var recording = new jdk.jfr.Recording()) {
+            recording.enable("dev.secondsun.lsp.FrameRead");
+            recording.enable("dev.secondsun.lsp.Dispatch");
+            recording.enable("dev.secondsun.lsp.FrameWrite");
+            recording.start();
+            sendToServer("{\"jsonrpc\":\"2.0\",\"id\":1,\"method\":\"textDocument/rename\",\"params\":{}}");
+            sendToServer("{\"jsonrpc\":\"2.0\",\"id\":2,\"method\":\"java/echo\",\"params\":{\"line\":1,\"character\":2}}");
+            writeClientToServer.flush();
+            var fromServer = new FrameReader(serverToClient);
+            fromServer.nextToken();
+            fromServer.nextToken();
+            sendToServer(exitMessage);
+            main.join(10_000);
+            recording.stop();
+
+            var file = Files.createTempFile("lsp", ".jfr");
+            recording.dump(file);
+            var events = RecordingFile.readAllEvents(file);
+            Files.delete(file);
+            var dispatched = new ArrayList<String>();
+            var reads = 0;
+            var written = 0L;
+            for (var event : events) {
+                switch (event.getEventType().getName()) {
+                    case "dev.secondsun.lsp.FrameRead":
+                        reads++;
+                        break;
+                    case "dev.secondsun.lsp.Dispatch":
+                        dispatched.add(event.getString("method") + " " + event.getInt("id") + " " + event.getString("outcome"));
+                        break;
+                    case "dev.secondsun.lsp.FrameWrite":
+                        written += event.getLong("bytes");
+                        break;
+                }
+            }
+            assertThat(reads, equalTo(3));
+            assertThat(dispatched, equalTo(List.of("textDocument/rename 1 error", "java/echo 2 ok", "exit -1 ok")));
+            assertThat(written, greaterThan(0L));
+        }
+    }
+
+    @Test
+    public void traceFollowsInitializeAndSetTrace()
+            throws IOException, InterruptedException, ExecutionException, TimeoutException {
+        var echo = "{\"jsonrpc\":\"2.0\",\"id\":%d,\"method\":\"java/echo\",\"params\":{\"line\":1,\"character\":2}}";
+        sendToServer("{\"jsonrpc\":\"2.0\",\"id\":1,\"method\":\"initialize\",\"params\":{\"trace\":\"messages\"}}");
+        sendToServer(String.format(echo, 2));
+        writeClientToServer.flush();
+        var fromServer = new FrameReader(serverToClient);
+        assertThat(fromServer.nextToken(), containsString("\"id\":1,"));
+        assertThat(fromServer.nextToken(), containsString("\"id\":2,"));
+        var trace = fromServer.nextToken();
+        assertThat(trace, containsString("{\"jsonrpc\":\"2.0\",\"method\":\"$/logTrace\",\"params\":"
+                + "{\"message\":\"Handled request \\u0027java/echo - (2)\\u0027 in "));
+        assertThat(trace, containsString(" ms: ok\"}}"));
+
+        sendToServer("{\"jsonrpc\":\"2.0\",\"method\":\"$/setTrace\",\"params\":{\"value\":\"verbose\"}}");
+        sendToServer(String.format(echo, 3));
+        writeClientToServer.flush();
+        assertThat(fromServer.nextToken(), containsString("Handled notification \\u0027$/setTrace\\u0027"));
+        assertThat(fromServer.nextToken(), containsString("\"id\":3,"));
+        assertThat(fromServer.nextToken(), containsString("\"verbose\":\"Params: {\\\"line\\\":1,\\\"character\\\":2}\"}"));
+
+        sendToServer("{\"jsonrpc\":\"2.0\",\"method\":\"$/setTrace\",\"params\":{\"value\":\"off\"}}");
+        sendToServer(String.format(echo, 4));
+        writeClientToServer.flush();
+        // Nothing is traced once the trace is off, not even turning it off
+        assertThat(fromServer.nextToken(), containsString("\"id\":4,"));
+        sendToServer(exitMessage);
+        main.join(10_000);
+        assertThat(serverToClient.available(), equalTo(0));
+    }
+
+    @Test
+    public void progressIsThrottled()
+            throws IOException, InterruptedException, ExecutionException, TimeoutException {
+        sendToServer("{\"jsonrpc\":\"2.0\",\"id\":1,\"method\":\"java/index\"}");
+        writeClientToServer.flush();
+        var fromServer = new FrameReader(serverToClient);
+        assertThat(fromServer.nextToken(), equalTo("{\"jsonrpc\":\"2.0\",\"method\":\"window/workDoneProgress/create\","
+                + "\"params\":{\"token\":\"progress-1\"},\"id\":1}"));
+        sendToServer("{\"jsonrpc\":\"2.0\",\"id\":1,\"result\":null}");
+        writeClientToServer.flush();
+
+        // Every report came within the interval after begin, so only begin and end went out
+        assertThat(fromServer.nextToken(), equalTo("{\"jsonrpc\":\"2.0\",\"method\":\"$/progress\",\"params\":"
+                + "{\"token\":\"progress-1\",\"value\":{\"kind\":\"begin\",\"title\":\"Indexing\"}}}"));
+        assertThat(fromServer.nextToken(), equalTo("{\"jsonrpc\":\"2.0\",\"method\":\"$/progress\",\"params\":"
+                + "{\"token\":\"progress-1\",\"value\":{\"kind\":\"end\"}}}"));
+        assertThat(fromServer.nextToken(), equalTo("{\"jsonrpc\":\"2.0\",\"id\":1,\"result\":1000}"));
+        sendToServer(exitMessage);
+        main.join(10_000);
+    }
+
+    @Test
+    public void cancelStopsResultsAddedFromAnotherThread()
+            throws IOException, InterruptedException, ExecutionException, TimeoutException {
+        sendToServer("{\"jsonrpc\":\"2.0\",\"id\":1,\"method\":\"workspace/symbol\",\"params\":{\"query\":\"Foo\","
+                + "\"partialResultToken\":\"symbols\"}}");
+        writeClientToServer.flush();
+        startedSymbols.get(10, TimeUnit.SECONDS);
+        sendToServer("{\"jsonrpc\":\"2.0\",\"method\":\"$/cancelRequest\",\"params\":{\"id\":1}}");
+        writeClientToServer.flush();
+
+        var fromServer = new FrameReader(serverToClient);
+        String token;
+        do {
+            token = fromServer.nextToken();
+        } while (token.contains("$/progress"));
+        assertThat(token, equalTo("{\"jsonrpc\":\"2.0\",\"id\":1,\"error\":{\"code\":-32800,"
+                + "\"message\":\"Request was canceled by the client\"}}"));
+        sendToServer(exitMessage);
+        main.join(10_000);
+    }
+
+    @Test
+    @Tag("streaming")
+    public void partialResultsAreStreamedInChunks()
+            throws IOException, InterruptedException, ExecutionException, TimeoutException {
+        var references = "{\"jsonrpc\":\"2.0\",\"id\":%d,\"method\":\"textDocument/references\",\"params\":"
+                + "{\"textDocument\":{\"uri\":\"file:///Foo.java\"},\"position\":{\"line\":0,\"character\":0},"
+                + "\"context\":{\"includeDeclaration\":true}%s}}";
+        sendToServer(String.format(references, 1, ",\"partialResultToken\":\"refs\""));
+        writeClientToServer.flush();
+        var fromServer = new FrameReader(serverToClient);
+        for (var chunk : List.of(100, 100, 50)) {
+            var progress = fromServer.nextToken();
+            assertThat(progress, containsString("\"method\":\"$/progress\",\"params\":{\"token\":\"refs\",\"value\":[{"));
+            assertThat(progress.split("\"uri\"").length - 1, equalTo(chunk));
+        }
+        assertThat(fromServer.nextToken(), equalTo("{\"jsonrpc\":\"2.0\",\"id\":1,\"result\":[]}"));
+
+        // Without a token, everything comes back in the response
+        sendToServer(String.format(references, 2, ""));
+        writeClientToServer.flush();
+        var response = fromServer.nextToken();
+        assertThat(response, containsString("\"id\":2,\"result\":[{"));
+        assertThat(response.split("\"uri\"").length - 1, equalTo(250));
+        sendToServer(exitMessage);
+        main.join(10_000);
+    }
+
+    @Test
+    @Tag("streaming")
+    public void streamingCodec()
+            throws IOException, InterruptedException, ExecutionException, TimeoutException {
+        sendToServer("{\"jsonrpc\":\"2.0\",\"id\":2,\"method\":\"textDocument/hover\",\"params\":"
+                + "{\"textDocument\":{\"uri\":\"file:///Foo.java\"},\"position\":{\"line\":1,\"character\":0}}}");
+        writeClientToServer.flush();
+
+        var fromServer = new FrameReader(serverToClient);
+        var request = fromServer.nextToken();
+        assertThat(request, containsString("\"params\":{\"textDocument\":{\"uri\":\"file:///Foo.java\"}"));
+        sendToServer("{\"jsonrpc\":\"2.0\",\"id\":1,\"result\":[\"<tabs>\"]}");
+        writeClientToServer.flush();
+        assertThat(fromServer.nextToken(), containsString("\"id\":2,\"result\":{\"contents\":[\"\\u003ctabs\\u003e\"]}"));
+        sendToServer("{\"jsonrpc\":\"2.0\",\"id\":3,\"method\":\"java/echo\",\"params\":{\"line\":1,\"character\":2}}");
+        writeClientToServer.flush();
+        assertThat(fromServer.nextToken(), containsString("\"id\":3,\"result\":{\"line\":1,\"character\":2}"));
+        sendToServer(exitMessage);
+        main.join(10_000);
+        assertThat("Main thread has quit", main.isAlive(), equalTo(false));
+    }
+
     @Test
     public void endOfStreamKillsServer()
             throws IOException, InterruptedException, ExecutionException, TimeoutException {
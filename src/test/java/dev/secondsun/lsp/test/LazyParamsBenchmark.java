@@ -0,0 +1,101 @@
+package dev.secondsun.lsp.test;
+
+import dev.secondsun.lsp.CodeActionParams;
+import dev.secondsun.lsp.DidChangeTextDocumentParams;
+import dev.secondsun.lsp.InboundMessage;
+import dev.secondsun.lsp.LSP;
+import dev.secondsun.lsp.TextDocumentPositionParams;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Decodes a burst of typing traffic where every request but the last of each method is cancelled
+ * while queued. {@code eager} binds every message's params as soon as it is read, {@code lazy} only
+ * binds the survivors.
+ *
+ * <p>Compare allocation with {@code org.openjdk.jmh.Main LazyParamsBenchmark -prof gc}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LazyParamsBenchmark {
+    private static final int KEYSTROKES = 20;
+
+    List<String> burst = new ArrayList<>();
+
+    @Setup
+    public void setup() {
+        var uri = "file:///workspace/src/org/example/Foo.java";
+        var diagnostics = new StringBuilder("[");
+        for (var i = 0; i < 50; i++) {
+            if (i > 0) diagnostics.append(',');
+            diagnostics.append(
+                    String.format(
+                            "{\"range\":{\"start\":{\"line\":%d,\"character\":4},\"end\":{\"line\":%d,\"character\":20}},"
+                                    + "\"severity\":1,\"code\":\"compiler.err.cant.resolve\",\"source\":\"javac\","
+                                    + "\"message\":\"cannot find symbol\\n  symbol: variable foo%d\"}",
+                            i, i, i));
+        }
+        diagnostics.append(']');
+        for (var i = 0; i < KEYSTROKES; i++) {
+            burst.add(
+                    String.format(
+                            "{\"jsonrpc\":\"2.0\",\"method\":\"textDocument/didChange\",\"params\":{\"textDocument\":{\"uri\":\"%s\",\"version\":%d},"
+                                    + "\"contentChanges\":[{\"range\":{\"start\":{\"line\":10,\"character\":%d},\"end\":{\"line\":10,\"character\":%d}},\"text\":\"x\"}]}}",
+                            uri, i, i, i));
+            burst.add(
+                    String.format(
+                            "{\"jsonrpc\":\"2.0\",\"id\":%d,\"method\":\"textDocument/completion\",\"params\":{\"textDocument\":{\"uri\":\"%s\"},"
+                                    + "\"position\":{\"line\":10,\"character\":%d}}}",
+                            3 * i, uri, i + 1));
+            burst.add(
+                    String.format(
+                            "{\"jsonrpc\":\"2.0\",\"id\":%d,\"method\":\"textDocument/signatureHelp\",\"params\":{\"textDocument\":{\"uri\":\"%s\"},"
+                                    + "\"position\":{\"line\":10,\"character\":%d}}}",
+                            3 * i + 1, uri, i + 1));
+            burst.add(
+                    String.format(
+                            "{\"jsonrpc\":\"2.0\",\"id\":%d,\"method\":\"textDocument/codeAction\",\"params\":{\"textDocument\":{\"uri\":\"%s\"},"
+                                    + "\"range\":{\"start\":{\"line\":10,\"character\":0},\"end\":{\"line\":10,\"character\":%d}},"
+                                    + "\"context\":{\"diagnostics\":%s}}}",
+                            3 * i + 2, uri, i + 1, diagnostics));
+        }
+    }
+
+    @Benchmark
+    public int eager() {
+        var bound = 0;
+        for (var token : burst) {
+            var message = LSP.decodeMessage(token);
+            bound += bind(message) != null ? 1 : 0;
+        }
+        return bound;
+    }
+
+    @Benchmark
+    public int lazy() {
+        var bound = 0;
+        for (var i = 0; i < burst.size(); i++) {
+            var message = LSP.decodeMessage(burst.get(i));
+            var superseded = message.id != null && i < burst.size() - 4;
+            if (!superseded) bound += bind(message) != null ? 1 : 0;
+        }
+        return bound;
+    }
+
+    private static Object bind(InboundMessage message) {
+        switch (message.method) {
+            case "textDocument/didChange":
+                return message.params(DidChangeTextDocumentParams.class);
+            case "textDocument/codeAction":
+                return message.params(CodeActionParams.class);
+            default:
+                return message.params(TextDocumentPositionParams.class);
+        }
+    }
+}
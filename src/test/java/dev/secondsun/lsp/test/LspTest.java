@@ -1,26 +1,63 @@
 package dev.secondsun.lsp.test;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 
 import com.google.gson.Gson;
 import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
+import com.google.gson.reflect.TypeToken;
 import com.google.gson.stream.JsonReader;
+import dev.secondsun.lsp.AsyncLogHandler;
+import dev.secondsun.lsp.CancelParams;
 import dev.secondsun.lsp.CompletionItem;
+import dev.secondsun.lsp.CompletionList;
+import dev.secondsun.lsp.Diagnostic;
+import dev.secondsun.lsp.FrameReader;
+import dev.secondsun.lsp.FrameWriter;
+import dev.secondsun.lsp.GeneratedAdapters;
+import dev.secondsun.lsp.Histogram;
+import dev.secondsun.lsp.Hover;
+import dev.secondsun.lsp.InitializeParams;
+import dev.secondsun.lsp.JsonCodec;
 import dev.secondsun.lsp.LSP;
 import dev.secondsun.lsp.MarkedString;
+import dev.secondsun.lsp.MessageBuffer;
+import dev.secondsun.lsp.Position;
+import dev.secondsun.lsp.Range;
+import dev.secondsun.lsp.ReferenceParams;
+import dev.secondsun.lsp.ResponseError;
+import dev.secondsun.lsp.TextDocumentPositionParams;
+import dev.secondsun.lsp.TextEdit;
+import dev.secondsun.lsp.WorkspaceEdit;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.PipedInputStream;
 import java.io.PipedOutputStream;
 import java.io.StringReader;
+import java.lang.reflect.Type;
+import java.net.URI;
 import java.nio.charset.Charset;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.logging.Handler;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
 
 import static org.hamcrest.MatcherAssert.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.allOf;
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+import static org.hamcrest.Matchers.nullValue;
 
 
 public class LspTest {
@@ -67,6 +104,23 @@ public class LspTest {
         assertThat(bufferTo, equalTo(expected));
     }
 
+    @Test
+    public void writeLargeResponse() {
+        var items = new ArrayList<CompletionItem>();
+        for (var i = 0; i < 1000; i++) {
+            var item = new CompletionItem();
+            item.label = "method" + i + "() → Ünïcødé 🔥 <html>";
+            item.kind = 2;
+            items.add(item);
+        }
+        var list = new CompletionList(false, items);
+        LSP.respond(writer, 7, list);
+
+        var body = "{\"jsonrpc\":\"2.0\",\"id\":7,\"result\":" + LSP.toJson(list) + "}";
+        var length = body.getBytes(Charset.forName("UTF-8")).length;
+        assertThat(bufferToString(), equalTo("Content-Length: " + length + "\r\n\r\n" + body));
+    }
+
     @Test
     public void writeOptional() {
         LSP.respond(writer, 1, Optional.of(1));
@@ -98,6 +152,146 @@ public class LspTest {
         assertThat(parse.params, equalTo(new JsonObject()));
     }
 
+    @Test
+    public void readMultibyteMessage() throws IOException {
+        var message = "{\"jsonrpc\":\"2.0\",\"id\":1,\"result\":\"🔥\"}";
+        var bytes = message.getBytes(Charset.forName("UTF-8"));
+        writer.write(String.format("Content-Length: %d\r\n\r\n", bytes.length).getBytes());
+        writer.write(bytes);
+
+        assertThat(LSP.nextToken(buffer), equalTo(message));
+    }
+
+    @Test
+    public void frameReaderReadsConsecutiveFrames() {
+        var small = "{\"jsonrpc\":\"2.0\",\"method\":\"initialized\",\"params\":\"🔥\"}";
+        var large = "{\"text\":\"" + "x".repeat(100_000) + "\"}";
+        var stream = new ByteArrayOutputStream();
+        for (var message : new String[] {small, large, small}) {
+            var bytes = message.getBytes(Charset.forName("UTF-8"));
+            var header = "Content-Type: application/vscode-jsonrpc; charset=utf-8\r\nContent-Length: " + bytes.length + "\r\n\r\n";
+            stream.writeBytes(header.getBytes());
+            stream.writeBytes(bytes);
+        }
+        // Deliver a few bytes at a time so headers and bodies span buffer refills
+        var trickle = new ByteArrayInputStream(stream.toByteArray()) {
+            @Override
+            public synchronized int read(byte[] b, int off, int len) {
+                return super.read(b, off, Math.min(len, 7));
+            }
+        };
+        var frames = new FrameReader(trickle, 64);
+
+        assertThat(frames.nextToken(), equalTo(small));
+        assertThat(frames.nextToken(), equalTo(large));
+        assertThat(frames.nextToken(), equalTo(small));
+    }
+
+    @Test
+    public void frameReaderSkipsOversizedHeaders() {
+        var stream = "X-Junk: " + "a".repeat(200) + "\r\nContent-Length: 2\r\n\r\n{}"
+                + "Content-Length: 4\r\nX-Junk: " + "b".repeat(100) + "\r\n\r\n\"ok\""
+                + "Content-Length: 2147483648\r\n\r\n{}";
+        var frames = new FrameReader(new ByteArrayInputStream(stream.getBytes()), 64);
+        assertThat(frames.nextToken(), equalTo("{}"));
+        assertThat(frames.nextToken(), equalTo("\"ok\""));
+        // A length that doesn't fit an int ends the stream, rather than failing on every read
+        var e = assertThrows(RuntimeException.class, frames::nextToken);
+        assertThat(e.getClass().getSimpleName(), equalTo("EndOfStream"));
+    }
+
+    @Test
+    public void frameWriterKeepsFramesWhole() throws InterruptedException {
+        var out = new ByteArrayOutputStream();
+        var frames = new FrameWriter(out);
+        var threads = new ArrayList<Thread>();
+        for (var t = 0; t < 4; t++) {
+            var body = ("{\"thread\":\"" + String.valueOf(t).repeat(1000) + "\"}").getBytes();
+            var thread = new Thread(() -> {
+                for (var i = 0; i < 100; i++) frames.send(body);
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        for (var thread : threads) thread.join();
+        frames.close();
+
+        assertThat(frames.framesWritten(), equalTo(400L));
+        var reader = new FrameReader(new ByteArrayInputStream(out.toByteArray()));
+        for (var i = 0; i < 400; i++) {
+            var token = reader.nextToken();
+            assertThat(token.length(), equalTo(1000 + 13));
+        }
+    }
+
+    @Test
+    public void frameWriterDropsMessagesAfterClose() throws InterruptedException {
+        var out = new ByteArrayOutputStream();
+        var frames = new FrameWriter(out, 2);
+        frames.send("{}".getBytes());
+        frames.close();
+        frames.close();
+        // More messages than the queue holds, which would block forever if they were queued
+        var sender = new Thread(() -> {
+            for (var i = 0; i < 10; i++) frames.send("{}".getBytes());
+        });
+        sender.start();
+        sender.join(10_000);
+        assertThat(sender.isAlive(), equalTo(false));
+        assertThat(frames.framesWritten(), equalTo(1L));
+        assertThat(frames.queueDepth(), equalTo(0));
+        assertThat(out.toString(), equalTo("Content-Length: 2\r\n\r\n{}"));
+    }
+
+    @Test
+    public void decodeBindsParams() {
+        var message = "{\"jsonrpc\":\"2.0\",\"id\":3,\"method\":\"textDocument/hover\","
+                + "\"params\":{\"textDocument\":{\"uri\":\"file:///Foo.java\"},\"position\":{\"line\":1,\"character\":2}}}";
+
+        var decoded = LSP.decodeMessage(message);
+        assertThat(decoded.id, equalTo(3));
+        assertThat(decoded.method, equalTo("textDocument/hover"));
+        var params = decoded.params(TextDocumentPositionParams.class);
+        assertThat(params.position, equalTo(new Position(1, 2)));
+    }
+
+    @Test
+    public void malformedDocumentUriIsIgnored() {
+        var message = "{\"jsonrpc\":\"2.0\",\"id\":3,\"method\":\"textDocument/hover\","
+                + "\"params\":{\"textDocument\":{\"uri\":\"file:///My Project/Foo.java\"}}}";
+
+        assertThat(LSP.decodeMessage(message).documentUri(), nullValue());
+    }
+
+    @Test
+    public void decodeParamsBeforeMethod() {
+        var message = "{\"params\":{\"id\":7},\"method\":\"$/cancelRequest\",\"jsonrpc\":\"2.0\"}";
+
+        var decoded = LSP.decodeMessage(message);
+        assertThat(decoded.method, equalTo("$/cancelRequest"));
+        assertThat(decoded.params(CancelParams.class).id, equalTo(7));
+    }
+
+    @Test
+    public void decodeScansEscapesAndStringIds() {
+        var message = "{\"jsonrpc\":\"2.0\",\"\\u0069d\":\"12\",\"method\":\"text\\u0044ocument\\/hover\","
+                + "\"params\":{\"textDocument\":{\"uri\":\"file:///Foo.java\"}},\"note\":\"\\\"}\"}";
+
+        var decoded = LSP.decodeMessage(message);
+        assertThat(decoded.id, equalTo(12));
+        assertThat(decoded.method, equalTo("textDocument/hover"));
+        assertThat(decoded.rawParams(), equalTo("{\"textDocument\":{\"uri\":\"file:///Foo.java\"}}"));
+        assertThat(decoded.documentUri(), equalTo(URI.create("file:///Foo.java")));
+
+        // An escape later in the frame doesn't make an earlier value look escaped
+        var later = LSP.decodeMessage("{\"method\":\"initialized\",\"params\":null,\"jsonrpc\":\"2.\\u0030\"}");
+        assertThat(later.method, equalTo("initialized"));
+        assertThat(later.jsonrpc, equalTo("2.0"));
+        assertThat(later.rawParams(), equalTo("null"));
+        assertThat(later.params(CancelParams.class), nullValue());
+        assertThat(later.documentUri(), nullValue());
+    }
+
     @Test
     public void excludeDefaults() {
         var item = new CompletionItem();
@@ -105,4 +299,186 @@ public class LspTest {
 
         assertThat(text, equalTo("{\"kind\":0}"));
     }
+
+    @Test
+    public void generatedAdaptersMatchReflection() {
+        var reflective = new Gson();
+        var samples = new LinkedHashMap<Class<?>, String>();
+        samples.put(CompletionItem.class, "{\"label\":\"foo\",\"kind\":\"3\",\"documentation\":{\"kind\":\"markdown\","
+                + "\"value\":\"x\"},\"deprecated\":true,\"commitCharacters\":[\".\"],\"data\":{\"a\":[1,null]},"
+                + "\"unknown\":{\"b\":null},\"detail\":null}");
+        samples.put(Diagnostic.class, "{\"range\":{\"start\":{\"line\":1,\"character\":2},\"end\":{\"line\":1,"
+                + "\"character\":null}},\"severity\":1,\"code\":true,\"tags\":[1,2]}");
+        samples.put(InitializeParams.class, "{\"processId\":null,\"rootUri\":\"file:///workspace\",\"workspaceFolders\":"
+                + "[{\"uri\":\"file:///workspace\",\"name\":\"workspace\"}],\"initializationOptions\":[1,\"two\"]}");
+        samples.put(ReferenceParams.class, "{\"context\":{\"includeDeclaration\":\"true\"},\"textDocument\":{\"uri\":"
+                + "\"file:///Foo.java\"},\"position\":{\"line\":3,\"character\":4}}");
+        samples.put(WorkspaceEdit.class, "{\"changes\":{\"file:///Foo.java\":[{\"range\":{\"start\":{\"line\":0,"
+                + "\"character\":0},\"end\":{\"line\":0,\"character\":1}},\"newText\":\"x\"}]}}");
+        for (var sample : samples.entrySet()) {
+            var generated = jsonb.fromJson(sample.getValue(), sample.getKey());
+            var expected = reflective.fromJson(sample.getValue(), sample.getKey());
+            assertThat(jsonb.toJson(generated), equalTo(reflective.toJson(expected)));
+            assertThat(reflective.toJson(generated), equalTo(reflective.toJson(expected)));
+        }
+        assertThat(GeneratedAdapters.types().contains(Position.class), equalTo(true));
+    }
+
+    /** A subclass of a protocol class, which Gson binds by reflection. */
+    public static class TaggedRange extends Range {
+        public String tag = "TAG";
+
+        public TaggedRange(Position start, Position end) {
+            super(start, end);
+        }
+    }
+
+    @Test
+    public void generatedAdaptersWriteSubclassFields() {
+        var reflective = new Gson();
+        var range = new TaggedRange(new Position(1, 2), new Position(3, 4));
+        var hover = new Hover(List.of(new MarkedString("int x")), range);
+        assertThat(jsonb.toJson(hover), equalTo(reflective.toJson(hover)));
+        assertThat(jsonb.toJson(hover), equalTo("{\"contents\":[\"int x\"],\"range\":{\"tag\":\"TAG\","
+                + "\"start\":{\"line\":1,\"character\":2},\"end\":{\"line\":3,\"character\":4}}}"));
+
+        var edit = new WorkspaceEdit();
+        edit.changes = Map.of(URI.create("file:///Foo.java"), List.of(new TextEdit(range, "x")));
+        assertThat(jsonb.toJson(edit), equalTo(reflective.toJson(edit)));
+        var ranges = TypeToken.getParameterized(List.class, Range.class).getType();
+        assertThat(jsonb.toJson(List.of(range), ranges), equalTo(reflective.toJson(List.of(range), ranges)));
+        assertThat(GeneratedAdapters.types().contains(Range.class), equalTo(true));
+    }
+
+    /** The frame {@code codec} writes for {@code value} bound as {@code type}, header and all. */
+    static byte[] frame(JsonCodec codec, Type type, Object value) throws IOException {
+        var buffer = MessageBuffer.acquire();
+        try {
+            codec.binding(type).write(buffer, value);
+            var out = new ByteArrayOutputStream();
+            buffer.writeFrame(out);
+            return out.toByteArray();
+        } finally {
+            buffer.release();
+        }
+    }
+
+    @Test
+    public void codecsWriteTheSameBytes() throws IOException {
+        var range = new TaggedRange(new Position(1, 2), new Position(3, 4));
+        range.tag = "<a href='x'>&amp;=</a> \u2028 \ud83d\ude00";
+        var item = new CompletionItem();
+        item.label = "List<String> a = b & c";
+        item.detail = null;
+        item.commitCharacters = new ArrayList<>(Arrays.asList('<', null, '='));
+        var edits = new LinkedHashMap<URI, List<TextEdit>>();
+        edits.put(URI.create("file:///A%20B.java"), Arrays.asList(new TextEdit(range, "'x'"), null));
+        edits.put(URI.create("file:///C.java"), null);
+        var edit = new WorkspaceEdit();
+        edit.changes = edits;
+        var ranges = TypeToken.getParameterized(List.class, Range.class).getType();
+
+        var samples = new ArrayList<Object[]>();
+        samples.add(new Object[] {Hover.class, new Hover(List.of(new MarkedString("java", "a < b")), range)});
+        samples.add(new Object[] {Range.class, range});
+        samples.add(new Object[] {ranges, Arrays.asList(new Range(new Position(0, 0), new Position(0, 1)), range, null)});
+        samples.add(new Object[] {CompletionItem.class, item});
+        samples.add(new Object[] {WorkspaceEdit.class, edit});
+        samples.add(new Object[] {Object.class, edit});
+        samples.add(new Object[] {Hover.class, null});
+        for (var sample : samples) {
+            var type = (Type) sample[0];
+            var expected = frame(JsonCodec.gson(), type, sample[1]);
+            assertThat(new String(frame(JsonCodec.streaming(), type, sample[1])), equalTo(new String(expected)));
+            assertThat(frame(JsonCodec.streaming(), type, sample[1]), equalTo(expected));
+        }
+        // Both write what Gson's reflection writes
+        assertThat(JsonCodec.gson().toJson(edit), equalTo(new Gson().toJson(edit)));
+        assertThat(new String(frame(JsonCodec.gson(), Range.class, range)), containsString("\"tag\":\"\\u003ca href"));
+    }
+
+    @Test
+    public void streamingCodecMatchesGson() {
+        var gson = JsonCodec.gson();
+        var streaming = JsonCodec.streaming();
+        var samples = new LinkedHashMap<Class<?>, String>();
+        samples.put(CompletionItem.class, "{\"label\":\"a\\\"b\\u00e9<=>\",\"kind\":\"3\",\"documentation\":{\"kind\":"
+                + "\"markdown\",\"value\":\"\\ud83d\\ude00 & '\\n\"},\"deprecated\":true,\"commitCharacters\":[\".\"],"
+                + "\"data\":{\"a\":[1.50,null,{\"b\":null}]},\"unknown\":{\"b\":[]},\"detail\":null}");
+        samples.put(Diagnostic.class, "{\"range\":{\"start\":{\"line\":1,\"character\":2},\"end\":{\"line\":1,"
+                + "\"character\":null}},\"severity\":1.0,\"code\":true,\"tags\":[1,2]}");
+        samples.put(InitializeParams.class, "{\"processId\":null,\"rootUri\":\"file:///work%20space\",\"workspaceFolders\":"
+                + "[{\"uri\":\"file:///workspace\",\"name\":\"workspace\"}],\"initializationOptions\":[1,\"two\"]}");
+        samples.put(ReferenceParams.class, " {\"context\":{\"includeDeclaration\":\"true\"},\"textDocument\":{\"uri\":"
+                + "\"file:///Foo.java\"},\"position\":{\"line\":3,\"character\":4}}");
+        samples.put(WorkspaceEdit.class, "{\"changes\":{\"file:///Foo.java\":[{\"range\":{\"start\":{\"line\":0,"
+                + "\"character\":0},\"end\":{\"line\":0,\"character\":1}},\"newText\":\"x\"}]}}");
+        for (var sample : samples.entrySet()) {
+            var expected = gson.fromJson(sample.getValue(), sample.getKey());
+            var actual = streaming.fromJson(sample.getValue(), sample.getKey());
+            assertThat(streaming.toJson(actual), equalTo(gson.toJson(expected)));
+            assertThat(gson.toJson(actual), equalTo(gson.toJson(expected)));
+        }
+
+        var hover = new Hover(List.of(new MarkedString("plain"), new MarkedString("java", "int x;")));
+        assertThat(streaming.toJson(hover), equalTo(gson.toJson(hover)));
+        assertThat(streaming.toJson(List.of(new Position(1, 2))), equalTo(gson.toJson(List.of(new Position(1, 2)))));
+
+        var response = LSP.decodeMessage("{\"jsonrpc\":\"2.0\",\"id\":1,\"error\":{\"code\":-32601,\"message\":"
+                + "\"Unhandled\"}}", streaming);
+        assertThat(response.isError(), equalTo(true));
+        assertThat(response.error().code, equalTo(-32601));
+        var position = LSP.decodeMessage("{\"id\":2,\"result\":{\"line\":4,\"character\":5}}", streaming);
+        assertThat(position.result(Position.class), equalTo(new Position(4, 5)));
+    }
+
+    @Test
+    public void histogramPercentiles() {
+        var histogram = new Histogram();
+        assertThat(histogram.percentile(50), equalTo(0L));
+        for (var i = 1; i <= 1000; i++) histogram.record(i * 1000L);
+        assertThat(histogram.count(), equalTo(1000L));
+        assertThat(histogram.max(), equalTo(1_000_000L));
+        assertThat(histogram.mean(), equalTo(500_500.0));
+        // Buckets are an eighth of a power of two wide
+        assertThat(histogram.percentile(50), allOf(greaterThanOrEqualTo(500_000L), lessThanOrEqualTo(562_500L)));
+        assertThat(histogram.percentile(99), allOf(greaterThanOrEqualTo(990_000L), lessThanOrEqualTo(1_000_000L)));
+        assertThat(histogram.percentile(100), equalTo(1_000_000L));
+    }
+
+    @Test
+    public void asyncLogHandlerPublishesOnItsOwnThread() {
+        var logger = Logger.getLogger("asyncLogHandlerTest");
+        var published = new ArrayList<String>();
+        logger.setUseParentHandlers(false);
+        var handler =
+                new Handler() {
+                    @Override
+                    public void publish(LogRecord record) {
+                        published.add(Thread.currentThread().getName() + ": " + record.getMessage() + " from "
+                                + record.getSourceMethodName());
+                    }
+
+                    @Override
+                    public void flush() {}
+
+                    @Override
+                    public void close() {}
+                };
+        logger.addHandler(handler);
+        var async = AsyncLogHandler.install(logger, 16);
+        assertThat(AsyncLogHandler.install(logger, 16), equalTo(async));
+        logger.info("one");
+        logger.warning("two");
+        async.flush();
+        assertThat(published, equalTo(List.of("log: one from asyncLogHandlerPublishesOnItsOwnThread",
+                "log: two from asyncLogHandlerPublishesOnItsOwnThread")));
+        // Installed twice, so it takes two uninstalls to put the logger back
+        async.uninstall();
+        assertThat(List.of(logger.getHandlers()), equalTo(List.of(async)));
+        async.uninstall();
+        assertThat(List.of(logger.getHandlers()), equalTo(List.of(handler)));
+        assertThat(logger.getUseParentHandlers(), equalTo(false));
+        logger.removeHandler(handler);
+    }
 }
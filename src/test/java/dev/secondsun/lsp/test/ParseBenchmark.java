@@ -0,0 +1,81 @@
+package dev.secondsun.lsp.test;
+
+import dev.secondsun.lsp.CompletionList;
+import dev.secondsun.lsp.DidOpenTextDocumentParams;
+import dev.secondsun.lsp.LSP;
+import dev.secondsun.lsp.TextDocumentPositionParams;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Parses a completion request, a 64 KB didOpen and a completion response from the client.
+ * {@code parseMessage} binds the whole message into a Gson tree, {@code decodeMessage} only scans
+ * the envelope, and {@code decodeAndBind} also binds params or the result, as the server does.
+ *
+ * <p>Run with {@code org.openjdk.jmh.Main ParseBenchmark -prof gc} for allocation per message.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ParseBenchmark {
+    @Param({"completion", "didOpen", "response"})
+    String message;
+
+    String token;
+
+    @Setup
+    public void setup() {
+        switch (message) {
+            case "completion":
+                token =
+                        "{\"jsonrpc\":\"2.0\",\"id\":12,\"method\":\"textDocument/completion\",\"params\":{\"textDocument\":"
+                                + "{\"uri\":\"file:///workspace/src/main/java/org/example/Foo.java\"},\"position\":"
+                                + "{\"line\":120,\"character\":17}}}";
+                break;
+            case "didOpen":
+                var text = new StringBuilder();
+                while (text.length() < 64 * 1024) {
+                    text.append("    void method").append(text.length()).append("() {\\n        log(\\\"x\\\");\\n    }\\n");
+                }
+                token =
+                        "{\"jsonrpc\":\"2.0\",\"method\":\"textDocument/didOpen\",\"params\":{\"textDocument\":{\"uri\":"
+                                + "\"file:///workspace/Foo.java\",\"languageId\":\"java\",\"version\":1,\"text\":\"" + text
+                                + "\"}}}";
+                break;
+            default:
+                var items = new StringBuilder();
+                for (var i = 0; i < 50; i++) {
+                    if (i > 0) items.append(',');
+                    items.append("{\"label\":\"item").append(i).append("\",\"kind\":2,\"detail\":\"int item").append(i)
+                            .append("()\"}");
+                }
+                token = "{\"jsonrpc\":\"2.0\",\"id\":3,\"result\":{\"isIncomplete\":false,\"items\":[" + items + "]}}";
+        }
+    }
+
+    @Benchmark
+    public Object parseMessage() {
+        return LSP.parseMessage(token);
+    }
+
+    @Benchmark
+    public Object decodeMessage() {
+        return LSP.decodeMessage(token);
+    }
+
+    @Benchmark
+    public Object decodeAndBind() {
+        var decoded = LSP.decodeMessage(token);
+        switch (message) {
+            case "completion":
+                return decoded.params(TextDocumentPositionParams.class);
+            case "didOpen":
+                return decoded.params(DidOpenTextDocumentParams.class);
+            default:
+                return decoded.result(CompletionList.class);
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package dev.secondsun.lsp.test;
+
+import dev.secondsun.lsp.*;
+import java.io.OutputStream;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Serializes the largest payloads a server sends: a 200-item {@link CompletionList}, 500 reference
+ * {@link Location}s and {@link PublishDiagnosticsParams} with 100 diagnostics. {@code toJson}
+ * builds a String with {@link LSP#toJson}, {@code respond} writes a whole frame with {@link
+ * LSP#respond}.
+ *
+ * <p>Run with {@code org.openjdk.jmh.Main PayloadBenchmark -prof gc} for allocation per message.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PayloadBenchmark {
+    @Param({"completionList", "locations", "diagnostics"})
+    String payload;
+
+    final OutputStream out = OutputStream.nullOutputStream();
+    Object value;
+
+    @Setup
+    public void setup() {
+        var uri = URI.create("file:///workspace/src/main/java/org/example/Foo.java");
+        switch (payload) {
+            case "completionList":
+                var items = new ArrayList<CompletionItem>();
+                for (var i = 0; i < 200; i++) {
+                    var item = new CompletionItem();
+                    item.label = "getSomethingUseful" + i;
+                    item.kind = CompletionItemKind.Method;
+                    item.detail = "java.util.List<java.lang.String> getSomethingUseful" + i + "(int index)";
+                    item.documentation = new MarkupContent();
+                    item.documentation.kind = MarkupKind.Markdown;
+                    item.documentation.value = "Returns something useful for `index`.";
+                    item.sortText = String.format("%04d", i);
+                    items.add(item);
+                }
+                value = new CompletionList(false, items);
+                break;
+            case "locations":
+                var locations = new ArrayList<Location>();
+                for (var i = 0; i < 500; i++) {
+                    var file = URI.create("file:///workspace/src/main/java/org/example/File" + i % 40 + ".java");
+                    locations.add(new Location(file, range(i)));
+                }
+                value = locations;
+                break;
+            default:
+                var diagnostics = new ArrayList<Diagnostic>();
+                for (var i = 0; i < 100; i++) {
+                    var diagnostic = new Diagnostic();
+                    diagnostic.range = range(i);
+                    diagnostic.severity = DiagnosticSeverity.Error;
+                    diagnostic.code = "compiler.err.cant.resolve.location";
+                    diagnostic.source = "javac";
+                    diagnostic.message = "cannot find symbol\n  symbol:   variable foo" + i + "\n  location: class Foo";
+                    diagnostics.add(diagnostic);
+                }
+                value = new PublishDiagnosticsParams(uri, diagnostics);
+        }
+    }
+
+    private static Range range(int line) {
+        return new Range(new Position(line, 8), new Position(line, 24));
+    }
+
+    @Benchmark
+    public String toJson() {
+        return LSP.toJson(value);
+    }
+
+    @Benchmark
+    public void respond() {
+        LSP.respond(out, 1, value);
+    }
+}
@@ -0,0 +1,85 @@
+package dev.secondsun.lsp.test;
+
+import dev.secondsun.lsp.*;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.net.URI;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+public class ReplayTest {
+    static class HoverServer extends LanguageServer {
+        final List<URI> opened = new ArrayList<>();
+
+        @Override
+        public InitializeResult initialize(InitializeParams params) {
+            return new InitializeResult();
+        }
+
+        @Override
+        public void didOpenTextDocument(DidOpenTextDocumentParams params) {
+            opened.add(params.textDocument.uri);
+        }
+
+        @Override
+        public Optional<Hover> hover(TextDocumentPositionParams params) {
+            return Optional.of(new Hover(List.of(new MarkedString("line " + params.position.line))));
+        }
+    }
+
+    static void send(PipedOutputStream out, String body) throws IOException {
+        out.write(String.format("Content-Length: %d\r\n\r\n%s", body.length(), body).getBytes());
+        out.flush();
+    }
+
+    @Test
+    public void recordAndReplay(@TempDir Path dir) throws Exception {
+        var file = dir.resolve("session.lspr");
+        var clientToServer = new PipedInputStream(1024 * 1024);
+        var serverToClient = new PipedInputStream(1024 * 1024);
+        var toServer = new PipedOutputStream(clientToServer);
+        var writeServerToClient = new PipedOutputStream(serverToClient);
+        var options = new ConnectionOptions();
+        options.recordTo = file;
+        var main = new Thread(() -> LSP.connect(client -> new HoverServer(), clientToServer, writeServerToClient, options));
+        main.start();
+        var fromServer = new FrameReader(serverToClient);
+        send(toServer, "{\"jsonrpc\":\"2.0\",\"id\":1,\"method\":\"initialize\",\"params\":{\"rootUri\":\"file:///recorded/project/\"}}");
+        fromServer.nextToken();
+        send(toServer, "{\"jsonrpc\":\"2.0\",\"method\":\"textDocument/didOpen\",\"params\":{\"textDocument\":{\"uri\":"
+                + "\"file:///recorded/project/Foo.java\",\"languageId\":\"java\",\"version\":1,\"text\":\"class Foo {}\"}}}");
+        for (var i = 2; i < 5; i++) {
+            send(toServer, "{\"jsonrpc\":\"2.0\",\"id\":" + i + ",\"method\":\"textDocument/hover\",\"params\":{\"textDocument\":"
+                    + "{\"uri\":\"file:///recorded/project/Foo.java\"},\"position\":{\"line\":" + i + ",\"character\":0}}}");
+            assertThat(fromServer.nextToken(), containsString("line " + i));
+        }
+        send(toServer, "{\"jsonrpc\":\"2.0\",\"method\":\"exit\"}");
+        main.join(10_000);
+
+        var recording = Recording.read(file);
+        assertThat(recording.frames, hasSize(10));
+        assertThat(recording.frames.get(0).inbound, equalTo(true));
+        assertThat(recording.frames.get(1).inbound, equalTo(false));
+        assertThat(recording.latencies().count("textDocument/hover"), equalTo(3));
+
+        var server = new HoverServer();
+        var replay = new Replay();
+        replay.speed = Double.POSITIVE_INFINITY;
+        replay.workspace = dir;
+        var report = replay.run(recording, client -> server);
+        assertThat(report.count("initialize"), equalTo(1));
+        assertThat(report.count("textDocument/hover"), equalTo(3));
+        assertThat(report.unanswered("textDocument/hover"), equalTo(0));
+        assertThat(report.toString(), containsString("textDocument/hover"));
+        assertThat(server.opened, contains(dir.toAbsolutePath().resolve("Foo.java").toUri()));
+    }
+}
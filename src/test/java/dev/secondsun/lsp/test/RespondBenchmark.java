@@ -0,0 +1,63 @@
+package dev.secondsun.lsp.test;
+
+import dev.secondsun.lsp.CompletionItem;
+import dev.secondsun.lsp.CompletionItemKind;
+import dev.secondsun.lsp.CompletionList;
+import dev.secondsun.lsp.LSP;
+import dev.secondsun.lsp.MarkupContent;
+import dev.secondsun.lsp.MarkupKind;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Serializes a 1,000-item {@link CompletionList} response. {@code respond} is {@link LSP#respond},
+ * {@code formatStrings} is the toJson/format/getBytes pipeline it replaced.
+ *
+ * <p>Compare {@code gc.alloc.rate.norm} with {@code org.openjdk.jmh.Main RespondBenchmark -prof gc}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RespondBenchmark {
+    final OutputStream out = OutputStream.nullOutputStream();
+    CompletionList list;
+
+    @Setup
+    public void setup() {
+        var items = new ArrayList<CompletionItem>();
+        for (var i = 0; i < 1000; i++) {
+            var item = new CompletionItem();
+            item.label = "getSomethingUseful" + i;
+            item.kind = CompletionItemKind.Method;
+            item.detail = "java.util.List<java.lang.String> getSomethingUseful" + i + "(int index)";
+            item.documentation = new MarkupContent();
+            item.documentation.kind = MarkupKind.Markdown;
+            item.documentation.value = "Returns something useful for `index`.";
+            item.sortText = String.format("%04d", i);
+            items.add(item);
+        }
+        list = new CompletionList(false, items);
+    }
+
+    @Benchmark
+    public void respond() {
+        LSP.respond(out, 1, list);
+    }
+
+    @Benchmark
+    public void formatStrings() throws IOException {
+        var jsonText = LSP.toJson(list);
+        var messageText = String.format("{\"jsonrpc\":\"2.0\",\"id\":%d,\"result\":%s}", 1, jsonText);
+        var messageBytes = messageText.getBytes(StandardCharsets.UTF_8);
+        var headerText = String.format("Content-Length: %d\r\n\r\n", messageBytes.length);
+        out.write(headerText.getBytes(StandardCharsets.UTF_8));
+        out.write(messageBytes);
+    }
+}
@@ -0,0 +1,81 @@
+package dev.secondsun.lsp.test;
+
+import dev.secondsun.lsp.Rope;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Applies 10,000 random edits, each inserting or deleting up to 16 chars, to a 5 MB file, then
+ * finds the line of 10,000 random offsets in the result. {@code rope} edits a {@link Rope}, {@code
+ * string} concatenates substrings and scans for newlines, as {@link dev.secondsun.lsp.TextDocument}
+ * did before. Scores are microseconds per edit or lookup.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 2, time = 1)
+@Measurement(iterations = 3, time = 1)
+@Fork(1)
+public class RopeBenchmark {
+    private static final int EDITS = 10_000, SIZE = 5 * 1024 * 1024;
+
+    @Param({"rope", "string"})
+    String text;
+
+    String file;
+    Rope rope;
+    int[] starts = new int[EDITS], ends = new int[EDITS], offsets = new int[EDITS];
+    String[] inserts = new String[EDITS];
+
+    @Setup
+    public void setup() {
+        var builder = new StringBuilder(SIZE + 100);
+        while (builder.length() < SIZE) {
+            builder.append("        int field").append(builder.length()).append(" = compute(arg, ").append(builder.length() % 97).append(");\n");
+        }
+        file = builder.toString();
+        rope = Rope.of(file);
+        var random = new Random(7);
+        var length = file.length();
+        for (var i = 0; i < EDITS; i++) {
+            starts[i] = random.nextInt(length);
+            if (random.nextBoolean()) {
+                ends[i] = starts[i];
+                inserts[i] = random.nextInt(4) == 0 ? "\n" : "abcdefghijklmnop".substring(random.nextInt(16));
+            } else {
+                ends[i] = Math.min(length, starts[i] + random.nextInt(16) + 1);
+                inserts[i] = "";
+            }
+            length += inserts[i].length() - (ends[i] - starts[i]);
+        }
+        for (var i = 0; i < EDITS; i++) offsets[i] = random.nextInt(length);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(EDITS)
+    public int edits() {
+        if (text.equals("rope")) {
+            var edited = rope;
+            for (var i = 0; i < EDITS; i++) edited = edited.replace(starts[i], ends[i], inserts[i]);
+            return edited.length();
+        }
+        var edited = file;
+        for (var i = 0; i < EDITS; i++) edited = edited.substring(0, starts[i]) + inserts[i] + edited.substring(ends[i]);
+        return edited.length();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(EDITS)
+    public int lineAt() {
+        var total = 0;
+        if (text.equals("rope")) {
+            for (var offset : offsets) total += rope.lineAt(offset);
+            return total;
+        }
+        for (var offset : offsets) {
+            for (var next = file.indexOf('\n'); next != -1 && next < offset; next = file.indexOf('\n', next + 1)) total++;
+        }
+        return total;
+    }
+}
@@ -0,0 +1,100 @@
+package dev.secondsun.lsp.test;
+
+import dev.secondsun.lsp.*;
+import java.io.IOException;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.net.URI;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * The whole path through {@link LSP#connect}: frame, decode, queue, dispatch, bind, handle, encode
+ * and write, against an in-memory server whose handlers return at once. Each invocation sends 100
+ * definition and hover requests down a pipe and reads every response, so the score is round trips
+ * per second. {@code serial} handles them on the message loop, {@code concurrent} on a pool, and
+ * {@code codec} picks {@link ConnectionOptions#codec}.
+ *
+ * <p>Run with {@code org.openjdk.jmh.Main RoundTripBenchmark -prof gc} for allocation per round trip.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RoundTripBenchmark {
+    private static final int REQUESTS = 100;
+
+    @Param({"serial", "concurrent"})
+    String mode;
+
+    @Param({"gson", "streaming"})
+    String codec;
+
+    PipedOutputStream toServer;
+    FrameReader fromServer;
+    Thread main;
+    byte[] requests;
+
+    static class InMemoryServer extends LanguageServer {
+        final URI uri = URI.create("file:///workspace/src/main/java/org/example/Bar.java");
+
+        @Override
+        public Optional<List<Location>> gotoDefinition(TextDocumentPositionParams params) {
+            var line = params.position.line;
+            return Optional.of(List.of(new Location(uri, new Range(new Position(line, 4), new Position(line, 12)))));
+        }
+
+        @Override
+        public Optional<Hover> hover(TextDocumentPositionParams params) {
+            return Optional.of(new Hover(List.of(new MarkedString("java", "int bar" + params.position.line))));
+        }
+    }
+
+    @Setup
+    public void setup() throws IOException {
+        var clientToServer = new PipedInputStream(1024 * 1024);
+        var serverToClient = new PipedInputStream(1024 * 1024);
+        toServer = new PipedOutputStream(clientToServer);
+        var writeServerToClient = new PipedOutputStream(serverToClient);
+        fromServer = new FrameReader(serverToClient);
+        var options = new ConnectionOptions();
+        options.concurrent = mode.equals("concurrent");
+        options.codec = codec.equals("gson") ? JsonCodec.gson() : JsonCodec.streaming();
+        main = new Thread(() -> LSP.connect(client -> new InMemoryServer(), clientToServer, writeServerToClient, options));
+        main.start();
+        var all = new StringBuilder();
+        for (var i = 0; i < REQUESTS; i++) {
+            var method = i % 2 == 0 ? "textDocument/definition" : "textDocument/hover";
+            var body =
+                    String.format(
+                            "{\"jsonrpc\":\"2.0\",\"id\":%d,\"method\":\"%s\",\"params\":{\"textDocument\":{\"uri\":"
+                                    + "\"file:///workspace/src/main/java/org/example/Foo%d.java\"},\"position\":{\"line\":%d,"
+                                    + "\"character\":12}}}",
+                            i, method, i % 5, i);
+            all.append(String.format("Content-Length: %d\r\n\r\n", body.length())).append(body);
+        }
+        requests = all.toString().getBytes();
+    }
+
+    @TearDown
+    public void tearDown() throws IOException, InterruptedException {
+        var exit = "{\"jsonrpc\":\"2.0\",\"method\":\"exit\"}";
+        toServer.write((String.format("Content-Length: %d\r\n\r\n", exit.length()) + exit).getBytes());
+        toServer.flush();
+        main.join(10_000);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(REQUESTS)
+    public int roundTrips() throws IOException {
+        toServer.write(requests);
+        toServer.flush();
+        var total = 0;
+        for (var i = 0; i < REQUESTS; i++) total += fromServer.nextToken().length();
+        return total;
+    }
+}
@@ -0,0 +1,69 @@
+package dev.secondsun.lsp.test;
+
+import dev.secondsun.lsp.Scheduler;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.net.URI;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.containsInAnyOrder;
+import static org.hamcrest.Matchers.equalTo;
+
+public class SchedulerTest {
+    Scheduler scheduler = new Scheduler();
+
+    @AfterEach
+    public void close() {
+        scheduler.close();
+    }
+
+    @Test
+    public void resubmittingReplacesWaitingTask() throws InterruptedException {
+        var foo = URI.create("file:///Foo.java");
+        var bar = URI.create("file:///Bar.java");
+        var ran = new CopyOnWriteArrayList<String>();
+        var done = new CountDownLatch(2);
+        for (var i = 0; i < 3; i++) {
+            var version = "foo " + i;
+            scheduler.schedule(foo, Duration.ofMillis(100), () -> {
+                ran.add(version);
+                done.countDown();
+            });
+        }
+        scheduler.schedule(bar, Duration.ofMillis(100), () -> {
+            ran.add("bar");
+            done.countDown();
+        });
+
+        assertThat(done.await(10, TimeUnit.SECONDS), equalTo(true));
+        assertThat(ran, containsInAnyOrder("foo 2", "bar"));
+        assertThat(scheduler.tasksReplaced(), equalTo(2L));
+    }
+
+    @Test
+    public void canceledTaskNeverRuns() throws InterruptedException {
+        var foo = URI.create("file:///Foo.java");
+        var ran = new CopyOnWriteArrayList<String>();
+        scheduler.schedule(foo, Duration.ofMillis(50), () -> ran.add("foo"));
+        scheduler.cancel(foo);
+        Thread.sleep(200);
+        assertThat(ran, equalTo(List.of()));
+    }
+
+    @Test
+    public void taskScheduledAfterCloseIsDropped() throws InterruptedException {
+        var foo = URI.create("file:///Foo.java");
+        var ran = new CopyOnWriteArrayList<String>();
+        scheduler.close();
+        scheduler.schedule(foo, Duration.ofMillis(0), () -> ran.add("foo"));
+        Thread.sleep(100);
+        assertThat(ran, equalTo(List.of()));
+        assertThat(scheduler.tasksRun(), equalTo(0L));
+    }
+}
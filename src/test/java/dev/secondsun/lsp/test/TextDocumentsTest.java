@@ -0,0 +1,167 @@
+package dev.secondsun.lsp.test;
+
+import dev.secondsun.lsp.*;
+import org.junit.jupiter.api.Test;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.lessThan;
+import static org.hamcrest.Matchers.nullValue;
+
+public class TextDocumentsTest {
+    static final URI FOO = URI.create("file:///Foo.java");
+
+    static DidOpenTextDocumentParams open(String text) {
+        var item = new TextDocumentItem();
+        item.uri = FOO;
+        item.languageId = "java";
+        item.version = 1;
+        item.text = text;
+        return new DidOpenTextDocumentParams(item);
+    }
+
+    static TextDocumentContentChangeEvent edit(int startLine, int startCharacter, int endLine, int endCharacter, String text) {
+        var change = new TextDocumentContentChangeEvent();
+        change.range = new Range(new Position(startLine, startCharacter), new Position(endLine, endCharacter));
+        change.text = text;
+        return change;
+    }
+
+    static DidChangeTextDocumentParams change(int version, TextDocumentContentChangeEvent... changes) {
+        var params = new DidChangeTextDocumentParams();
+        params.textDocument.uri = FOO;
+        params.textDocument.version = version;
+        params.contentChanges = new ArrayList<>(List.of(changes));
+        return params;
+    }
+
+    @Test
+    public void incrementalChanges() {
+        var documents = new TextDocuments();
+        var first = documents.open(open("class Foo {\r\n    int x;\r\n}\n"));
+        // Each change applies to the result of the one before
+        var second = documents.change(change(2, edit(1, 8, 1, 9, "count"), edit(1, 4, 1, 7, "long"), edit(2, 1, 2, 1, " // end")));
+        assertThat(second.text().toString(), equalTo("class Foo {\r\n    long count;\r\n} // end\n"));
+        assertThat(second.version, equalTo(2));
+        // Snapshots don't change
+        assertThat(first.text().toString(), equalTo("class Foo {\r\n    int x;\r\n}\n"));
+        assertThat(documents.get(FOO), equalTo(second));
+
+        // A character past the end of the line stops before \r\n
+        var joined = documents.change(change(3, edit(0, 99, 1, 4, " ")));
+        assertThat(joined.text().toString(), equalTo("class Foo { long count;\r\n} // end\n"));
+        // A stale version is ignored
+        assertThat(documents.change(change(2, edit(0, 0, 0, 5, "interface"))), equalTo(joined));
+
+        var whole = new TextDocumentContentChangeEvent();
+        whole.text = "record Foo() {}";
+        assertThat(documents.change(change(4, whole)).text().toString(), equalTo("record Foo() {}"));
+        var close = new DidCloseTextDocumentParams();
+        close.textDocument.uri = FOO;
+        documents.close(close);
+        assertThat(documents.get(FOO), nullValue());
+    }
+
+    @Test
+    public void changeWithoutTextIsIgnored() {
+        var documents = new TextDocuments();
+        var first = documents.open(open("class Foo {}"));
+        assertThat(documents.change(change(2, edit(0, 6, 0, 9, "Bar"), edit(0, 0, 0, 5, null))), equalTo(first));
+        assertThat(documents.get(FOO), equalTo(first));
+        var missing = change(2);
+        missing.contentChanges = null;
+        assertThat(documents.change(missing), equalTo(first));
+        // Later changes still apply
+        assertThat(documents.change(change(2, edit(0, 6, 0, 9, "Bar"))).text().toString(), equalTo("class Bar {}"));
+    }
+
+    @Test
+    public void positionsCountUtf16CodeUnits() {
+        var document = new TextDocuments().open(open("a🔥b\nc"));
+        assertThat(document.offsetAt(new Position(0, 3)), equalTo(3));
+        assertThat(document.positionAt(3), equalTo(new Position(0, 3)));
+        assertThat(document.positionAt(5), equalTo(new Position(1, 0)));
+        assertThat(document.offsetAt(new Position(1, 1)), equalTo(6));
+        var edited = document.apply(List.of(edit(0, 1, 0, 3, "")), 2);
+        assertThat(edited.text().toString(), equalTo("ab\nc"));
+    }
+
+    @Test
+    public void ropeMatchesStringEdits() {
+        var random = new Random(42);
+        var expected = new StringBuilder();
+        for (var i = 0; i < 2000; i++) expected.append("line ").append(i).append(i % 7 == 0 ? "\r\n" : "\n");
+        var rope = Rope.of(expected);
+        var versions = new ArrayList<Rope>();
+        var texts = new ArrayList<String>();
+        for (var i = 0; i < 2000; i++) {
+            var start = random.nextInt(expected.length() + 1);
+            var end = Math.min(expected.length(), start + random.nextInt(i % 10 == 0 ? 3000 : 20));
+            var inserted = random.nextBoolean() ? "" : "x\n".repeat(random.nextInt(4)) + "y".repeat(random.nextInt(1500));
+            expected.replace(start, end, inserted);
+            rope = rope.replace(start, end, inserted);
+            if (i % 200 == 0) {
+                versions.add(rope);
+                texts.add(expected.toString());
+            }
+        }
+        assertThat(rope.toString(), equalTo(expected.toString()));
+        assertThat(rope.height(), lessThan(3 * (32 - Integer.numberOfLeadingZeros(rope.length())) / 2 + 2));
+        // Earlier versions are untouched by later edits
+        for (var i = 0; i < versions.size(); i++) assertThat(versions.get(i).toString(), equalTo(texts.get(i)));
+
+        var text = expected.toString();
+        for (var i = 0; i < 500; i++) {
+            var offset = random.nextInt(text.length() + 1);
+            var line = (int) text.substring(0, offset).chars().filter(c -> c == '\n').count();
+            assertThat(rope.lineAt(offset), equalTo(line));
+            assertThat(rope.lineStart(line), equalTo(text.lastIndexOf('\n', offset - 1) + 1));
+            assertThat(rope.charAt(Math.min(offset, text.length() - 1)), equalTo(text.charAt(Math.min(offset, text.length() - 1))));
+            var end = Math.min(text.length(), offset + random.nextInt(5000));
+            assertThat(rope.subSequence(offset, end).toString(), equalTo(text.substring(offset, end)));
+        }
+    }
+
+    @Test
+    public void bareCarriageReturnEndsNoLine() {
+        var rope = Rope.of("ab\r\ncd\rx\nabc\r");
+        assertThat(rope.lineEnd(0), equalTo(2));
+        assertThat(rope.lineEnd(1), equalTo(8));
+        // The last line has no \n after it, so its \r is text
+        assertThat(rope.lineEnd(2), equalTo(13));
+        assertThat(Rope.of("abc\r").lineEnd(0), equalTo(4));
+    }
+
+    @Test
+    public void batchConversionMatchesSingleConversions() {
+        var document = new TextDocuments().open(open("int a = 1;\r\n// 🔥🔥 x\n\nString b = \"🔥\";\r\n"));
+        var starts = new int[] {0, 14, 19, 4, 22, 38, document.length()};
+        var ends = new int[] {3, 16, 20, 9, 30, 40, document.length()};
+        var ranges = document.rangesAt(starts, ends);
+        for (var i = 0; i < starts.length; i++) {
+            assertThat(ranges.get(i), equalTo(new Range(document.positionAt(starts[i]), document.positionAt(ends[i]))));
+        }
+        assertThat(ranges.get(1), equalTo(new Range(new Position(1, 2), new Position(1, 4))));
+        assertThat(ranges.get(6).end, equalTo(new Position(4, 0)));
+
+        var outOfBounds = List.of(new Range(new Position(0, 99), new Position(1, 7)), new Range(new Position(3, 13), new Position(9, 0)));
+        var round = new ArrayList<>(ranges);
+        round.addAll(outOfBounds);
+        var offsetStarts = new int[round.size()];
+        var offsetEnds = new int[round.size()];
+        document.offsetsAt(round, offsetStarts, offsetEnds);
+        for (var i = 0; i < round.size(); i++) {
+            assertThat(offsetStarts[i], equalTo(document.offsetAt(round.get(i).start)));
+            assertThat(offsetEnds[i], equalTo(document.offsetAt(round.get(i).end)));
+        }
+        for (var i = 0; i < starts.length; i++) assertThat(offsetStarts[i], equalTo(starts[i]));
+        // Past the end of a line stops before its \r\n, past the last line is the end
+        assertThat(offsetStarts[starts.length], equalTo(10));
+        assertThat(offsetEnds[starts.length + 1], equalTo(document.length()));
+    }
+}
@@ -0,0 +1,75 @@
+package dev.secondsun.lsp.test;
+
+import dev.secondsun.lsp.FrameReader;
+import dev.secondsun.lsp.LSP;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Reads frames with {@link LSP#nextToken}: {@code small} is a 200-byte completion request, {@code
+ * large} a 256 KB didOpen. {@code frameReader} reads through a {@link FrameReader}, as connections
+ * do, {@code inputStream} straight from the stream. Scores are frames per second.
+ *
+ * <p>Run with {@code org.openjdk.jmh.Main TransportBenchmark -prof gc} for allocation per frame.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TransportBenchmark {
+    private static final int FRAMES = 16;
+
+    @Param({"small", "large"})
+    String frame;
+
+    byte[] stream;
+
+    @Setup
+    public void setup() {
+        String body;
+        if (frame.equals("small")) {
+            body =
+                    "{\"jsonrpc\":\"2.0\",\"id\":12,\"method\":\"textDocument/completion\",\"params\":{\"textDocument\":"
+                            + "{\"uri\":\"file:///workspace/src/main/java/org/example/Foo.java\"},\"position\":"
+                            + "{\"line\":120,\"character\":17}}}";
+        } else {
+            var text = new StringBuilder();
+            while (text.length() < 256 * 1024) {
+                text.append("    private final Map<String, List<Integer>> field").append(text.length()).append(" = Map.of();\\n");
+            }
+            body =
+                    "{\"jsonrpc\":\"2.0\",\"method\":\"textDocument/didOpen\",\"params\":{\"textDocument\":{\"uri\":"
+                            + "\"file:///workspace/Foo.java\",\"languageId\":\"java\",\"version\":1,\"text\":\"" + text + "\"}}}";
+        }
+        var bytes = body.getBytes(StandardCharsets.UTF_8);
+        var out = new ByteArrayOutputStream();
+        for (var i = 0; i < FRAMES; i++) {
+            out.writeBytes(("Content-Length: " + bytes.length + "\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+            out.writeBytes(bytes);
+        }
+        stream = out.toByteArray();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(FRAMES)
+    public int frameReader() {
+        var frames = new FrameReader(new ByteArrayInputStream(stream));
+        var total = 0;
+        for (var i = 0; i < FRAMES; i++) total += LSP.nextToken(frames).length();
+        return total;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(FRAMES)
+    public int inputStream() {
+        var in = new ByteArrayInputStream(stream);
+        var total = 0;
+        for (var i = 0; i < FRAMES; i++) total += LSP.nextToken(in).length();
+        return total;
+    }
+}
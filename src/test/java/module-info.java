@@ -7,4 +7,6 @@ module dev.secondsun.lsp.test {
     requires hamcrest.all;
     requires org.junit.platform.engine; // additional test requirement
     requires org.junit.jupiter.engine;
+    requires jmh.core; // benchmarks
+    requires jdk.jfr;
 }
\ No newline at end of file